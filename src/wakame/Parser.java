@@ -38,7 +38,7 @@ import java.util.HashSet;
 public class Parser {
     private static HashSet<String> objectTags = new HashSet<String>(Arrays.asList(new String[]{
             "scene", "mesh", "bsdf", "emitter", "camera", "medium", "phase", "integrator",
-            "sampler", "rfilter", "test"
+            "sampler", "rfilter", "test", "accel"
     }));
     private static HashSet<String> propertyTags = new HashSet<String>(Arrays.asList(new String[]{
             "boolean", "integer", "float", "string", "point", "vector", "color", "transform"
@@ -79,6 +79,10 @@ public class Parser {
                         + ": The builder of class '" + type + "' has not been registered.");
             }
             builder = WakameObject.getBuilder(type);
+            if (tag.equals("scene") || tag.equals("accel")) {
+                // Lets the scene place files it writes (e.g. the BVH cache) next to the scene file.
+                builder.setProperty("filename", fileName);
+            }
         } else {
             throw new RuntimeException("Error while parsing " + fileName
                 + ": Tag '" + tag + "' is not valid as an object tag.");
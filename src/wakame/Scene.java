@@ -18,31 +18,40 @@
 
 package wakame;
 
+import wakame.accel.Accelerator;
 import wakame.accel.Bvh;
 import wakame.camera.Camera;
 import wakame.emitter.Emitter;
 import wakame.integrator.Integrator;
 import wakame.media.Medium;
+import wakame.mesh.Instance;
 import wakame.mesh.Mesh;
 import wakame.sampler.Independent;
 import wakame.sampler.Sampler;
 import wakame.struct.Aabb3d;
+import wakame.struct.HitBatch;
 import wakame.struct.Intersection;
 import wakame.struct.Ray;
+import wakame.struct.RayBatch;
 import wakame.util.DiscretePdf;
 import yondoko.util.StringUtil;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Scene extends WakameObject {
     private ArrayList<Mesh> meshes = new ArrayList<Mesh>();
     private Integrator integrator = null;
     private Sampler sampler = null;
     private Camera camera = null;
-    private Bvh bvh = null;
+    private Accelerator accelerator = null;
     private Medium medium = null;
+    /**
+     * The properties of the Bvh built when the scene has no accelerator child, under the names that Bvh uses.
+     */
+    private HashMap<String, Object> bvhProperties = new HashMap<String, Object>();
 
     public Integrator getIntegrator() {
         return integrator;
@@ -60,8 +69,11 @@ public class Scene extends WakameObject {
         return meshes;
     }
 
-    public Bvh getBvh() {
-        return bvh;
+    /**
+     * Get the acceleration structure over the meshes of the scene.
+     */
+    public Accelerator getAccelerator() {
+        return accelerator;
     }
 
     /**
@@ -70,7 +82,7 @@ public class Scene extends WakameObject {
      * @param bbox the receiver of the bounding box value
      */
     public void getBoundingBox(Aabb3d bbox) {
-        bvh.getBoundingBox(bbox);
+        accelerator.getBoundingBox(bbox);
     }
 
     private Scene() {
@@ -79,11 +91,21 @@ public class Scene extends WakameObject {
 
     @Override
     protected void activate() {
-        bvh = new Bvh();
+        /* All instances of the scene have been created; later scenes must not reuse their shapes */
+        Instance.clearShapes();
+
+        if (accelerator == null) {
+            /* Create a default BVH from the bvh* properties of the scene */
+            WakameObject.Builder builder = new Bvh.Builder();
+            for (Map.Entry<String, Object> entry : bvhProperties.entrySet()) {
+                builder.setProperty(entry.getKey(), entry.getValue());
+            }
+            accelerator = (Accelerator) builder.build();
+        }
         for (Mesh mesh : meshes) {
-            bvh.addMesh(mesh);
+            accelerator.addMesh(mesh);
         }
-        bvh.build();
+        accelerator.build();
 
         if (integrator == null) {
             throw new RuntimeException("No integrator was specified!");
@@ -122,6 +144,11 @@ public class Scene extends WakameObject {
                 throw new RuntimeException("Scene.addChild(): There can be only one integrator per scene!");
             }
             this.integrator = (Integrator) obj;
+        } else if (obj instanceof Accelerator) {
+            if (accelerator != null) {
+                throw new RuntimeException("Scene.addChild(): There can be only one accelerator per scene!");
+            }
+            this.accelerator = (Accelerator) obj;
         } else if (obj instanceof Medium) {
             if (medium != null) {
                 throw new RuntimeException("Scene.addChild(): There can be only one medium per scene!");
@@ -134,13 +161,25 @@ public class Scene extends WakameObject {
     }
 
     /**
-     * A scene does not have any properties on its own, so this method does nothing.
+     * Set the properties of the scene.  The only properties a scene has control how its default BVH is built
+     * when the scene has no accel child.  They are the properties of Bvh (see Bvh.setProperties()) prefixed
+     * with "bvh": "bvhBuildMode", "bvhBinCount", "bvhSplitBudget", "bvhPerMesh", "bvhWide", "bvhNodeLayout",
+     * "bvhSinglePrecision", "bvhStats", and "bvhCache".  The parser also passes the name of the scene file
+     * itself as "filename", against which the cache file name is resolved.
      *
      * @param properties the properties as a map from property name to values
      */
     @Override
     protected void setProperties(HashMap<String, Object> properties) {
-        // NO-OP
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith("bvh") && name.length() > 3) {
+                name = Character.toLowerCase(name.charAt(3)) + name.substring(4);
+                bvhProperties.put(name, entry.getValue());
+            } else if (name.equals("filename")) {
+                bvhProperties.put(name, entry.getValue());
+            }
+        }
     }
 
     /**
@@ -152,7 +191,7 @@ public class Scene extends WakameObject {
      * @return whether the ray intersects anything in the scene
      */
     public boolean rayIntersect(Ray ray, Intersection its) {
-        return bvh.rayIntersect(ray, its, false);
+        return accelerator.rayIntersect(ray, its, false);
     }
 
     /**
@@ -169,8 +208,33 @@ public class Scene extends WakameObject {
      * @return whether the ray intersect anything in the scene
      */
     public boolean rayIntersect(Ray ray) {
-        Intersection intersection = new Intersection();
-        return bvh.rayIntersect(ray, intersection, true);
+        return accelerator.occluded(ray);
+    }
+
+    /**
+     * Intersect a batch of rays against all triangles stored in the scene
+     * and return detailed intersection information for each.
+     *
+     * Gives the same results as calling rayIntersect(Ray, Intersection) on every ray,
+     * but is faster for coherent rays such as the primary rays of an image block.
+     *
+     * @param rays the rays
+     * @param hits the receiver of the intersection information
+     */
+    public void intersect(RayBatch rays, HitBatch hits) {
+        accelerator.rayIntersect(rays, hits);
+    }
+
+    /**
+     * Determine for each ray of a batch whether it intersects anything in the scene.
+     *
+     * The batch counterpart of rayIntersect(Ray); only hits.hit is filled in.
+     *
+     * @param rays the rays
+     * @param hits the receiver of the results
+     */
+    public void occluded(RayBatch rays, HitBatch hits) {
+        accelerator.occluded(rays, hits);
     }
 
     public String toString() {
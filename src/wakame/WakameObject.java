@@ -18,6 +18,9 @@
 
 package wakame;
 
+import wakame.accel.Bvh;
+import wakame.accel.KdTree;
+import wakame.accel.UniformGrid;
 import wakame.bsdf.Dielectric;
 import wakame.bsdf.Diffuse;
 import wakame.bsdf.Microfacet;
@@ -26,6 +29,8 @@ import wakame.camera.PerspectiveCamera;
 import wakame.integrator.*;
 import wakame.media.Heterogeneous;
 import wakame.media.Homogeneous;
+import wakame.mesh.Instance;
+import wakame.mesh.StanfordPLY;
 import wakame.mesh.WavefrontOBJ;
 import wakame.phase.Isotropic;
 import wakame.rfilter.BoxFilter;
@@ -162,8 +167,16 @@ public abstract class WakameObject {
         // Camera
         WakameObject.registerBuilder("perspective", PerspectiveCamera.Builder.class);
 
+        // Accelerators
+        WakameObject.registerBuilder("bvh", Bvh.Builder.class);
+        WakameObject.registerBuilder("sbvh", Bvh.SpatialBuilder.class);
+        WakameObject.registerBuilder("kdtree", KdTree.Builder.class);
+        WakameObject.registerBuilder("grid", UniformGrid.Builder.class);
+
         // Mesh
         WakameObject.registerBuilder("obj", WavefrontOBJ.Builder.class);
+        WakameObject.registerBuilder("ply", StanfordPLY.Builder.class);
+        WakameObject.registerBuilder("instance", Instance.Builder.class);
 
         // BSDF
         WakameObject.registerBuilder("diffuse", Diffuse.Builder.class);
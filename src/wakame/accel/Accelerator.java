@@ -0,0 +1,149 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import wakame.Constants;
+import wakame.WakameObject;
+import wakame.mesh.Mesh;
+import wakame.struct.Aabb3d;
+import wakame.struct.HitBatch;
+import wakame.struct.Intersection;
+import wakame.struct.Ray;
+import wakame.struct.RayBatch;
+
+import java.util.HashMap;
+
+/**
+ * A ray intersection acceleration structure over the meshes of a scene.
+ *
+ * The scene registers its meshes with addMesh(), calls build() once, and then traces rays with
+ * rayIntersect() and occluded() from many threads at once.  Implementations are selected in the scene file
+ * with an accel tag, e.g. &lt;accel type="kdtree"/&gt;; a scene without one uses a Bvh.
+ */
+public abstract class Accelerator extends WakameObject {
+    /**
+     * Register a triangle mesh (or an instance) for inclusion in the structure.  Must be called before build().
+     *
+     * @param mesh the mesh
+     */
+    public abstract void addMesh(Mesh mesh);
+
+    /**
+     * Build the structure over the registered meshes.
+     */
+    public abstract void build();
+
+    /**
+     * Get the bounding box of all the registered meshes.
+     *
+     * @param bbox the receiver of the bounding box value
+     */
+    public abstract void getBoundingBox(Aabb3d bbox);
+
+    /**
+     * Find the closest intersection of a ray with the registered meshes.
+     *
+     * If shadowRay is set, the query is the same as occluded(ray) and its is not filled in.
+     *
+     * @param ray       the ray
+     * @param its       the receiver of the intersection information
+     * @param shadowRay whether the ray is a shadow ray
+     * @return whether the ray hits something
+     */
+    public abstract boolean rayIntersect(Ray ray, Intersection its, boolean shadowRay);
+
+    /**
+     * Find out whether a ray hits anything, stopping at the first intersection found.
+     *
+     * @param ray the ray
+     * @return whether the ray hits something
+     */
+    public abstract boolean occluded(Ray ray);
+
+    /**
+     * Find the closest hit of every ray of a batch.  The results are the same as calling
+     * rayIntersect(ray, its, false) for each ray.  The default implementation does exactly that.
+     *
+     * @param rays the rays
+     * @param hits the receiver of the results
+     */
+    public void rayIntersect(RayBatch rays, HitBatch hits) {
+        int size = rays.getSize();
+        if (hits.getCapacity() < size) {
+            throw new RuntimeException("Accelerator.rayIntersect(): The hit batch is smaller than the ray batch.");
+        }
+        Ray ray = new Ray();
+        for (int i = 0; i < size; i++) {
+            rays.get(i, ray);
+            hits.hit[i] = rayIntersect(ray, hits.intersections[i], false);
+            hits.t[i] = hits.hit[i] ? hits.intersections[i].t : Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Find out for every ray of a batch whether it hits anything.  Only hits.hit is filled in.  The default
+     * implementation calls occluded(ray) for each ray.
+     *
+     * @param rays the rays
+     * @param hits the receiver of the results
+     */
+    public void occluded(RayBatch rays, HitBatch hits) {
+        int size = rays.getSize();
+        if (hits.getCapacity() < size) {
+            throw new RuntimeException("Accelerator.occluded(): The hit batch is smaller than the ray batch.");
+        }
+        Ray ray = new Ray();
+        for (int i = 0; i < size; i++) {
+            rays.get(i, ray);
+            hits.hit[i] = occluded(ray);
+        }
+    }
+
+    /**
+     * Get the start of the ray segment to test.  A ray that starts at the default epsilon gets an epsilon
+     * scaled by the magnitude of its origin, so that rays leaving surfaces far from the origin do not hit the
+     * surface they leave.
+     *
+     * @param ray the ray
+     * @return the adjusted start of the segment
+     */
+    static double getAdaptiveMint(Ray ray) {
+        double mint = ray.mint;
+        if (mint == Constants.EPSILON) {
+            mint = Math.max(mint, mint * Math.max(Math.abs(ray.o.x), Math.max(Math.abs(ray.o.y), Math.abs(ray.o.z))));
+        }
+        return mint;
+    }
+
+    /**
+     * Accelerators are built by the scene once it has added its meshes, so activation does nothing.
+     */
+    @Override
+    protected void activate() {
+        // NO-OP
+    }
+
+    /**
+     * The default has no properties.
+     */
+    @Override
+    protected void setProperties(HashMap<String, Object> properties) {
+        // NO-OP
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import wakame.Constants;
+import wakame.mesh.WatertightIntersector;
+import wakame.struct.RayBatch;
+
+import javax_.vecmath.Point2d;
+import java.util.Arrays;
+
+/**
+ * Ray stream traversal of the binary tree of a Bvh
+ *
+ * A whole RayBatch walks the tree together.  Each node on the stack carries the list of rays that reached it,
+ * and visiting the node tests its bounding box against all of them at once, so the node is fetched once per
+ * batch rather than once per ray.  Only the rays that hit the box are passed on to the children, and a leaf
+ * intersects each of its triangles with all of its rays in turn.  Children are visited in the order that suits
+ * the first ray of the list, which is the order for the whole list when the rays are coherent.
+ *
+ * An instance holds the per-ray state of one batch, so each thread uses its own.
+ */
+class BatchTraversal {
+    /**
+     * The BVH to traverse.
+     */
+    private final Bvh bvh;
+    /**
+     * Start of the segment of each ray, with the adaptive epsilon applied.
+     */
+    double[] mint = new double[0];
+    /**
+     * End of the segment of each ray.  Shrinks to the closest hit found so far in closest-hit queries;
+     * set to negative infinity once a ray is found to be occluded in occlusion queries.
+     */
+    double[] maxt = new double[0];
+    /**
+     * Position in the packed triangle data of the triangle hit by each ray, or -1.
+     */
+    int[] triangle = new int[0];
+    /**
+     * Barycentric coordinates of the hit of each ray.
+     */
+    double[] u = new double[0];
+    double[] v = new double[0];
+    private double[] rcpX = new double[0];
+    private double[] rcpY = new double[0];
+    private double[] rcpZ = new double[0];
+    /**
+     * Ray-triangle intersector of each ray, set up once per batch.
+     */
+    private WatertightIntersector[] intersectors = new WatertightIntersector[0];
+    /**
+     * Lists of active rays.  The list of a node on the stack is a segment of this array; the segments of
+     * nodes that are still on the stack never lie above the segment of the node being visited.
+     */
+    private int[] active = new int[0];
+    private final int[] stackNode = new int[Bvh.STACK_SIZE];
+    private final int[] stackStart = new int[Bvh.STACK_SIZE];
+    private final int[] stackCount = new int[Bvh.STACK_SIZE];
+    private final Point2d uv = new Point2d();
+
+    BatchTraversal(Bvh bvh) {
+        this.bvh = bvh;
+    }
+
+    /**
+     * Set up the per-ray state for the given batch.
+     */
+    void prepare(RayBatch rays) {
+        int size = rays.getSize();
+        if (mint.length < size) {
+            mint = new double[size];
+            maxt = new double[size];
+            triangle = new int[size];
+            u = new double[size];
+            v = new double[size];
+            rcpX = new double[size];
+            rcpY = new double[size];
+            rcpZ = new double[size];
+            int oldSize = intersectors.length;
+            intersectors = Arrays.copyOf(intersectors, size);
+            for (int i = oldSize; i < size; i++)
+                intersectors[i] = new WatertightIntersector();
+        }
+        for (int i = 0; i < size; i++) {
+            /* Use an adaptive ray epsilon */
+            double rayMint = rays.mint[i];
+            if (rayMint == Constants.EPSILON) {
+                rayMint = Math.max(rayMint, rayMint * Math.max(Math.abs(rays.ox[i]),
+                        Math.max(Math.abs(rays.oy[i]), Math.abs(rays.oz[i]))));
+            }
+            mint[i] = rayMint;
+            maxt[i] = rays.maxt[i];
+            triangle[i] = -1;
+            rcpX[i] = 1.0 / rays.dx[i];
+            rcpY[i] = 1.0 / rays.dy[i];
+            rcpZ[i] = 1.0 / rays.dz[i];
+            intersectors[i].setRay(rays.ox[i], rays.oy[i], rays.oz[i], rays.dx[i], rays.dy[i], rays.dz[i]);
+        }
+    }
+
+    /**
+     * Find the closest triangle hit by each ray of the batch.  prepare() must have been called.
+     */
+    void closestHit(RayBatch rays) {
+        traverse(rays, false);
+    }
+
+    /**
+     * Find, for each ray of the batch, whether it hits any triangle.  prepare() must have been called.
+     */
+    void occluded(RayBatch rays) {
+        traverse(rays, true);
+    }
+
+    private void traverse(RayBatch rays, boolean anyHit) {
+        int[] nodeData = bvh.nodeData;
+        double[] nodeBounds = bvh.nodeBounds;
+        float[] nodeBoundsFloat = bvh.nodeBoundsFloat;
+        if (nodeData == null)
+            return;
+
+        int size = rays.getSize();
+        ensureActiveCapacity(size);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (maxt[i] >= mint[i])
+                active[count++] = i;
+        }
+        if (count == 0)
+            return;
+
+        int rayCount = count;
+        long nodesVisited = 0;
+        long boxTests = 0;
+        long trianglesTested = 0;
+        int stackIdx = 0;
+        stackNode[0] = 0;
+        stackStart[0] = 0;
+        stackCount[0] = count;
+        stackIdx++;
+
+        while (stackIdx > 0) {
+            stackIdx--;
+            int node = stackNode[stackIdx];
+            int start = stackStart[stackIdx];
+            int end = start + stackCount[stackIdx];
+
+            /* Keep the rays that hit the bounding box of the node */
+            ensureActiveCapacity(end + (end - start));
+            int offset = 6 * node;
+            double minX, minY, minZ, maxX, maxY, maxZ;
+            if (nodeBoundsFloat != null) {
+                minX = nodeBoundsFloat[offset]; minY = nodeBoundsFloat[offset + 1]; minZ = nodeBoundsFloat[offset + 2];
+                maxX = nodeBoundsFloat[offset + 3]; maxY = nodeBoundsFloat[offset + 4]; maxZ = nodeBoundsFloat[offset + 5];
+            } else {
+                minX = nodeBounds[offset]; minY = nodeBounds[offset + 1]; minZ = nodeBounds[offset + 2];
+                maxX = nodeBounds[offset + 3]; maxY = nodeBounds[offset + 4]; maxZ = nodeBounds[offset + 5];
+            }
+            boxTests += end - start;
+            int kept = end;
+            for (int j = start; j < end; j++) {
+                int r = active[j];
+                double nearT = mint[r];
+                double farT = maxt[r];
+                double t1, t2;
+                // Same comparisons as Bvh.rayIntersectNode, which ignore the NaNs of rays parallel to a slab.
+                if (rcpX[r] > 0) {
+                    t1 = (minX - rays.ox[r]) * rcpX[r];
+                    t2 = (maxX - rays.ox[r]) * rcpX[r];
+                } else {
+                    t2 = (minX - rays.ox[r]) * rcpX[r];
+                    t1 = (maxX - rays.ox[r]) * rcpX[r];
+                }
+                if (nearT < t1) nearT = t1;
+                if (farT > t2) farT = t2;
+                if (rcpY[r] > 0) {
+                    t1 = (minY - rays.oy[r]) * rcpY[r];
+                    t2 = (maxY - rays.oy[r]) * rcpY[r];
+                } else {
+                    t2 = (minY - rays.oy[r]) * rcpY[r];
+                    t1 = (maxY - rays.oy[r]) * rcpY[r];
+                }
+                if (nearT < t1) nearT = t1;
+                if (farT > t2) farT = t2;
+                if (rcpZ[r] > 0) {
+                    t1 = (minZ - rays.oz[r]) * rcpZ[r];
+                    t2 = (maxZ - rays.oz[r]) * rcpZ[r];
+                } else {
+                    t2 = (minZ - rays.oz[r]) * rcpZ[r];
+                    t1 = (maxZ - rays.oz[r]) * rcpZ[r];
+                }
+                if (nearT < t1) nearT = t1;
+                if (farT > t2) farT = t2;
+                if (nearT <= farT)
+                    active[kept++] = r;
+            }
+            if (kept == end)
+                continue;
+            nodesVisited += kept - end;
+
+            int first = nodeData[2 * node];
+            int primCount = nodeData[2 * node + 1];
+            if (primCount < 0) {
+                int axis = -1 - primCount;
+                int r = active[end];
+                double d = axis == 0 ? rays.dx[r] : (axis == 1 ? rays.dy[r] : rays.dz[r]);
+                int near = d >= 0 ? first : first + 1;
+                int far = d >= 0 ? first + 1 : first;
+                stackNode[stackIdx] = far;
+                stackStart[stackIdx] = end;
+                stackCount[stackIdx] = kept - end;
+                stackIdx++;
+                stackNode[stackIdx] = near;
+                stackStart[stackIdx] = end;
+                stackCount[stackIdx] = kept - end;
+                stackIdx++;
+                continue;
+            }
+
+            /* Intersect each triangle of the leaf with all rays that reached it */
+            trianglesTested += (long) primCount * (kept - end);
+            for (int tri = first; tri < first + primCount; tri++) {
+                for (int j = end; j < kept; j++) {
+                    int r = active[j];
+                    double t = bvh.rayIntersectTriangle(tri, intersectors[r], mint[r], maxt[r], uv);
+                    if (t == Double.POSITIVE_INFINITY)
+                        continue;
+                    triangle[r] = tri;
+                    if (anyHit) {
+                        maxt[r] = Double.NEGATIVE_INFINITY;
+                    } else {
+                        maxt[r] = t;
+                        u[r] = uv.x;
+                        v[r] = uv.y;
+                    }
+                }
+            }
+        }
+
+        BvhStats stats = bvh.stats;
+        if (stats.counting) {
+            if (anyHit) {
+                int earlyOuts = 0;
+                for (int i = 0; i < size; i++) {
+                    if (triangle[i] >= 0)
+                        earlyOuts++;
+                }
+                stats.recordShadowRays(rayCount, nodesVisited, boxTests, trianglesTested, earlyOuts);
+            } else {
+                stats.recordRays(rayCount, nodesVisited, boxTests, trianglesTested);
+            }
+        }
+    }
+
+    private void ensureActiveCapacity(int capacity) {
+        if (active.length < capacity) {
+            active = Arrays.copyOf(active, Math.max(capacity, 2 * active.length));
+        }
+    }
+}
@@ -20,18 +20,23 @@ package wakame.accel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import wakame.Constants;
+import wakame.WakameObject;
+import wakame.mesh.Instance;
 import wakame.mesh.Mesh;
+import wakame.mesh.WatertightIntersector;
 import wakame.struct.Aabb3d;
+import wakame.struct.HitBatch;
 import wakame.struct.Intersection;
 import wakame.struct.Ray;
-import yondoko.util.VectorUtil;
+import wakame.struct.RayBatch;
+import wakame.util.PropertiesUtil;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.IntStream;
 
-public class Bvh {
+public class Bvh extends Accelerator {
     /**
      * The logger
      */
@@ -44,11 +49,78 @@ public class Bvh {
     /**
      * Heuristic cost value for traveral operation.
      */
-    private static final double TRAVERSAL_COST = 1;
+    static final double TRAVERSAL_COST = 1;
     /**
      * Hueristic cost value for intersection operations.
      */
-    private static final double INTERSECTION_COST = 1;
+    static final double INTERSECTION_COST = 1;
+    /**
+     * Default number of bins per axis used by the binned SAH builder.
+     */
+    public static final int DEFAULT_BIN_COUNT = 16;
+    /**
+     * Default number of duplicated triangle references the spatial split builder may create,
+     * as a fraction of the number of triangles.
+     */
+    public static final double DEFAULT_SPLIT_BUDGET = 0.3;
+    /**
+     * Size of the fixed traversal stacks.  Trees must not be deeper than this; the builders keep well below
+     * it, and the per-mesh join limits its depth so that the joined tree stays below it.
+     */
+    static final int STACK_SIZE = 64;
+
+    /**
+     * Algorithms for choosing the splitting plane during construction.
+     */
+    public enum BuildMode {
+        /**
+         * Evaluate the SAH cost at every triangle boundary by sorting the triangles along each axis.
+         * Slowest to build but gives the best trees.
+         */
+        Sweep,
+        /**
+         * Evaluate the SAH cost only at the boundaries of a fixed number of equally sized bins
+         * along each axis.  Builds in linear time per level.
+         */
+        Binned,
+        /**
+         * Binned SAH with spatial splits (SBVH): nodes may also be split by planes that cut through
+         * triangles, which are then referenced from both sides.  Slowest to build, but gives much
+         * less overlap between nodes on scenes with large or long and thin triangles.
+         */
+        Spatial,
+        /**
+         * Sort the triangles along a Morton curve and split where the Morton codes differ (LBVH).
+         * Builds in linear time and is by far the fastest mode, but gives the worst trees.
+         */
+        Linear,
+        /**
+         * LBVH for groups of nearby triangles, with the levels above the groups built by the SAH (HLBVH).
+         * Builds almost as fast as Linear and gives noticeably better trees.
+         */
+        HierarchicalLinear
+    }
+
+    /**
+     * Orders in which the nodes of the built tree are placed in memory.  The two children of an internal node
+     * are always stored next to each other; the layouts differ in how these sibling pairs are ordered.
+     */
+    public enum NodeLayout {
+        /**
+         * Place the pairs in depth-first order, left subtree before right subtree.
+         */
+        DepthFirst,
+        /**
+         * Cut the tree into treelets of the pairs below the largest nodes and store each treelet contiguously,
+         * so that the nodes a ray visits in succession mostly share a page and neighboring cache lines.
+         */
+        Treelet,
+        /**
+         * Place the pairs in van Emde Boas order: the top half of the levels first, then each subtree below it,
+         * recursively.  Keeps nodes close to their descendants at every scale without knowing the cache sizes.
+         */
+        VanEmdeBoas
+    }
 
     // Fields
     /**
@@ -60,22 +132,154 @@ public class Bvh {
      */
     private ArrayList<Integer> meshOffset = new ArrayList<Integer>();
     /**
-     * BVH nodes.
+     * List of instances registered with this BVH.  Their geometry is not stored in this tree but in
+     * the bottom-level trees of instanceBvh.
+     */
+    private ArrayList<Instance> instances = new ArrayList<Instance>();
+    /**
+     * The top-level tree over the instances, or null if there are none.
      */
-    private BvhNode[] nodes;
+    private InstanceBvh instanceBvh;
+    /**
+     * Bounding boxes of the BVH nodes, packed six doubles per node as
+     * (pMin.x, pMin.y, pMin.z, pMax.x, pMax.y, pMax.z).
+     */
+    double[] nodeBounds;
+    /**
+     * Topology of the BVH nodes, packed two ints per node.
+     *
+     * For a leaf, the first int is the position of its first triangle in the indices array,
+     * and the second int is the number of triangles it contains.  For an internal node, the first int is
+     * the index of the left child (the right child always immediately follows the left child), and the
+     * second int is -1 - axis, where axis is the axis along which the triangles were split.  The root is
+     * node 0.  While the tree is being built, the first int of an internal node instead holds the index of
+     * the right child and the left child immediately follows its parent; applyNodeLayout() converts
+     * the tree to the final layout.
+     */
+    int[] nodeData;
+    /**
+     * The node bounds rounded outward to single precision, in the layout of nodeBounds.  Used for traversal
+     * instead of nodeBounds, which is then released, if the BVH stores single-precision data.
+     */
+    float[] nodeBoundsFloat;
     /**
      * Triangle indices referenced by the BVH nodes.
      */
-    private Integer[] indices;
+    private int[] indices;
     /**
      * The surface area of the bounding box of triangles to the left of the reference index.
      * Used when computing the SAH cost of a split.
      */
-    private Double[] leftAreas;
+    private double[] leftAreas;
+    /**
+     * Sorts ranges of indices by triangle centroid.  Only available during a sweep build.
+     */
+    private IndexSorter centroidSorter;
+    /**
+     * Geometry of the triangles in leaf order: the triangle referenced by indices[i] is stored at position i.
+     * Each triangle takes nine doubles, (p0, p1, p2), so that a leaf test reads one contiguous
+     * block of memory instead of going through the meshes.
+     */
+    private double[] triangleData;
+    /**
+     * The triangle vertices rounded to single precision, packed nine floats per triangle as (p0, p1, p2) in
+     * the order of triangleData.  Used instead of triangleData if the BVH stores single-precision data.
+     */
+    private float[] triangleDataFloat;
+    /**
+     * For each triangle in leaf order, the index of the mesh it belongs to.
+     */
+    private int[] triangleMesh;
+    /**
+     * For each triangle in leaf order, the index of the triangle within its mesh.
+     */
+    private int[] trianglePrim;
+    /**
+     * Centroids of all triangles, packed three doubles per triangle.
+     * Only available during construction.
+     */
+    private double[] primCentroids;
+    /**
+     * Bounding boxes of all triangles, packed six doubles per triangle in the same layout as nodeBounds.
+     * Only available during construction.
+     */
+    private double[] primBounds;
+    /**
+     * The algorithm used to choose splitting planes.
+     */
+    private BuildMode buildMode = BuildMode.Sweep;
+    /**
+     * The number of bins per axis used when buildMode is Binned or Spatial.
+     */
+    private int binCount = DEFAULT_BIN_COUNT;
+    /**
+     * The number of duplicated references the spatial split builder may create, as a fraction
+     * of the number of triangles.
+     */
+    private double splitBudget = DEFAULT_SPLIT_BUDGET;
+    /**
+     * SAH cost of the built tree, relative to the surface area of the root.
+     */
+    private double sahCost;
+    /**
+     * Sum of the surface areas of the overlap between the two children of every internal node,
+     * relative to the surface area of the root.
+     */
+    private double childOverlap;
+    /**
+     * SAH cost of the tree right after it was built, before any refit.  For spatial split trees, this is
+     * the cost with the leaf bounds that refit() would compute for the unmoved meshes (see
+     * computeRestSahCost()).
+     */
+    private double builtSahCost;
+    /**
+     * Whether to collapse the binary tree into a 4-wide BVH after building it.
+     */
+    private boolean wide = false;
+    /**
+     * Whether to build a tree over each mesh in parallel and join the trees, rather than one tree over all triangles.
+     */
+    private boolean perMesh = false;
+    /**
+     * Order in which the nodes are placed in memory.
+     */
+    private NodeLayout nodeLayout = NodeLayout.DepthFirst;
+    /**
+     * Whether the node bounds and triangles used for traversal are stored in single precision.
+     */
+    boolean singlePrecision = false;
+    /**
+     * File in which the built tree is cached between runs, or null if the tree is not cached.
+     */
+    private File cacheFile;
+    /**
+     * The 4-wide BVH used for traversal, or null if traversal uses the binary tree.
+     */
+    private WideBvh wideBvh;
     /**
      * Bounding box of the entire BVH.
      */
     private Aabb3d bbox = new Aabb3d();
+    /**
+     * Per-thread traversal stack, so that queries do not allocate one on every call.
+     */
+    private final ThreadLocal<int[]> traversalStack = ThreadLocal.withInitial(() -> new int[STACK_SIZE]);
+    /**
+     * Per-thread stack of the entry distances of the nodes on the traversal stack.
+     */
+    private final ThreadLocal<double[]> distanceStack = ThreadLocal.withInitial(() -> new double[STACK_SIZE]);
+    /**
+     * Per-thread ray-triangle intersector.
+     */
+    private final ThreadLocal<WatertightIntersector> rayIntersector = ThreadLocal.withInitial(WatertightIntersector::new);
+    /**
+     * Build statistics and traversal counters.
+     */
+    final BvhStats stats = new BvhStats();
+    /**
+     * Per-thread state for tracing ray batches.
+     */
+    private final ThreadLocal<BatchTraversal> batchTraversal = ThreadLocal.withInitial(() -> new BatchTraversal(this));
     /**
      * The fork-join pool.
      */
@@ -91,158 +295,1210 @@ public class Bvh {
     /**
      * Register a triangle mesh for inclusion in the BVH.
      *
+     * Instances are not flattened into this tree.  Instead, build() creates one bottom-level BVH
+     * per distinct shape and a top-level BVH over the world-space bounds of the instances.
+     *
      * @param mesh
      */
-    public void addMesh(Mesh mesh) {
-        meshes.add(mesh);
-        meshOffset.add(mesh.getTriangleCount() + meshOffset.get(meshOffset.size() - 1));
-        Aabb3d meshBbox = new Aabb3d();
-        mesh.getBoundingBox(meshBbox);
-        bbox.expandBy(meshBbox);
+    @Override
+    public void addMesh(Mesh mesh) {
+        if (mesh instanceof Instance) {
+            Aabb3d instanceBbox = new Aabb3d();
+            mesh.getBoundingBox(instanceBbox);
+            bbox.expandBy(instanceBbox);
+            instances.add((Instance) mesh);
+            return;
+        }
+        meshes.add(mesh);
+        meshOffset.add(mesh.getTriangleCount() + meshOffset.get(meshOffset.size() - 1));
+        Aabb3d meshBbox = new Aabb3d();
+        mesh.getBoundingBox(meshBbox);
+        bbox.expandBy(meshBbox);
+    }
+
+    /**
+     * Return the number of registered meshes.
+     *
+     * @return the number of registered meshes
+     */
+    public int getMeshCount() {
+        return meshes.size();
+    }
+
+    /**
+     * Return the mesh with the given index.
+     *
+     * @param index
+     * @return the mesh with the given index
+     */
+    public Mesh getMesh(int index) {
+        return meshes.get(index);
+    }
+
+    /**
+     * Set the algorithm used to choose splitting planes.  Must be called before build().
+     *
+     * @param buildMode the build mode
+     */
+    public void setBuildMode(BuildMode buildMode) {
+        this.buildMode = buildMode;
+    }
+
+    /**
+     * Set the number of bins per axis used by the binned SAH builder.  Must be called before build().
+     *
+     * @param binCount the number of bins per axis
+     */
+    public void setBinCount(int binCount) {
+        if (binCount < 2) {
+            throw new RuntimeException("Bvh.setBinCount(): The number of bins must be at least 2.");
+        }
+        this.binCount = binCount;
+    }
+
+    /**
+     * Set the number of duplicated triangle references the spatial split builder may create,
+     * as a fraction of the number of triangles.  Must be called before build().
+     *
+     * @param splitBudget the budget, e.g. 0.3 for at most 30% more references than triangles
+     */
+    public void setSplitBudget(double splitBudget) {
+        if (splitBudget < 0) {
+            throw new RuntimeException("Bvh.setSplitBudget(): The budget must not be negative.");
+        }
+        this.splitBudget = splitBudget;
+    }
+
+    /**
+     * Return the SAH cost of the built tree, i.e., the expected cost of tracing a ray that hits the root
+     * with the traversal and intersection costs used during construction.
+     *
+     * @return the SAH cost of the tree
+     */
+    public double getSahCost() {
+        return sahCost;
+    }
+
+    /**
+     * Return the sum of the surface areas of the overlap between the two children of every internal node,
+     * relative to the surface area of the root.  Zero means that no two sibling nodes overlap.
+     *
+     * @return the relative child overlap of the tree
+     */
+    public double getChildOverlap() {
+        return childOverlap;
+    }
+
+    /**
+     * Set whether to build a separate tree over each mesh, all in parallel, and join the trees with a SAH tree
+     * over the mesh bounds.  Each mesh is built with the build mode.  This builds much faster on scenes made of
+     * many meshes, but no node mixes triangles of different meshes, so the tree is worse when meshes overlap.
+     * Must be called before build().
+     *
+     * @param perMesh whether to build per mesh
+     */
+    public void setPerMeshBuild(boolean perMesh) {
+        this.perMesh = perMesh;
+    }
+
+    /**
+     * Set whether the binary tree should be collapsed into a 4-wide BVH, which is then
+     * used for all ray queries.  Must be called before build().
+     *
+     * @param wide whether to use a 4-wide BVH
+     */
+    public void setWide(boolean wide) {
+        this.wide = wide;
+    }
+
+    /**
+     * Set the order in which the nodes of the tree are placed in memory.  Must be called before build().
+     *
+     * @param nodeLayout the node layout
+     */
+    public void setNodeLayout(NodeLayout nodeLayout) {
+        this.nodeLayout = nodeLayout;
+    }
+
+    /**
+     * Set whether the node bounds and triangles used for traversal are stored in single precision.
+     * This halves the memory the traversal reads.  The node bounds are rounded outward, so that no ray
+     * misses a box that encloses its triangles, and the triangles are intersected with a watertight test,
+     * so that no ray slips through the shared edge of two rounded triangles.  Hits are then accurate only
+     * to single precision, although the intersection records are still computed from the double-precision
+     * meshes.  Must be called before build().
+     *
+     * @param singlePrecision whether to store single-precision data
+     */
+    public void setSinglePrecision(boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+    }
+
+    /**
+     * Set the file in which the built tree is cached between runs.  If the file holds a tree built over
+     * the same triangles with the same parameters, build() loads it instead of building one; otherwise
+     * build() builds the tree and writes it to the file.  Instances are not cached.  Must be called
+     * before build().
+     *
+     * @param cacheFile the cache file, or null to disable caching
+     */
+    public void setCacheFile(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Set the build settings from the properties of an accel tag: "buildMode" ("sweep", "binned", "sbvh", "lbvh",
+     * or "hlbvh"), "binCount", "splitBudget", "perMesh", "wide", "nodeLayout" ("dfs", "treelet", or "veb"),
+     * "singlePrecision", "stats" (whether to turn on the traversal counters), and "cache" (the name of the cache
+     * file, relative to the scene file whose name is passed as "filename").  Each property corresponds to the
+     * setter of the same name; properties that are absent leave the setting as it is.
+     *
+     * @param properties the properties as a map from property name to values
+     */
+    @Override
+    protected void setProperties(HashMap<String, Object> properties) {
+        String buildMode = PropertiesUtil.getString(properties, "buildMode", null);
+        if (buildMode == null) {
+            // Keep the current build mode.
+        } else if (buildMode.equals("sweep")) {
+            setBuildMode(BuildMode.Sweep);
+        } else if (buildMode.equals("binned")) {
+            setBuildMode(BuildMode.Binned);
+        } else if (buildMode.equals("sbvh")) {
+            setBuildMode(BuildMode.Spatial);
+        } else if (buildMode.equals("lbvh")) {
+            setBuildMode(BuildMode.Linear);
+        } else if (buildMode.equals("hlbvh")) {
+            setBuildMode(BuildMode.HierarchicalLinear);
+        } else {
+            throw new RuntimeException("Bvh.setProperties(): Unknown BVH build mode '" + buildMode + "'.");
+        }
+        setBinCount(PropertiesUtil.getInteger(properties, "binCount", binCount));
+        setSplitBudget(PropertiesUtil.getDouble(properties, "splitBudget", splitBudget));
+        setPerMeshBuild(PropertiesUtil.getBoolean(properties, "perMesh", perMesh));
+        setWide(PropertiesUtil.getBoolean(properties, "wide", wide));
+        String nodeLayout = PropertiesUtil.getString(properties, "nodeLayout", null);
+        if (nodeLayout == null) {
+            // Keep the current node layout.
+        } else if (nodeLayout.equals("dfs")) {
+            setNodeLayout(NodeLayout.DepthFirst);
+        } else if (nodeLayout.equals("treelet")) {
+            setNodeLayout(NodeLayout.Treelet);
+        } else if (nodeLayout.equals("veb")) {
+            setNodeLayout(NodeLayout.VanEmdeBoas);
+        } else {
+            throw new RuntimeException("Bvh.setProperties(): Unknown BVH node layout '" + nodeLayout + "'.");
+        }
+        setSinglePrecision(PropertiesUtil.getBoolean(properties, "singlePrecision", singlePrecision));
+        stats.setCounting(PropertiesUtil.getBoolean(properties, "stats", stats.isCounting()));
+        String cache = PropertiesUtil.getString(properties, "cache", null);
+        if (cache != null) {
+            File file = new File(cache);
+            String sceneFileName = PropertiesUtil.getString(properties, "filename", null);
+            if (!file.isAbsolute() && sceneFileName != null) {
+                file = new File(new File(sceneFileName).getAbsoluteFile().getParentFile(), cache);
+            }
+            setCacheFile(file);
+        }
+    }
+
+    /**
+     * Get the statistics of the BVH.  The build statistics are available after build(); the traversal
+     * counters are updated only while counting is turned on with getStats().setCounting(true).
+     *
+     * @return the statistics, which stay attached to this BVH and keep being updated
+     */
+    public BvhStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Get the bounding box of the whole BVH.
+     */
+    @Override
+    public void getBoundingBox(Aabb3d bbox) {
+        bbox.set(this.bbox);
+    }
+
+    /**
+     * Create an empty BVH with the same build settings as this one that shares its fork-join pool.
+     *
+     * @return the new BVH
+     */
+    Bvh createSubBvh() {
+        Bvh bvh = new Bvh();
+        bvh.buildMode = buildMode;
+        bvh.binCount = binCount;
+        bvh.splitBudget = splitBudget;
+        bvh.wide = wide;
+        bvh.nodeLayout = nodeLayout;
+        bvh.singlePrecision = singlePrecision;
+        bvh.forkJoinPool = forkJoinPool;
+        return bvh;
+    }
+
+    /**
+     * Get the number of triangles, not counting the triangles of instances.
+     */
+    public int getTriangleCount() {
+        return meshOffset.get(meshOffset.size() - 1);
+    }
+
+    /**
+     * Return the index of the mesh containing the triangle with the given index.
+     *
+     * @param triangleIndex the index of the triangle
+     * @return the index of the mesh containing the triangle with the given index
+     */
+    protected int findMesh(int triangleIndex) {
+        /* Binary search for the last mesh whose offset is at most triangleIndex.
+           Searching by hand avoids boxing the key. */
+        int lo = 0;
+        int hi = meshOffset.size() - 1;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (meshOffset.get(mid) <= triangleIndex)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Get the centroid of the triangle with the given index.
+     *
+     * @param triangleIndex the index of the triangle
+     * @param centroid      the receiver of the centroid value
+     */
+    protected void getTriangleCentroid(int triangleIndex, javax_.vecmath.Tuple3d centroid) {
+        int meshIndex = findMesh(triangleIndex);
+        triangleIndex -= meshOffset.get(meshIndex);
+        meshes.get(meshIndex).getTriangleCentroid(triangleIndex, centroid);
+    }
+
+    /**
+     * Get the bounding box of the triangle with the given index.
+     *
+     * @param triangleIndex the index of the triangle
+     * @param bbox          the receiver of the bounding box value
+     */
+    protected void getTriangleBoundingBox(int triangleIndex, Aabb3d bbox) {
+        int meshIndex = findMesh(triangleIndex);
+        triangleIndex -= meshOffset.get(meshIndex);
+        meshes.get(meshIndex).getTriangleBoundingBox(triangleIndex, bbox);
+    }
+
+    /**
+     * Build the BVH.
+     */
+    @Override
+    public void build() {
+        int size = getTriangleCount();
+        if (size == 0 && instances.isEmpty())
+            return;
+
+        long start = System.currentTimeMillis();
+
+        if (size > 0) {
+            buildTriangleTree(size);
+        }
+        if (!instances.isEmpty()) {
+            instanceBvh = new InstanceBvh(this, instances);
+        }
+
+        long end = System.currentTimeMillis();
+        long elapsed = end - start;
+        logger.info(String.format("BVH building took %d min(s) %d second(s) %d ms",
+                elapsed / (60 * 1000), (elapsed / 1000) % 60, elapsed % 1000));
+    }
+
+    /**
+     * Build the tree over the triangles of the registered meshes.
+     *
+     * @param size the number of triangles
+     */
+    private void buildTriangleTree(int size) {
+        logger.info("Constructing a SAH BVH (" + buildMode + ") from " + meshes.size() + " mesh(es) with "
+                + size + " triangles.");
+
+        byte[] cacheKey = null;
+        BvhCache cached = null;
+        if (cacheFile != null) {
+            cacheKey = BvhCache.computeKey(meshes, buildMode, binCount, splitBudget, perMesh, nodeLayout);
+            cached = BvhCache.load(cacheFile, cacheKey, size);
+        }
+
+        if (cached != null) {
+            nodeBounds = cached.nodeBounds;
+            nodeData = cached.nodeData;
+            indices = cached.indices;
+            logger.info("Loaded the BVH from \"" + cacheFile + "\".");
+        } else if (perMesh && meshes.size() > 1) {
+            buildPerMesh();
+        } else {
+            buildNodes(size);
+        }
+        if (cached == null) {
+            applyNodeLayout(nodeLayout);
+        }
+        if (cacheFile != null && cached == null) {
+            BvhCache.save(cacheFile, cacheKey, nodeBounds, nodeData, indices);
+        }
+
+        buildTriangleData();
+        computeTreeQuality();
+        builtSahCost = buildMode == BuildMode.Spatial ? computeRestSahCost() : sahCost;
+        logger.info(String.format("BVH has SAH cost %.3f and child overlap %.3f.", sahCost, childOverlap));
+        if (wide) {
+            wideBvh = new WideBvh(this);
+            logger.info("Collapsed the BVH into " + wideBvh.getNodeCount() + " 4-wide nodes.");
+        }
+        if (singlePrecision) {
+            storeSinglePrecisionBounds();
+        }
+
+        stats.setMemoryBytes(computeMemoryBytes());
+        logger.info(String.format("BVH has %d nodes, %d leaves, and maximum depth %d, and takes %d bytes.",
+                stats.getNodeCount(), stats.getLeafCount(), stats.getMaxDepth(), stats.getMemoryBytes()));
+    }
+
+    /**
+     * Build the nodes over the triangles of the registered meshes with the build mode, in the layout of
+     * the builders.
+     *
+     * @param size the number of triangles
+     */
+    private void buildNodes(int size) {
+        if (buildMode == BuildMode.Spatial) {
+            SbvhBuilder builder = new SbvhBuilder(meshes, binCount, splitBudget);
+            builder.build();
+            nodeBounds = Arrays.copyOf(builder.nodeBounds, 6 * builder.nodeCount);
+            nodeData = Arrays.copyOf(builder.nodeData, 2 * builder.nodeCount);
+            indices = Arrays.copyOf(builder.indices, builder.indexCount);
+            logger.info(String.format("Made %d spatial splits, which duplicated %d triangle references.",
+                    builder.spatialSplitCount, builder.indexCount - size));
+        } else {
+            nodeBounds = new double[6 * 2 * size];
+            nodeData = new int[2 * 2 * size];
+            indices = new int[size];
+            primCentroids = new double[3 * size];
+            primBounds = new double[6 * size];
+            IntStream.range(0, meshes.size()).parallel().forEach((int meshIndex) -> {
+                Mesh mesh = meshes.get(meshIndex);
+                int offset = meshOffset.get(meshIndex);
+                javax_.vecmath.Point3d centroid = new javax_.vecmath.Point3d();
+                Aabb3d triBbox = new Aabb3d();
+                for (int i = 0; i < mesh.getTriangleCount(); i++) {
+                    int triIndex = offset + i;
+                    indices[triIndex] = triIndex;
+                    mesh.getTriangleCentroid(i, centroid);
+                    primCentroids[3 * triIndex] = centroid.x;
+                    primCentroids[3 * triIndex + 1] = centroid.y;
+                    primCentroids[3 * triIndex + 2] = centroid.z;
+                    mesh.getTriangleBoundingBox(i, triBbox);
+                    primBounds[6 * triIndex] = triBbox.pMin.x;
+                    primBounds[6 * triIndex + 1] = triBbox.pMin.y;
+                    primBounds[6 * triIndex + 2] = triBbox.pMin.z;
+                    primBounds[6 * triIndex + 3] = triBbox.pMax.x;
+                    primBounds[6 * triIndex + 4] = triBbox.pMax.y;
+                    primBounds[6 * triIndex + 5] = triBbox.pMax.z;
+                }
+            });
+
+            if (buildMode == BuildMode.Binned) {
+                forkJoinPool.invoke(new BinnedBuildTask(0, 0, size));
+            } else if (buildMode == BuildMode.Linear || buildMode == BuildMode.HierarchicalLinear) {
+                LbvhBuilder builder = new LbvhBuilder(primCentroids, primBounds,
+                        buildMode == BuildMode.HierarchicalLinear, forkJoinPool);
+                builder.build();
+                nodeBounds = builder.nodeBounds;
+                nodeData = builder.nodeData;
+                indices = builder.indices;
+                if (buildMode == BuildMode.HierarchicalLinear) {
+                    logger.info("Built the upper levels over " + builder.treeletCount + " treelets.");
+                }
+            } else {
+                leftAreas = new double[size];
+                centroidSorter = new IndexSorter(indices);
+                forkJoinPool.invoke(new BvhBuildTask(0, 0, size));
+            }
+        }
+        leftAreas = null;
+        centroidSorter = null;
+        primCentroids = null;
+        primBounds = null;
+    }
+
+    /**
+     * Build the nodes by building a tree over each mesh concurrently and joining the trees with a SAH tree
+     * over the mesh bounds.  The result is in the layout of the builders, like that of buildNodes().
+     *
+     * The top levels of a single build are the least parallel part of it, since each one splits a large
+     * range of triangles before anything can be forked.  Scenes made of many separate meshes skip them: every
+     * mesh gets its own tree, and the trees of the meshes are built at the same time.  The price is that no
+     * node can mix triangles of different meshes, so overlapping meshes give a worse tree than a single build.
+     */
+    private void buildPerMesh() {
+        ArrayList<Bvh> meshBvhs = new ArrayList<Bvh>();
+        ArrayList<Integer> meshIndices = new ArrayList<Integer>();
+        for (int i = 0; i < meshes.size(); i++) {
+            if (meshes.get(i).getTriangleCount() > 0) {
+                Bvh meshBvh = createSubBvh();
+                meshBvh.addMesh(meshes.get(i));
+                meshBvhs.add(meshBvh);
+                meshIndices.add(i);
+            }
+        }
+        int count = meshBvhs.size();
+        forkJoinPool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                for (Bvh meshBvh : meshBvhs) {
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            meshBvh.buildNodes(meshBvh.getTriangleCount());
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+
+        /* The joining tree may be this deep without the joined tree outgrowing the traversal stacks */
+        int maxMeshDepth = 0;
+        for (Bvh meshBvh : meshBvhs) {
+            maxMeshDepth = Math.max(maxMeshDepth, meshBvh.getBuiltDepth(0));
+        }
+        int maxJoinDepth = STACK_SIZE - 1 - maxMeshDepth;
+        if (ceilLog2(count) > maxJoinDepth) {
+            logger.warn("Joining " + count + " mesh BVHs up to " + maxMeshDepth + " levels deep would make the "
+                    + "BVH too deep; building a single tree instead.");
+            buildNodes(getTriangleCount());
+            return;
+        }
+
+        /* Allocate room for every node slot of the mesh trees plus the nodes joining them */
+        int nodeCount = count - 1;
+        int indexCount = 0;
+        int[] indexOffsets = new int[count];
+        double[] meshBounds = new double[6 * count];
+        for (int i = 0; i < count; i++) {
+            Bvh meshBvh = meshBvhs.get(i);
+            nodeCount += meshBvh.nodeData.length / 2;
+            indexOffsets[i] = indexCount;
+            indexCount += meshBvh.indices.length;
+            System.arraycopy(meshBvh.nodeBounds, 0, meshBounds, 6 * i, 6);
+        }
+        nodeBounds = new double[6 * nodeCount];
+        nodeData = new int[2 * nodeCount];
+        indices = new int[indexCount];
+        for (int i = 0; i < count; i++) {
+            int[] meshBvhIndices = meshBvhs.get(i).indices;
+            int offset = meshOffset.get(meshIndices.get(i));
+            for (int j = 0; j < meshBvhIndices.length; j++) {
+                indices[indexOffsets[i] + j] = meshBvhIndices[j] + offset;
+            }
+        }
+
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        double[] meshCentroids = new double[3 * count];
+        double[] meshCosts = new double[count];
+        for (int i = 0; i < count; i++) {
+            for (int k = 0; k < 3; k++) {
+                meshCentroids[3 * i + k] = 0.5 * (meshBounds[6 * i + k] + meshBounds[6 * i + 3 + k]);
+            }
+            meshCosts[i] = meshBvhs.get(i).getTriangleCount();
+        }
+        MeshJoiner joiner = new MeshJoiner(meshBvhs, indexOffsets, meshBounds, meshCentroids, meshCosts, order,
+                maxJoinDepth);
+        joiner.emitTop(0, count, 0);
+        logger.info("Built " + count + " per-mesh BVHs in parallel and joined them with a SAH tree.");
+    }
+
+    /**
+     * Writes the joined tree of buildPerMesh() into nodeBounds and nodeData in depth-first order, which is
+     * the layout of the builders.
+     */
+    private class MeshJoiner {
+        private final ArrayList<Bvh> meshBvhs;
+        private final int[] indexOffsets;
+        private final double[] meshBounds;
+        private final double[] meshCentroids;
+        private final double[] meshCosts;
+        private final int[] order;
+        private final IndexSorter sorter;
+        /**
+         * The depth the mesh trees may be placed at.
+         */
+        private final int maxDepth;
+        private int nextNode = 0;
+
+        MeshJoiner(ArrayList<Bvh> meshBvhs, int[] indexOffsets, double[] meshBounds, double[] meshCentroids,
+                   double[] meshCosts, int[] order, int maxDepth) {
+            this.meshBvhs = meshBvhs;
+            this.indexOffsets = indexOffsets;
+            this.meshBounds = meshBounds;
+            this.meshCentroids = meshCentroids;
+            this.meshCosts = meshCosts;
+            this.order = order;
+            this.maxDepth = maxDepth;
+            sorter = new IndexSorter(order);
+        }
+
+        /**
+         * Emit the SAH tree over the meshes order[start..end), splitting until every leaf is a single mesh
+         * tree.  The cost of a side is its surface area times its triangle count.  A split that would leave
+         * too few levels to separate the meshes of a side before maxDepth is replaced by a split in the middle
+         * of the largest centroid extent, which needs the fewest levels.
+         *
+         * @param depth the depth of the emitted node, where ceilLog2(end - start) must not exceed
+         *              maxDepth - depth
+         * @return the index of the emitted node
+         */
+        int emitTop(int start, int end, int depth) {
+            if (end - start == 1) {
+                int mesh = order[start];
+                return emitMeshNode(meshBvhs.get(mesh), indexOffsets[mesh], 0);
+            }
+
+            int size = end - start;
+            double[] rightAreas = new double[size];
+            double[] rightCosts = new double[size];
+            double bestCost = Double.POSITIVE_INFINITY;
+            int bestAxis = 0;
+            int bestIndex = 1;
+            for (int axis = 0; axis < 3; axis++) {
+                sorter.sort(meshCentroids, 3, axis, start, end, false);
+                Aabb3d box = new Aabb3d();
+                double cost = 0;
+                for (int i = size - 1; i >= 1; i--) {
+                    expandByMesh(box, order[start + i]);
+                    cost += meshCosts[order[start + i]];
+                    rightAreas[i] = box.getSurfaceArea();
+                    rightCosts[i] = cost;
+                }
+                box.reset();
+                cost = 0;
+                for (int i = 1; i < size; i++) {
+                    expandByMesh(box, order[start + i - 1]);
+                    cost += meshCosts[order[start + i - 1]];
+                    double splitCost = box.getSurfaceArea() * cost + rightAreas[i] * rightCosts[i];
+                    if (splitCost < bestCost) {
+                        bestCost = splitCost;
+                        bestAxis = axis;
+                        bestIndex = i;
+                    }
+                }
+            }
+            if (depth + 1 + ceilLog2(Math.max(bestIndex, size - bestIndex)) > maxDepth) {
+                double bestExtent = -1;
+                for (int axis = 0; axis < 3; axis++) {
+                    double min = Double.POSITIVE_INFINITY;
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int i = start; i < end; i++) {
+                        min = Math.min(min, meshCentroids[3 * order[i] + axis]);
+                        max = Math.max(max, meshCentroids[3 * order[i] + axis]);
+                    }
+                    if (max - min > bestExtent) {
+                        bestExtent = max - min;
+                        bestAxis = axis;
+                    }
+                }
+                bestIndex = size / 2;
+            }
+            sorter.sort(meshCentroids, 3, bestAxis, start, end, false);
+
+            int node = nextNode++;
+            Aabb3d box = new Aabb3d();
+            for (int i = start; i < end; i++) {
+                expandByMesh(box, order[i]);
+            }
+            emitTop(start, start + bestIndex, depth + 1);
+            int right = emitTop(start + bestIndex, end, depth + 1);
+            setInternalNode(node, bestAxis, right, box);
+            return node;
+        }
+
+        /**
+         * Copy the subtree below the given node of a mesh tree, which is in the layout of the builders.
+         *
+         * @return the index of the copied node
+         */
+        private int emitMeshNode(Bvh meshBvh, int indexOffset, int meshNode) {
+            int node = nextNode++;
+            System.arraycopy(meshBvh.nodeBounds, 6 * meshNode, nodeBounds, 6 * node, 6);
+            int first = meshBvh.nodeData[2 * meshNode];
+            int count = meshBvh.nodeData[2 * meshNode + 1];
+            if (count < 0) {
+                emitMeshNode(meshBvh, indexOffset, meshNode + 1);
+                first = emitMeshNode(meshBvh, indexOffset, first);
+            } else {
+                first += indexOffset;
+            }
+            nodeData[2 * node] = first;
+            nodeData[2 * node + 1] = count;
+            return node;
+        }
+
+        private void expandByMesh(Aabb3d box, int mesh) {
+            int offset = 6 * mesh;
+            box.pMin.x = Math.min(box.pMin.x, meshBounds[offset]);
+            box.pMin.y = Math.min(box.pMin.y, meshBounds[offset + 1]);
+            box.pMin.z = Math.min(box.pMin.z, meshBounds[offset + 2]);
+            box.pMax.x = Math.max(box.pMax.x, meshBounds[offset + 3]);
+            box.pMax.y = Math.max(box.pMax.y, meshBounds[offset + 4]);
+            box.pMax.z = Math.max(box.pMax.z, meshBounds[offset + 5]);
+        }
+    }
+
+    /**
+     * Return the depth of the subtree below the given node of a tree in the layout of the builders, where
+     * the left child of an internal node follows it and its data holds the index of the right child.
+     */
+    private int getBuiltDepth(int node) {
+        if (nodeData[2 * node + 1] >= 0)
+            return 0;
+        return 1 + Math.max(getBuiltDepth(node + 1), getBuiltDepth(nodeData[2 * node]));
+    }
+
+    /**
+     * Return the number of levels a balanced binary tree needs to separate the given number of leaves.
+     */
+    private static int ceilLog2(int count) {
+        return 32 - Integer.numberOfLeadingZeros(count - 1);
+    }
+
+    /**
+     * Rearrange the nodes of the freshly built tree, which are in the order the builders emit them,
+     * into the given layout.  This also drops the unused nodes the builders allocated.
+     *
+     * @param layout the node layout
+     */
+    private void applyNodeLayout(NodeLayout layout) {
+        Object[] arranged = new TreeLayout(nodeBounds, nodeData).apply(layout);
+        nodeBounds = (double[]) arranged[0];
+        nodeData = (int[]) arranged[1];
+    }
+
+    /**
+     * Build the tree over the given boxes instead of the registered triangles, using the binned SAH.
+     *
+     * The leaves then refer to boxes rather than triangles and no triangle data is stored, so the caller
+     * is responsible for intersecting whatever the boxes enclose.  This is how the top level of a two-level
+     * BVH is built.
+     *
+     * @param boxes the boxes, packed six doubles per box in the same layout as nodeBounds
+     * @return the indices of the boxes in leaf order
+     */
+    int[] buildOverBoxes(double[] boxes) {
+        int size = boxes.length / 6;
+        nodeBounds = new double[6 * 2 * size];
+        nodeData = new int[2 * 2 * size];
+        indices = new int[size];
+        primBounds = boxes;
+        primCentroids = new double[3 * size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+            for (int k = 0; k < 3; k++) {
+                primCentroids[3 * i + k] = 0.5 * (boxes[6 * i + k] + boxes[6 * i + 3 + k]);
+            }
+        }
+
+        forkJoinPool.invoke(new BinnedBuildTask(0, 0, size));
+        applyNodeLayout(nodeLayout);
+        computeTreeQuality();
+
+        primCentroids = null;
+        primBounds = null;
+        return indices;
+    }
+
+    /**
+     * Update the tree after the vertex positions of the registered meshes have changed.  Vertices are moved
+     * with Mesh.setPosition(); the bounding boxes of the meshes are recomputed here, so they are tight again
+     * afterwards.
+     *
+     * The topology of the tree is kept and only the node bounds are recomputed, bottom-up and in parallel,
+     * which is much cheaper than build() but makes the tree worse the more the triangles move.  The returned
+     * ratio tells how much worse: it is the SAH cost of the refitted tree divided by that of the tree as
+     * originally built, so a caller can rebuild once it grows beyond, say, 1.5.  The triangles of the meshes
+     * must stay the same.  Instances are not refitted.
+     *
+     * Leaves are refitted to the bounding boxes of their whole triangles.  A spatial split tree is built from
+     * references clipped to the split planes, so its first refit loosens the split leaves even if nothing
+     * moved; its ratio is therefore measured against the cost of such an at-rest refit rather than against
+     * the cost of the tree as built, so that it starts at 1 as well.
+     *
+     * @return the SAH cost of the refitted tree relative to the originally built tree
+     */
+    public double refit() {
+        if (nodeData == null) {
+            return 1;
+        }
+        for (int i = 0; i < meshes.size(); i++) {
+            if (meshes.get(i).getTriangleCount() != meshOffset.get(i + 1) - meshOffset.get(i)) {
+                throw new RuntimeException("Bvh.refit(): The triangle count of a mesh has changed; "
+                        + "the BVH must be rebuilt.");
+            }
+        }
+
+        long start = System.currentTimeMillis();
+
+        meshes.parallelStream().forEach(Mesh::updateBoundingBox);
+        buildTriangleData();
+        if (singlePrecision) {
+            nodeBounds = new double[nodeBoundsFloat.length];
+        }
+        forkJoinPool.invoke(new RefitTask(0, 0));
+        if (wideBvh != null) {
+            wideBvh.refit();
+        }
+
+        bbox.reset();
+        Aabb3d nodeBbox = new Aabb3d();
+        nodeBbox.pMin.set(nodeBounds[0], nodeBounds[1], nodeBounds[2]);
+        nodeBbox.pMax.set(nodeBounds[3], nodeBounds[4], nodeBounds[5]);
+        bbox.expandBy(nodeBbox);
+        for (Instance instance : instances) {
+            instance.getBoundingBox(nodeBbox);
+            bbox.expandBy(nodeBbox);
+        }
+
+        computeTreeQuality();
+        double ratio = sahCost / builtSahCost;
+        if (singlePrecision) {
+            storeSinglePrecisionBounds();
+        }
+        stats.setMemoryBytes(computeMemoryBytes());
+
+        long elapsed = System.currentTimeMillis() - start;
+        logger.info(String.format("Refitted the BVH in %d ms. SAH cost %.3f is %.2f times that of the built tree.",
+                elapsed, sahCost, ratio));
+        return ratio;
+    }
+
+    /**
+     * Compute the SAH cost the tree would have if its leaves were bounded by their whole triangles, as
+     * refit() bounds them.  The node bounds and the tree quality are left as they were.
+     *
+     * @return the SAH cost of the tree refitted to the current vertex positions
+     */
+    private double computeRestSahCost() {
+        double[] builtBounds = nodeBounds.clone();
+        forkJoinPool.invoke(new RefitTask(0, 0));
+        computeTreeQuality();
+        double restSahCost = sahCost;
+        nodeBounds = builtBounds;
+        computeTreeQuality();
+        return restSahCost;
+    }
+
+    /**
+     * Recomputes the bounds of the subtree below a node from the packed triangle data.
+     */
+    protected class RefitTask extends RecursiveAction {
+        /**
+         * Subtrees at least this deep below the root are refitted without forking.
+         */
+        private static final int PARALLEL_DEPTH = 8;
+
+        int nodeIndex;
+        int depth;
+
+        public RefitTask(int nodeIndex, int depth) {
+            this.nodeIndex = nodeIndex;
+            this.depth = depth;
+        }
+
+        public void compute() {
+            int first = nodeData[2 * nodeIndex];
+            int count = nodeData[2 * nodeIndex + 1];
+            if (count >= 0) {
+                refitLeaf(nodeIndex, first, count);
+                return;
+            }
+            if (depth < PARALLEL_DEPTH) {
+                invokeAll(new RefitTask(first, depth + 1), new RefitTask(first + 1, depth + 1));
+            } else {
+                new RefitTask(first, depth + 1).compute();
+                new RefitTask(first + 1, depth + 1).compute();
+            }
+            int offset = 6 * nodeIndex;
+            int left = 6 * first;
+            int right = 6 * (first + 1);
+            for (int k = 0; k < 3; k++) {
+                nodeBounds[offset + k] = Math.min(nodeBounds[left + k], nodeBounds[right + k]);
+                nodeBounds[offset + 3 + k] = Math.max(nodeBounds[left + 3 + k], nodeBounds[right + 3 + k]);
+            }
+        }
+
+        private void refitLeaf(int nodeIndex, int first, int count) {
+            Aabb3d bbox = new Aabb3d();
+            Aabb3d triBbox = new Aabb3d();
+            for (int i = first; i < first + count; i++) {
+                meshes.get(triangleMesh[i]).getTriangleBoundingBox(trianglePrim[i], triBbox);
+                bbox.expandBy(triBbox);
+            }
+            setNodeBounds(nodeIndex, bbox);
+        }
+    }
+
+    /**
+     * Compute sahCost and childOverlap of the built tree, and the tree statistics of stats.
+     */
+    private void computeTreeQuality() {
+        double rootArea = getNodeSurfaceArea(0);
+        int[] stack = new int[STACK_SIZE];
+        int[] depthStack = new int[STACK_SIZE];
+        int stackIdx = 0;
+        int node = 0;
+        int depth = 0;
+        double cost = 0;
+        double overlap = 0;
+        int nodeCount = 0;
+        int leafCount = 0;
+        int maxDepth = 0;
+        long[] leafSizeHistogram = new long[BvhStats.MAX_LEAF_SIZE + 1];
+        while (true) {
+            nodeCount++;
+            double area = getNodeSurfaceArea(node) / rootArea;
+            int first = nodeData[2 * node];
+            int count = nodeData[2 * node + 1];
+            if (count >= 0) {
+                cost += INTERSECTION_COST * count * area;
+                leafCount++;
+                maxDepth = Math.max(maxDepth, depth);
+                leafSizeHistogram[Math.min(count, BvhStats.MAX_LEAF_SIZE)]++;
+                if (stackIdx == 0)
+                    break;
+                stackIdx--;
+                node = stack[stackIdx];
+                depth = depthStack[stackIdx];
+                continue;
+            }
+            cost += TRAVERSAL_COST * area;
+
+            int left = 6 * first;
+            int right = 6 * (first + 1);
+            double xx = Math.max(0, Math.min(nodeBounds[left + 3], nodeBounds[right + 3])
+                    - Math.max(nodeBounds[left], nodeBounds[right]));
+            double yy = Math.max(0, Math.min(nodeBounds[left + 4], nodeBounds[right + 4])
+                    - Math.max(nodeBounds[left + 1], nodeBounds[right + 1]));
+            double zz = Math.max(0, Math.min(nodeBounds[left + 5], nodeBounds[right + 5])
+                    - Math.max(nodeBounds[left + 2], nodeBounds[right + 2]));
+            overlap += 2 * (xx * yy + yy * zz + zz * xx) / rootArea;
+
+            depth++;
+            stack[stackIdx] = first + 1;
+            depthStack[stackIdx] = depth;
+            stackIdx++;
+            node = first;
+        }
+        sahCost = cost;
+        childOverlap = overlap;
+        stats.setTreeStatistics(nodeCount, leafCount, maxDepth, leafSizeHistogram, cost);
+    }
+
+    /**
+     * Compute the memory footprint of the traversal data for stats.
+     */
+    private long computeMemoryBytes() {
+        long bytes = 0;
+        if (nodeBounds != null)
+            bytes += 8L * nodeBounds.length;
+        if (nodeBoundsFloat != null)
+            bytes += 4L * nodeBoundsFloat.length;
+        if (nodeData != null)
+            bytes += 4L * nodeData.length;
+        if (indices != null)
+            bytes += 4L * indices.length;
+        if (triangleData != null)
+            bytes += 8L * triangleData.length;
+        if (triangleDataFloat != null)
+            bytes += 4L * triangleDataFloat.length;
+        if (triangleMesh != null)
+            bytes += 4L * triangleMesh.length + 4L * trianglePrim.length;
+        if (wideBvh != null)
+            bytes += wideBvh.getMemoryBytes();
+        return bytes;
+    }
+
+    private double getNodeSurfaceArea(int nodeIndex) {
+        int offset = 6 * nodeIndex;
+        double xx = nodeBounds[offset + 3] - nodeBounds[offset];
+        double yy = nodeBounds[offset + 4] - nodeBounds[offset + 1];
+        double zz = nodeBounds[offset + 5] - nodeBounds[offset + 2];
+        return 2 * (xx * yy + yy * zz + zz * xx);
     }
 
     /**
-     * Return the number of registered meshes.
-     *
-     * @return the number of registered meshes
+     * Replace nodeBounds with nodeBoundsFloat.
      */
-    public int getMeshCount() {
-        return meshes.size();
+    private void storeSinglePrecisionBounds() {
+        nodeBoundsFloat = new float[nodeBounds.length];
+        for (int i = 0; i < nodeBounds.length; i += 6) {
+            for (int k = 0; k < 3; k++) {
+                nodeBoundsFloat[i + k] = roundDown(nodeBounds[i + k]);
+                nodeBoundsFloat[i + 3 + k] = roundUp(nodeBounds[i + 3 + k]);
+            }
+        }
+        nodeBounds = null;
     }
 
     /**
-     * Return the mesh with the given index.
-     *
-     * @param index
-     * @return the mesh with the given index
+     * Return the largest float that is not greater than the given value.
      */
-    public Mesh getMesh(int index) {
-        return meshes.get(index);
+    static float roundDown(double x) {
+        float f = (float) x;
+        return f > x ? Math.nextDown(f) : f;
     }
 
     /**
-     * Get the bounding box of the whole BVH.
+     * Return the smallest float that is not less than the given value.
      */
-    public void getBoundingBox(Aabb3d bbox) {
-        bbox.set(this.bbox);
+    static float roundUp(double x) {
+        float f = (float) x;
+        return f < x ? Math.nextUp(f) : f;
     }
 
     /**
-     * Get the number of triangles.
+     * Copy the triangle geometry into triangleData (or triangleDataFloat), triangleMesh, and trianglePrim
+     * following the final order of the indices array.
      */
-    public int getTriangleCount() {
-        return meshOffset.get(meshOffset.size() - 1);
+    private void buildTriangleData() {
+        int size = indices.length;
+        if (singlePrecision) {
+            triangleDataFloat = new float[9 * size];
+        } else {
+            triangleData = new double[9 * size];
+        }
+        triangleMesh = new int[size];
+        trianglePrim = new int[size];
+        IntStream.range(0, size).parallel().forEach((int i) -> {
+            int idx = indices[i];
+            int meshIdx = findMesh(idx);
+            int triIdx = idx - meshOffset.get(meshIdx);
+            Mesh mesh = meshes.get(meshIdx);
+            double[] V = mesh.getPositionArray();
+            int[] F = mesh.getIndexArray();
+
+            int offset = 9 * i;
+            triangleMesh[i] = meshIdx;
+            trianglePrim[i] = triIdx;
+            for (int corner = 0; corner < 3; corner++) {
+                int v = 3 * F[3 * triIdx + corner];
+                int o = offset + 3 * corner;
+                if (singlePrecision) {
+                    /* Rounding each vertex to the nearest float keeps shared vertices shared */
+                    triangleDataFloat[o] = (float) V[v];
+                    triangleDataFloat[o + 1] = (float) V[v + 1];
+                    triangleDataFloat[o + 2] = (float) V[v + 2];
+                } else {
+                    triangleData[o] = V[v];
+                    triangleData[o + 1] = V[v + 1];
+                    triangleData[o + 2] = V[v + 2];
+                }
+            }
+        });
     }
 
     /**
-     * Return the index of the mesh containing the triangle with the given index.
+     * Ray-triangle intersection test against the triangle at the given position of the packed triangle data.
      *
-     * @param triangleIndex the index of the triangle
-     * @return the index of the mesh containing the triangle with the given index
+     * Both precisions use the watertight test of WatertightIntersector, so rays cannot slip through the
+     * shared edge of two triangles; with single-precision data the arithmetic is still done in double
+     * precision on the float vertices.
+     *
+     * @param tri         the position of the triangle in triangleData (or triangleDataFloat)
+     * @param intersector the intersector, set up for the ray
+     * @param uv          if not null, receives the barycentric coordinates (of p1 and p2) of the intersection
+     * @return the distance of the intersection along the ray if it lies within [mint, maxt],
+     * and Double.POSITIVE_INFINITY otherwise
      */
-    protected int findMesh(int triangleIndex) {
-        int searchResult = Collections.binarySearch(meshOffset, triangleIndex);
-        if (searchResult >= 0)
-            return searchResult;
-        else
-            return -(searchResult + 1) - 1;
+    double rayIntersectTriangle(int tri, WatertightIntersector intersector,
+                                double mint, double maxt, javax_.vecmath.Tuple2d uv) {
+        double t = triangleDataFloat != null
+                ? intersector.intersect(triangleDataFloat, 9 * tri, mint, maxt)
+                : intersector.intersect(triangleData, 9 * tri, mint, maxt);
+        if (uv != null && t != Double.POSITIVE_INFINITY)
+            uv.set(intersector.u, intersector.v);
+        return t;
     }
 
     /**
-     * Get the centroid of the triangle with the given index.
-     *
-     * @param triangleIndex the index of the triangle
-     * @param centroid      the receiver of the centroid value
+     * Return the calling thread's intersector, set up for the given ray.
      */
-    protected void getTriangleCentroid(int triangleIndex, javax_.vecmath.Tuple3d centroid) {
-        int meshIndex = findMesh(triangleIndex);
-        triangleIndex -= meshOffset.get(meshIndex);
-        meshes.get(meshIndex).getTriangleCentroid(triangleIndex, centroid);
+    WatertightIntersector getIntersector(double ox, double oy, double oz, double dx, double dy, double dz) {
+        WatertightIntersector intersector = rayIntersector.get();
+        intersector.setRay(ox, oy, oz, dx, dy, dz);
+        return intersector;
     }
 
     /**
-     * Get the bounding box of the triangle with the given index.
+     * Turn the node with the given index into a leaf.
      *
-     * @param triangleIndex the index of the triangle
-     * @param bbox          the receiver of the bounding box value
+     * @param nodeIndex the index of the node
+     * @param start     the position of the first triangle of the leaf in the indices array
+     * @param size      the number of triangles in the leaf
+     * @param bbox      the bounding box of the node
      */
-    protected void getTriangleBoundingBox(int triangleIndex, Aabb3d bbox) {
-        int meshIndex = findMesh(triangleIndex);
-        triangleIndex -= meshOffset.get(meshIndex);
-        meshes.get(meshIndex).getTriangleBoundingBox(triangleIndex, bbox);
+    protected void setLeaf(int nodeIndex, int start, int size, Aabb3d bbox) {
+        nodeData[2 * nodeIndex] = start;
+        nodeData[2 * nodeIndex + 1] = size;
+        setNodeBounds(nodeIndex, bbox);
     }
 
     /**
-     * Build the BVH.
+     * Turn the node with the given index into an internal node.
+     *
+     * @param nodeIndex  the index of the node
+     * @param axis       the axis along which the triangles were split; the left child holds the triangles
+     *                   with the smaller centroid coordinates
+     * @param rightChild the index of the right child
+     * @param bbox       the bounding box of the node
      */
-    public void build() {
-        int size = getTriangleCount();
-        if (size == 0)
-            return;
-        logger.info("Constructing a SAH BVH from " + meshes.size() + " mesh(es) with "
-                + size + " triangles.");
-
-        long start = System.currentTimeMillis();
-
-        nodes = new BvhNode[2*size];
-        leftAreas = new Double[size];
-        indices = new Integer[size];
-        IntStream.range(0, size).parallel().forEach((int i) -> {
-            indices[i] = i;
-        });
-
-        BvhBuildTask task = new BvhBuildTask(0, 0, size);
-        forkJoinPool.invoke(task);
-
-        long end = System.currentTimeMillis();
-        long elapsed = end - start;
-        logger.info(String.format("BVH building took %d min(s) %d second(s) %d ms",
-                elapsed / (60 * 1000), (elapsed / 1000) % 60, elapsed % 1000));
-
-        leftAreas = null;
+    protected void setInternalNode(int nodeIndex, int axis, int rightChild, Aabb3d bbox) {
+        nodeData[2 * nodeIndex] = rightChild;
+        nodeData[2 * nodeIndex + 1] = -1 - axis;
+        setNodeBounds(nodeIndex, bbox);
     }
 
-    protected class BvhNode {
-        public Aabb3d bbox = new Aabb3d();
-        public int start;
-        public int size;
-        public int axis;
-        public int rightChild;
-        public boolean isLeaf = true;
+    private void setNodeBounds(int nodeIndex, Aabb3d bbox) {
+        int offset = 6 * nodeIndex;
+        nodeBounds[offset] = bbox.pMin.x;
+        nodeBounds[offset + 1] = bbox.pMin.y;
+        nodeBounds[offset + 2] = bbox.pMin.z;
+        nodeBounds[offset + 3] = bbox.pMax.x;
+        nodeBounds[offset + 4] = bbox.pMax.y;
+        nodeBounds[offset + 5] = bbox.pMax.z;
     }
 
-    public BvhNode createLeaf(int start, int size) {
-        BvhNode node = new BvhNode();
-        node.isLeaf = true;
-        node.start = start;
-        node.size = size;
-        return node;
+    /**
+     * Check whether a ray intersects the bounding box of the node with the given index.
+     * This is the same slab test as Aabb3d.rayIntersectFast, but it reads the packed node bounds directly.
+     *
+     * @return whether the ray segment [mint, maxt] overlaps the bounding box of the node
+     */
+    boolean rayIntersectNode(int nodeIndex, double ox, double oy, double oz,
+                             double rcpX, double rcpY, double rcpZ, double mint, double maxt) {
+        return getNodeEntryDistance(nodeIndex, ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt) != Double.POSITIVE_INFINITY;
     }
 
-    public BvhNode createInternalNode(int axis, int rightChild) {
-        BvhNode node = new BvhNode();
-        node.isLeaf = false;
-        node.axis = axis;
-        node.rightChild = rightChild;
-        return node;
+    /**
+     * The same test as rayIntersectNode, returning where the ray segment enters the box.
+     *
+     * @return the distance along the ray at which the segment [mint, maxt] enters the bounding box of the node,
+     * or Double.POSITIVE_INFINITY if it misses the box
+     */
+    double getNodeEntryDistance(int nodeIndex, double ox, double oy, double oz,
+                                double rcpX, double rcpY, double rcpZ, double mint, double maxt) {
+        if (nodeBoundsFloat != null) {
+            return getNodeEntryDistanceFloat(nodeIndex, ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt);
+        }
+        int offset = 6 * nodeIndex;
+        double nearT = mint;
+        double farT = maxt;
+        double t1, t2;
+
+        if (rcpX > 0) {
+            t1 = (nodeBounds[offset] - ox) * rcpX;
+            t2 = (nodeBounds[offset + 3] - ox) * rcpX;
+        } else {
+            t2 = (nodeBounds[offset] - ox) * rcpX;
+            t1 = (nodeBounds[offset + 3] - ox) * rcpX;
+        }
+        if (nearT < t1) nearT = t1;
+        if (farT > t2) farT = t2;
+        if (nearT > farT)
+            return Double.POSITIVE_INFINITY;
+
+        if (rcpY > 0) {
+            t1 = (nodeBounds[offset + 1] - oy) * rcpY;
+            t2 = (nodeBounds[offset + 4] - oy) * rcpY;
+        } else {
+            t2 = (nodeBounds[offset + 1] - oy) * rcpY;
+            t1 = (nodeBounds[offset + 4] - oy) * rcpY;
+        }
+        if (nearT < t1) nearT = t1;
+        if (farT > t2) farT = t2;
+        if (nearT > farT)
+            return Double.POSITIVE_INFINITY;
+
+        if (rcpZ > 0) {
+            t1 = (nodeBounds[offset + 2] - oz) * rcpZ;
+            t2 = (nodeBounds[offset + 5] - oz) * rcpZ;
+        } else {
+            t2 = (nodeBounds[offset + 2] - oz) * rcpZ;
+            t1 = (nodeBounds[offset + 5] - oz) * rcpZ;
+        }
+        if (nearT < t1) nearT = t1;
+        if (farT > t2) farT = t2;
+        return nearT <= farT ? nearT : Double.POSITIVE_INFINITY;
     }
 
-    protected class CentroidComparator implements Comparator<Integer> {
-        int axis = 0;
-
-        public CentroidComparator(int axis) {
-            this.axis = axis;
+    /**
+     * The same test as getNodeEntryDistance on nodeBoundsFloat.
+     */
+    private double getNodeEntryDistanceFloat(int nodeIndex, double ox, double oy, double oz,
+                                             double rcpX, double rcpY, double rcpZ, double mint, double maxt) {
+        int offset = 6 * nodeIndex;
+        double nearT = mint;
+        double farT = maxt;
+        double t1, t2;
+
+        if (rcpX > 0) {
+            t1 = (nodeBoundsFloat[offset] - ox) * rcpX;
+            t2 = (nodeBoundsFloat[offset + 3] - ox) * rcpX;
+        } else {
+            t2 = (nodeBoundsFloat[offset] - ox) * rcpX;
+            t1 = (nodeBoundsFloat[offset + 3] - ox) * rcpX;
         }
-
-        @Override
-        public int compare(Integer i1, Integer i2) {
-            javax_.vecmath.Vector3d centroid1 = new javax_.vecmath.Vector3d();
-            javax_.vecmath.Vector3d centroid2 = new javax_.vecmath.Vector3d();
-            getTriangleCentroid(i1, centroid1);
-            getTriangleCentroid(i2, centroid2);
-            return Double.compare(VectorUtil.getComponent(centroid1, axis),
-                    VectorUtil.getComponent(centroid2, axis));
+        if (nearT < t1) nearT = t1;
+        if (farT > t2) farT = t2;
+        if (nearT > farT)
+            return Double.POSITIVE_INFINITY;
+
+        if (rcpY > 0) {
+            t1 = (nodeBoundsFloat[offset + 1] - oy) * rcpY;
+            t2 = (nodeBoundsFloat[offset + 4] - oy) * rcpY;
+        } else {
+            t2 = (nodeBoundsFloat[offset + 1] - oy) * rcpY;
+            t1 = (nodeBoundsFloat[offset + 4] - oy) * rcpY;
         }
+        if (nearT < t1) nearT = t1;
+        if (farT > t2) farT = t2;
+        if (nearT > farT)
+            return Double.POSITIVE_INFINITY;
+
+        if (rcpZ > 0) {
+            t1 = (nodeBoundsFloat[offset + 2] - oz) * rcpZ;
+            t2 = (nodeBoundsFloat[offset + 5] - oz) * rcpZ;
+        } else {
+            t2 = (nodeBoundsFloat[offset + 2] - oz) * rcpZ;
+            t1 = (nodeBoundsFloat[offset + 5] - oz) * rcpZ;
+        }
+        if (nearT < t1) nearT = t1;
+        if (farT > t2) farT = t2;
+        return nearT <= farT ? nearT : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Expand the given box by the bounding box of the given primitive, read from primBounds.
+     */
+    private void expandByPrimitive(Aabb3d bbox, int tri) {
+        int offset = 6 * tri;
+        bbox.pMin.x = Math.min(bbox.pMin.x, primBounds[offset]);
+        bbox.pMin.y = Math.min(bbox.pMin.y, primBounds[offset + 1]);
+        bbox.pMin.z = Math.min(bbox.pMin.z, primBounds[offset + 2]);
+        bbox.pMax.x = Math.max(bbox.pMax.x, primBounds[offset + 3]);
+        bbox.pMax.y = Math.max(bbox.pMax.y, primBounds[offset + 4]);
+        bbox.pMax.z = Math.max(bbox.pMax.z, primBounds[offset + 5]);
     }
 
     protected class BvhBuildTask extends RecursiveAction {
@@ -271,14 +1527,11 @@ public class Bvh {
 
             for (int axis = 0; axis < 3; axis++) {
                 /* Sort all triangles based on their centroid positions projected on the axis */
-                CentroidComparator comparator = new CentroidComparator(axis);
-                Arrays.parallelSort(indices, start, end, comparator);
+                centroidSorter.sort(primCentroids, 3, axis, start, end, true);
 
                 Aabb3d bbox = new Aabb3d();
-                Aabb3d triBbox = new Aabb3d();
                 for (int i = start; i < end; i++) {
-                    getTriangleBoundingBox(indices[i], triBbox);
-                    bbox.expandBy(triBbox);
+                    expandByPrimitive(bbox, indices[i]);
                     leftAreas[i] = bbox.getSurfaceArea();
                 }
 
@@ -290,9 +1543,7 @@ public class Bvh {
                 double triFactor = INTERSECTION_COST / nodeBbox.getSurfaceArea();
                 for (int i = size - 1; i >= 1; i--) {
                     int index = start + i;
-                    int triIndex = indices[index];
-                    getTriangleBoundingBox(triIndex, triBbox);
-                    bbox.expandBy(triBbox);
+                    expandByPrimitive(bbox, indices[index]);
                     double leftArea = leftAreas[index - 1];
                     double rightArea = bbox.getSurfaceArea();
                     int primsLeft = i;
@@ -309,20 +1560,15 @@ public class Bvh {
 
             if (bestIndex == -1) {
                 // Splitting does not reduce the cost, make a leaf.
-                BvhNode node = createLeaf(start, size);
-                node.bbox.set(nodeBbox);
-                nodes[nodeIndex] = node;
+                setLeaf(nodeIndex, start, size, nodeBbox);
             } else {
-                CentroidComparator comparator = new CentroidComparator(bestAxis);
-                Arrays.parallelSort(indices, start, end, comparator);
+                centroidSorter.sort(primCentroids, 3, bestAxis, start, end, true);
 
                 int leftCount = bestIndex;
                 int nodeIndexLeft = nodeIndex + 1;
                 int nodeIndexRight = nodeIndex + 2 * leftCount;
 
-                BvhNode node = createInternalNode(bestIndex, nodeIndexRight);
-                node.bbox.set(nodeBbox);
-                nodes[nodeIndex] = node;
+                setInternalNode(nodeIndex, bestAxis, nodeIndexRight, nodeBbox);
 
                 BvhBuildTask leftTask = new BvhBuildTask(nodeIndexLeft, start, start+leftCount);
                 BvhBuildTask rightTask = new BvhBuildTask(nodeIndexRight, start+leftCount, end);
@@ -339,14 +1585,11 @@ public class Bvh {
 
             for (int axis = 0; axis < 3; axis++) {
                 /* Sort all triangles based on their centroid positions projected on the axis */
-                CentroidComparator comparator = new CentroidComparator(axis);
-                Arrays.sort(indices, start, end, comparator);
+                centroidSorter.sort(primCentroids, 3, axis, start, end, false);
 
                 Aabb3d bbox = new Aabb3d();
-                Aabb3d triBbox = new Aabb3d();
                 for (int i = start; i < end; i++) {
-                    getTriangleBoundingBox(indices[i], triBbox);
-                    bbox.expandBy(triBbox);
+                    expandByPrimitive(bbox, indices[i]);
                     leftAreas[i] = bbox.getSurfaceArea();
                 }
 
@@ -358,9 +1601,7 @@ public class Bvh {
                 double triFactor = INTERSECTION_COST / nodeBbox.getSurfaceArea();
                 for (int i = size - 1; i >= 1; i--) {
                     int index = start + i;
-                    int triIndex = indices[index];
-                    getTriangleBoundingBox(triIndex, triBbox);
-                    bbox.expandBy(triBbox);
+                    expandByPrimitive(bbox, indices[index]);
                     double leftArea = leftAreas[index - 1];
                     double rightArea = bbox.getSurfaceArea();
                     int primsLeft = i;
@@ -377,20 +1618,15 @@ public class Bvh {
 
             if (bestIndex == -1) {
                 // Splitting does not reduce the cost, make a leaf.
-                BvhNode node = createLeaf(start, size);
-                node.bbox.set(nodeBbox);
-                nodes[nodeIndex] = node;
+                setLeaf(nodeIndex, start, size, nodeBbox);
             } else {
-                CentroidComparator comparator = new CentroidComparator(bestAxis);
-                Arrays.sort(indices, start, end, comparator);
+                centroidSorter.sort(primCentroids, 3, bestAxis, start, end, false);
 
                 int leftCount = bestIndex;
                 int nodeIndexLeft = nodeIndex + 1;
                 int nodeIndexRight = nodeIndex + 2 * leftCount;
 
-                BvhNode node = createInternalNode(bestIndex, nodeIndexRight);
-                node.bbox.set(nodeBbox);
-                nodes[nodeIndex] = node;
+                setInternalNode(nodeIndex, bestAxis, nodeIndexRight, nodeBbox);
 
                 executeSerially(nodeIndexLeft, start, start + leftCount);
                 executeSerially(nodeIndexRight, start + leftCount, end);
@@ -398,6 +1634,241 @@ public class Bvh {
         }
     }
 
+    /**
+     * Builds the subtree over indices[start..end) by binning triangle centroids along each axis
+     * and evaluating the SAH only at bin boundaries.  Triangles are partitioned in place, so no
+     * sorting is performed.
+     */
+    protected class BinnedBuildTask extends RecursiveAction {
+        int nodeIndex;
+        int start;
+        int end;
+
+        public BinnedBuildTask(int nodeIndex, int start, int end) {
+            this.nodeIndex = nodeIndex;
+            this.start = start;
+            this.end = end;
+        }
+
+        public void compute() {
+            int size = end - start;
+
+            Aabb3d nodeBbox = new Aabb3d();
+            double cMinX = Double.MAX_VALUE, cMinY = Double.MAX_VALUE, cMinZ = Double.MAX_VALUE;
+            double cMaxX = -Double.MAX_VALUE, cMaxY = -Double.MAX_VALUE, cMaxZ = -Double.MAX_VALUE;
+            for (int i = start; i < end; i++) {
+                int tri = indices[i];
+                expandByPrimitive(nodeBbox, tri);
+                double cx = primCentroids[3 * tri];
+                double cy = primCentroids[3 * tri + 1];
+                double cz = primCentroids[3 * tri + 2];
+                cMinX = Math.min(cMinX, cx); cMaxX = Math.max(cMaxX, cx);
+                cMinY = Math.min(cMinY, cy); cMaxY = Math.max(cMaxY, cy);
+                cMinZ = Math.min(cMinZ, cz); cMaxZ = Math.max(cMaxZ, cz);
+            }
+            double[] cMin = new double[] { cMinX, cMinY, cMinZ };
+            double[] cExtent = new double[] { cMaxX - cMinX, cMaxY - cMinY, cMaxZ - cMinZ };
+
+            double bestCost = INTERSECTION_COST * size;
+            int bestBin = -1;
+            int bestAxis = -1;
+
+            if (size > 1) {
+                int[] binCounts = new int[binCount];
+                double[] binBounds = new double[6 * binCount];
+                double[] rightAreas = new double[binCount];
+                Aabb3d bbox = new Aabb3d();
+                double triFactor = INTERSECTION_COST / nodeBbox.getSurfaceArea();
+
+                for (int axis = 0; axis < 3; axis++) {
+                    if (!(cExtent[axis] > 0))
+                        continue;
+
+                    Arrays.fill(binCounts, 0);
+                    for (int b = 0; b < binCount; b++) {
+                        resetBounds(binBounds, b);
+                    }
+                    double binScale = binCount / cExtent[axis];
+                    for (int i = start; i < end; i++) {
+                        int tri = indices[i];
+                        int b = getBin(primCentroids[3 * tri + axis], cMin[axis], binScale);
+                        binCounts[b]++;
+                        expandBounds(binBounds, b, primBounds, tri);
+                    }
+
+                    // Sweep from the right to find the area to the right of each bin boundary.
+                    bbox.reset();
+                    for (int b = binCount - 1; b >= 1; b--) {
+                        expandByBin(bbox, binBounds, b);
+                        rightAreas[b] = bbox.getSurfaceArea();
+                    }
+
+                    // Sweep from the left and evaluate the SAH at each bin boundary.
+                    bbox.reset();
+                    int primsLeft = 0;
+                    for (int b = 0; b < binCount - 1; b++) {
+                        expandByBin(bbox, binBounds, b);
+                        primsLeft += binCounts[b];
+                        int primsRight = size - primsLeft;
+                        if (primsLeft == 0 || primsRight == 0)
+                            continue;
+                        double sahCost = 2.0 * TRAVERSAL_COST
+                                + triFactor * (primsLeft * bbox.getSurfaceArea() + primsRight * rightAreas[b + 1]);
+                        if (sahCost < bestCost) {
+                            bestCost = sahCost;
+                            bestBin = b;
+                            bestAxis = axis;
+                        }
+                    }
+                }
+            }
+
+            if (bestAxis == -1) {
+                // Splitting does not reduce the cost, make a leaf.
+                setLeaf(nodeIndex, start, size, nodeBbox);
+                return;
+            }
+
+            // Partition the triangles so that those in bins [0, bestBin] come first.
+            double binScale = binCount / cExtent[bestAxis];
+            int left = start;
+            int right = end - 1;
+            while (left <= right) {
+                if (getBin(primCentroids[3 * indices[left] + bestAxis], cMin[bestAxis], binScale) <= bestBin) {
+                    left++;
+                } else {
+                    int temp = indices[left];
+                    indices[left] = indices[right];
+                    indices[right] = temp;
+                    right--;
+                }
+            }
+
+            int leftCount = left - start;
+            int nodeIndexLeft = nodeIndex + 1;
+            int nodeIndexRight = nodeIndex + 2 * leftCount;
+            setInternalNode(nodeIndex, bestAxis, nodeIndexRight, nodeBbox);
+
+            BinnedBuildTask leftTask = new BinnedBuildTask(nodeIndexLeft, start, start + leftCount);
+            BinnedBuildTask rightTask = new BinnedBuildTask(nodeIndexRight, start + leftCount, end);
+            if (size < SERIAL_THRESHOLD) {
+                leftTask.compute();
+                rightTask.compute();
+            } else {
+                invokeAll(leftTask, rightTask);
+            }
+        }
+
+        private int getBin(double centroid, double cMin, double binScale) {
+            int b = (int) ((centroid - cMin) * binScale);
+            return Math.max(0, Math.min(binCount - 1, b));
+        }
+
+        private void expandByBin(Aabb3d bbox, double[] binBounds, int b) {
+            int offset = 6 * b;
+            bbox.pMin.x = Math.min(bbox.pMin.x, binBounds[offset]);
+            bbox.pMin.y = Math.min(bbox.pMin.y, binBounds[offset + 1]);
+            bbox.pMin.z = Math.min(bbox.pMin.z, binBounds[offset + 2]);
+            bbox.pMax.x = Math.max(bbox.pMax.x, binBounds[offset + 3]);
+            bbox.pMax.y = Math.max(bbox.pMax.y, binBounds[offset + 4]);
+            bbox.pMax.z = Math.max(bbox.pMax.z, binBounds[offset + 5]);
+        }
+
+        private void resetBounds(double[] bounds, int b) {
+            int offset = 6 * b;
+            bounds[offset] = bounds[offset + 1] = bounds[offset + 2] = Double.MAX_VALUE;
+            bounds[offset + 3] = bounds[offset + 4] = bounds[offset + 5] = -Double.MAX_VALUE;
+        }
+
+        private void expandBounds(double[] bounds, int b, double[] source, int s) {
+            int offset = 6 * b;
+            int sourceOffset = 6 * s;
+            for (int k = 0; k < 3; k++) {
+                bounds[offset + k] = Math.min(bounds[offset + k], source[sourceOffset + k]);
+                bounds[offset + 3 + k] = Math.max(bounds[offset + 3 + k], source[sourceOffset + 3 + k]);
+            }
+        }
+    }
+
+    /**
+     * Check whether a ray hits any triangle registered with the BVH.
+     *
+     * This is the query to use for shadow rays.  Traversal stops at the first
+     * intersection found, no intersection information is computed, and nothing
+     * is allocated per call.
+     *
+     * @param ray the ray
+     * @return whether the ray hits something
+     */
+    @Override
+    public boolean occluded(Ray ray) {
+        /* Use an adaptive ray epsilon */
+        double mint = getAdaptiveMint(ray);
+        double maxt = ray.maxt;
+
+        if (maxt < mint) {
+            return false;
+        }
+
+        double ox = ray.o.x, oy = ray.o.y, oz = ray.o.z;
+        double dx = ray.d.x, dy = ray.d.y, dz = ray.d.z;
+        if (anyHit(ox, oy, oz, dx, dy, dz, mint, maxt)) {
+            return true;
+        }
+        return instanceBvh != null && instanceBvh.occluded(ox, oy, oz, dx, dy, dz, mint, maxt);
+    }
+
+    /**
+     * Any-hit traversal of the triangles of the registered meshes.
+     *
+     * @return whether the ray segment [mint, maxt] hits any triangle
+     */
+    boolean anyHit(double ox, double oy, double oz, double dx, double dy, double dz, double mint, double maxt) {
+        if (nodeData == null) {
+            return false;
+        }
+        if (wideBvh != null) {
+            return wideBvh.occluded(ox, oy, oz, dx, dy, dz, mint, maxt);
+        }
+
+        double rcpX = 1.0 / dx, rcpY = 1.0 / dy, rcpZ = 1.0 / dz;
+        int[] stack = traversalStack.get();
+        WatertightIntersector intersector = getIntersector(ox, oy, oz, dx, dy, dz);
+        int stackIdx = 0;
+        int nodeIdx = 0;
+        int nodesVisited = 0;
+        int boxTests = 0;
+        int trianglesTested = 0;
+
+        while (true) {
+            boxTests++;
+            if (rayIntersectNode(nodeIdx, ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt)) {
+                nodesVisited++;
+                int first = nodeData[2 * nodeIdx];
+                int count = nodeData[2 * nodeIdx + 1];
+                if (count < 0) {
+                    stack[stackIdx++] = first + 1;
+                    nodeIdx = first;
+                    continue;
+                }
+                for (int i = first; i < first + count; i++) {
+                    trianglesTested++;
+                    if (rayIntersectTriangle(i, intersector, mint, maxt, null) != Double.POSITIVE_INFINITY) {
+                        if (stats.counting)
+                            stats.recordShadowRays(1, nodesVisited, boxTests, trianglesTested, 1);
+                        return true;
+                    }
+                }
+            }
+            if (stackIdx == 0)
+                break;
+            nodeIdx = stack[--stackIdx];
+        }
+        if (stats.counting)
+            stats.recordShadowRays(1, nodesVisited, boxTests, trianglesTested, 0);
+        return false;
+    }
+
     /**
      * Intersect a ray against all triangle meshes registered
      * with the BVH
@@ -409,144 +1880,298 @@ public class Bvh {
      * information is really needed. When set to true, the
      * function just checks whether or not there is occlusion, but without
      * providing any more detail (i.e. its will not be filled with
-     * contents). This is usually much faster.
+     * contents). This is the same as calling occluded(_ray).
      *
      * @param _ray the ray
      * @param its the receiver of the intersection information
      * @param shadowRay whether the ray is a shadow ray
      * @return whether the ray hits something
      */
+    @Override
     public boolean rayIntersect(Ray _ray, Intersection its, boolean shadowRay) {
-        int nodeIdx = 0;
-        int stackIdx = 0;
-        int[] stack = new int[64];
-        Mesh.TriangleIntersection triIts = new Mesh.TriangleIntersection();
-
+        if (shadowRay)
+            return occluded(_ray);
 
         /* Use an adaptive ray epsilon */
-        Ray ray = new Ray(_ray);
-        double[] dRcp = new double[] { 1.0 / ray.d.x, 1.0 / ray.d.y, 1.0 / ray.d.z };
-        if (ray.mint == Constants.EPSILON) {
-            ray.mint = Math.max(ray.mint, ray.mint * Math.max(Math.abs(ray.o.x), Math.max(Math.abs(ray.o.y), Math.abs(ray.o.z))));
+        double mint = getAdaptiveMint(_ray);
+        double maxt = _ray.maxt;
+
+        if (maxt < mint) {
+            return false;
+        }
+
+        double ox = _ray.o.x, oy = _ray.o.y, oz = _ray.o.z;
+        double dx = _ray.d.x, dy = _ray.d.y, dz = _ray.d.z;
+        int hitTriangle = closestHit(ox, oy, oz, dx, dy, dz, mint, maxt, its);
+        if (hitTriangle >= 0) {
+            maxt = its.t;
         }
-        //System.out.println(ray);
 
-        if (nodes == null || ray.maxt < ray.mint) {
+        /* An instance hit can only be closer than the triangle hit, and fills in its itself */
+        if (instanceBvh != null && instanceBvh.rayIntersect(ox, oy, oz, dx, dy, dz, mint, maxt, its)) {
+            return true;
+        }
+        if (hitTriangle < 0) {
             return false;
         }
+        fillIntersection(hitTriangle, its);
+        return true;
+    }
+
+    /**
+     * Find the closest hit of every ray of a batch.
+     *
+     * The rays traverse the binary tree together (see BatchTraversal), so each node is fetched once for
+     * all rays that reach it; this also applies when the BVH is wide.  The results are the same as calling
+     * rayIntersect(ray, its, false) for each ray: hits.hit, hits.t, and hits.intersections are filled in
+     * for the first rays.getSize() entries.
+     *
+     * @param rays the rays
+     * @param hits the receiver of the results
+     */
+    @Override
+    public void rayIntersect(RayBatch rays, HitBatch hits) {
+        int size = rays.getSize();
+        if (hits.getCapacity() < size) {
+            throw new RuntimeException("Bvh.rayIntersect(): The hit batch is smaller than the ray batch.");
+        }
+        BatchTraversal traversal = batchTraversal.get();
+        traversal.prepare(rays);
+        traversal.closestHit(rays);
+
+        for (int i = 0; i < size; i++) {
+            Intersection its = hits.intersections[i];
+            double mint = traversal.mint[i];
+            double maxt = traversal.maxt[i];
+            int hitTriangle = traversal.triangle[i];
+            boolean hit;
+            if (instanceBvh != null && maxt >= mint && instanceBvh.rayIntersect(rays.ox[i], rays.oy[i], rays.oz[i],
+                    rays.dx[i], rays.dy[i], rays.dz[i], mint, maxt, its)) {
+                hit = true;
+            } else if (hitTriangle >= 0) {
+                its.t = maxt;
+                its.uv.set(traversal.u[i], traversal.v[i]);
+                fillIntersection(hitTriangle, its);
+                hit = true;
+            } else {
+                hit = false;
+            }
+            hits.hit[i] = hit;
+            hits.t[i] = hit ? its.t : Double.POSITIVE_INFINITY;
+        }
+    }
 
-        boolean foundIntersection = false;
-        int f = 0;
+    /**
+     * Find out for every ray of a batch whether it hits anything.
+     *
+     * The batch counterpart of occluded(Ray).  Only hits.hit is filled in, for the first rays.getSize() entries.
+     *
+     * @param rays the rays
+     * @param hits the receiver of the results
+     */
+    @Override
+    public void occluded(RayBatch rays, HitBatch hits) {
+        int size = rays.getSize();
+        if (hits.getCapacity() < size) {
+            throw new RuntimeException("Bvh.occluded(): The hit batch is smaller than the ray batch.");
+        }
+        BatchTraversal traversal = batchTraversal.get();
+        traversal.prepare(rays);
+        traversal.occluded(rays);
+
+        for (int i = 0; i < size; i++) {
+            double mint = traversal.mint[i];
+            double maxt = traversal.maxt[i];
+            hits.hit[i] = traversal.triangle[i] >= 0
+                    || (instanceBvh != null && maxt >= mint && instanceBvh.occluded(rays.ox[i], rays.oy[i], rays.oz[i],
+                    rays.dx[i], rays.dy[i], rays.dz[i], mint, maxt));
+        }
+    }
 
-        //int nodesVisited = 0;
-        while (true) {
-            //nodesVisited++;
+    /**
+     * Closest-hit traversal of the triangles of the registered meshes.
+     *
+     * Writes the distance and barycentric coordinates of the closest hit to its.t and its.uv.
+     *
+     * @return the position in the packed triangle data of the closest triangle hit, or -1 if there is none
+     */
+    int closestHit(double ox, double oy, double oz, double dx, double dy, double dz,
+                   double mint, double maxt, Intersection its) {
+        if (nodeData == null) {
+            return -1;
+        }
+        if (wideBvh != null) {
+            return wideBvh.rayIntersect(ox, oy, oz, dx, dy, dz, mint, maxt, its);
+        }
+        return rayIntersectBinary(ox, oy, oz, dx, dy, dz, mint, maxt, its);
+    }
 
-            BvhNode node = nodes[nodeIdx];
-            /*
-            System.out.println("stackIdx = " + stackIdx);
-            System.out.println("nodeIdx = " + nodeIdx);
-            System.out.println("node.bbox = " + node.bbox);
-            System.out.println("node is leaf?: " + (node instanceof BvhLeaf));
-            */
+    /**
+     * Fill in the intersection record for a hit found by closestHit().
+     *
+     * @param hitTriangle the position in the packed triangle data of the triangle hit
+     * @param its         the intersection record, whose t and uv fields hold the result of closestHit()
+     */
+    void fillIntersection(int hitTriangle, Intersection its) {
+        fillIntersection(meshes.get(triangleMesh[hitTriangle]), trianglePrim[hitTriangle], its);
+    }
 
-            if (!node.bbox.rayIntersectFast(ray, dRcp)) {
-                if (stackIdx == 0)
-                    break;
-                stackIdx--;
-                nodeIdx = stack[stackIdx];
-                continue;
-            }
+    /**
+     * Fill in the intersection record for a hit on the given triangle of a mesh.  Shared by all accelerators.
+     *
+     * @param mesh the mesh hit
+     * @param f    the index of the triangle hit in the mesh
+     * @param its  the intersection record, whose t and uv fields hold the distance and barycentric
+     *             coordinates of the hit
+     */
+    static void fillIntersection(Mesh mesh, int f, Intersection its) {
+        its.mesh = mesh;
+
+        /* Find the barycentric coordinates */
+        double b0 = 1 - its.uv.x - its.uv.y, b1 = its.uv.x, b2 = its.uv.y;
+
+        /* References to all relevant mesh buffers */
+        double[] V = mesh.getPositionArray();
+        float[] N = mesh.getNormalArray();
+        float[] UV = mesh.getTexCoordArray();
+        int[] F = mesh.getIndexArray();
+
+        /* Vertex indices of the triangle */
+        int idx0 = F[3 * f];
+        int idx1 = F[3 * f + 1];
+        int idx2 = F[3 * f + 2];
+
+        /* Compute the intersection positon accurately using barycentric coordinates */
+        int p0 = 3 * idx0, p1 = 3 * idx1, p2 = 3 * idx2;
+        its.p.set(b0 * V[p0] + b1 * V[p1] + b2 * V[p2],
+                b0 * V[p0 + 1] + b1 * V[p1 + 1] + b2 * V[p2 + 1],
+                b0 * V[p0 + 2] + b1 * V[p1 + 2] + b2 * V[p2 + 2]);
+
+        /* Compute proper texture coordinates if provided by the mesh */
+        if (UV.length > 0) {
+            int t0 = 2 * idx0, t1 = 2 * idx1, t2 = 2 * idx2;
+            its.uv.set(b0 * UV[t0] + b1 * UV[t1] + b2 * UV[t2],
+                    b0 * UV[t0 + 1] + b1 * UV[t1 + 1] + b2 * UV[t2 + 1]);
+        }
 
-            if (!node.isLeaf) {
-                stack[stackIdx] = node.rightChild;
-                stackIdx++;
-                nodeIdx++;
+        /* Compute the geometry frame */
+        javax_.vecmath.Vector3d v1 = new javax_.vecmath.Vector3d(
+                V[p1] - V[p0], V[p1 + 1] - V[p0 + 1], V[p1 + 2] - V[p0 + 2]);
+        javax_.vecmath.Vector3d v2 = new javax_.vecmath.Vector3d(
+                V[p2] - V[p0], V[p2 + 1] - V[p0 + 1], V[p2 + 2] - V[p0 + 2]);
+        javax_.vecmath.Vector3d n = new javax_.vecmath.Vector3d();  n.cross(v1, v2);
+        its.geoFrame.setFromNormal(n);
+
+        if (N.length > 0) {
+            /* Compute the shading frame. Note that for simplicity,
+            the current implementation doesn't attempt to provide
+            tangents that are continuous across the surface. That
+            means that this code will need to be modified to be able
+            use anisotropic BRDFs, which need tangent continuity */
+            n.set(b0 * N[p0] + b1 * N[p1] + b2 * N[p2],
+                    b0 * N[p0 + 1] + b1 * N[p1 + 1] + b2 * N[p2 + 1],
+                    b0 * N[p0 + 2] + b1 * N[p1 + 2] + b2 * N[p2 + 2]);
+            its.shFrame.setFromNormal(n);
+        } else {
+            its.shFrame.set(its.geoFrame);
+        }
+    }
+
+    /**
+     * Closest-hit traversal of the binary tree.
+     *
+     * Writes the distance and barycentric coordinates of the closest hit to its.t and its.uv.
+     *
+     * @return the position in the packed triangle data of the closest triangle hit, or -1 if there is none
+     */
+    private int rayIntersectBinary(double ox, double oy, double oz, double dx, double dy, double dz,
+                                   double mint, double maxt, Intersection its) {
+        int stackIdx = 0;
+        int[] stack = traversalStack.get();
+        double[] distances = distanceStack.get();
+        WatertightIntersector intersector = getIntersector(ox, oy, oz, dx, dy, dz);
+
+        double rcpX = 1.0 / dx, rcpY = 1.0 / dy, rcpZ = 1.0 / dz;
+
+        int hitTriangle = -1;
+
+        int nodesVisited = 0;
+        int boxTests = 1;
+        int trianglesTested = 0;
+        int nodeIdx = rayIntersectNode(0, ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt) ? 0 : -1;
+        while (nodeIdx >= 0) {
+            nodesVisited++;
+
+            int first = nodeData[2 * nodeIdx];
+            int count = nodeData[2 * nodeIdx + 1];
+            if (count < 0) {
+                /* Test both children and visit the nearer one first so that maxt shrinks early.  The farther
+                   one is pushed with its entry distance, so that it can be dropped once a closer hit is found. */
+                double tLeft = getNodeEntryDistance(first, ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt);
+                double tRight = getNodeEntryDistance(first + 1, ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt);
+                boxTests += 2;
+                if (tLeft != Double.POSITIVE_INFINITY && tRight != Double.POSITIVE_INFINITY) {
+                    if (tRight < tLeft) {
+                        stack[stackIdx] = first;
+                        distances[stackIdx] = tLeft;
+                        nodeIdx = first + 1;
+                    } else {
+                        stack[stackIdx] = first + 1;
+                        distances[stackIdx] = tRight;
+                        nodeIdx = first;
+                    }
+                    stackIdx++;
+                    continue;
+                } else if (tLeft != Double.POSITIVE_INFINITY) {
+                    nodeIdx = first;
+                    continue;
+                } else if (tRight != Double.POSITIVE_INFINITY) {
+                    nodeIdx = first + 1;
+                    continue;
+                }
             } else {
-                for (int i = node.start; i < node.start + node.size; i++) {
-                    int idx = indices[i];
-                    int meshIdx = findMesh(idx);
-                    Mesh mesh = meshes.get(meshIdx);
-                    int triIdx = idx - meshOffset.get(meshIdx);
-
-                    if (mesh.rayIntersect(triIdx, ray, triIts)) {
-                        if (shadowRay)
-                            return true;
-                        foundIntersection = true;
-                        ray.maxt = its.t = triIts.t;
-                        its.uv.set(triIts.bary.y, triIts.bary.z);
-                        its.mesh = mesh;
-                        f = triIdx;
+                trianglesTested += count;
+                for (int i = first; i < first + count; i++) {
+                    double t = rayIntersectTriangle(i, intersector, mint, maxt, its.uv);
+                    if (t != Double.POSITIVE_INFINITY) {
+                        maxt = its.t = t;
+                        hitTriangle = i;
                     }
                 }
-                if (stackIdx == 0)
-                    break;
+            }
+
+            /* Pop the next node that the ray enters before the closest hit found so far */
+            nodeIdx = -1;
+            while (stackIdx > 0) {
                 stackIdx--;
-                nodeIdx = stack[stackIdx];
-                continue;
+                if (distances[stackIdx] <= maxt) {
+                    nodeIdx = stack[stackIdx];
+                    break;
+                }
             }
         }
-        //System.out.println("nodesVisited = " + nodesVisited);
-
-        if (foundIntersection) {
-            /* Find the barycentric coordinates */
-            javax_.vecmath.Vector3d bary = new javax_.vecmath.Vector3d(1 - its.uv.x - its.uv.y, its.uv.x, its.uv.y);
-
-            /* References to all relevant mesh buffers */
-            Mesh mesh = its.mesh;
-            List<javax_.vecmath.Point3d> V = mesh.getPositions();
-            List<javax_.vecmath.Vector3d> N = mesh.getNormals();
-            List<javax_.vecmath.Vector2d> UV = mesh.getTexCoords();
-            List<javax_.vecmath.Point3i> F = mesh.getTriangles();
-
-            /* Vertex indices of the triangle */
-            javax_.vecmath.Point3i tri = F.get(f);
-            int idx0 = tri.x;
-            int idx1 = tri.y;
-            int idx2 = tri.z;
-
-            javax_.vecmath.Point3d p0 = V.get(idx0);
-            javax_.vecmath.Point3d p1 = V.get(idx1);
-            javax_.vecmath.Point3d p2 = V.get(idx2);
-
-            /* Compute the intersection positon accurately using barycentric coordinates */
-            its.p.set(0,0,0);
-            its.p.scaleAdd(bary.x, p0, its.p);
-            its.p.scaleAdd(bary.y, p1, its.p);
-            its.p.scaleAdd(bary.z, p2, its.p);
-
-            /* Compute proper texture coordinates if provided by the mesh */
-            if (UV.size() > 0) {
-                its.uv.set(0,0);
-                its.uv.scaleAdd(bary.x, UV.get(idx0), its.uv);
-                its.uv.scaleAdd(bary.y, UV.get(idx1), its.uv);
-                its.uv.scaleAdd(bary.z, UV.get(idx2), its.uv);
-            }
-
-            /* Compute the geometry frame */
-            javax_.vecmath.Vector3d v1 = new javax_.vecmath.Vector3d();
-            v1.sub(p1, p0);
-            javax_.vecmath.Vector3d v2 = new javax_.vecmath.Vector3d();
-            v2.sub(p2, p0);
-            javax_.vecmath.Vector3d n = new javax_.vecmath.Vector3d();  n.cross(v1, v2);
-            its.geoFrame.setFromNormal(n);
-
-            if (N.size() > 0) {
-                /* Compute the shading frame. Note that for simplicity,
-                the current implementation doesn't attempt to provide
-                tangents that are continuous across the surface. That
-                means that this code will need to be modified to be able
-                use anisotropic BRDFs, which need tangent continuity */
-                n.set(0, 0, 0);
-                n.scaleAdd(bary.x, N.get(idx0), n);
-                n.scaleAdd(bary.y, N.get(idx1), n);
-                n.scaleAdd(bary.z, N.get(idx2), n);
-                its.shFrame.setFromNormal(n);
-            } else {
-                its.shFrame.set(its.geoFrame);
-            }
+        if (stats.counting)
+            stats.recordRays(1, nodesVisited, boxTests, trianglesTested);
+
+        return hitTriangle;
+    }
+
+    public static class Builder extends WakameObject.Builder {
+        @Override
+        protected WakameObject createInstance() {
+            return new Bvh();
         }
+    }
 
-        return foundIntersection;
+    /**
+     * Builds a Bvh whose build mode defaults to spatial splits, for &lt;accel type="sbvh"/&gt;.
+     */
+    public static class SpatialBuilder extends WakameObject.Builder {
+        @Override
+        protected WakameObject createInstance() {
+            Bvh bvh = new Bvh();
+            bvh.setBuildMode(BuildMode.Spatial);
+            return bvh;
+        }
     }
 }
@@ -0,0 +1,204 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wakame.mesh.Mesh;
+import wakame.util.CacheFileUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * On-disk cache of a built BVH
+ *
+ * The file stores the node arrays and the triangle indices of a Bvh, together with a key: the SHA-256 hash
+ * of the vertex positions and triangles of all meshes plus the build parameters.  A cached tree is only
+ * used when the key matches, so editing a mesh or changing the build mode simply causes a rebuild that
+ * overwrites the file.
+ *
+ * File layout (little endian): magic, version, key (32 bytes), node count, index count, node bounds
+ * (6 doubles per node), node data (2 ints per node), indices.  Nodes are written in depth-first order,
+ * which drops the unused slots that the builders leave in the node arrays.
+ */
+class BvhCache {
+    /**
+     * The logger
+     */
+    private static Logger logger = LoggerFactory.getLogger(BvhCache.class);
+    /**
+     * "WBVH" in little endian.
+     */
+    private static final int MAGIC = 0x48564257;
+    /**
+     * Bumped whenever the file layout or the meaning of the node arrays changes.
+     */
+    private static final int VERSION = 2;
+    /**
+     * Size of the key in bytes.
+     */
+    private static final int KEY_SIZE = 32;
+    /**
+     * Size of the header in bytes.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + KEY_SIZE + 4 + 4;
+
+    /**
+     * Node bounds of the cached tree, in the layout of Bvh.nodeBounds.
+     */
+    double[] nodeBounds;
+    /**
+     * Node data of the cached tree, in the layout of Bvh.nodeData.
+     */
+    int[] nodeData;
+    /**
+     * Triangle indices referenced by the leaves.
+     */
+    int[] indices;
+
+    private BvhCache() {
+        // NO-OP
+    }
+
+    /**
+     * Compute the key identifying a tree built over the given meshes with the given parameters.
+     *
+     * @return the key
+     */
+    static byte[] computeKey(List<Mesh> meshes, Bvh.BuildMode buildMode, int binCount, double splitBudget,
+                             boolean perMesh, Bvh.NodeLayout nodeLayout) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(VERSION);
+        buffer.putInt(buildMode.ordinal());
+        buffer.putInt(binCount);
+        buffer.putDouble(splitBudget);
+        buffer.putInt(perMesh ? 1 : 0);
+        buffer.putInt(nodeLayout.ordinal());
+        buffer.putDouble(Bvh.TRAVERSAL_COST);
+        buffer.putDouble(Bvh.INTERSECTION_COST);
+        buffer.putInt(meshes.size());
+        for (Mesh mesh : meshes) {
+            double[] positions = mesh.getPositionArray();
+            int[] indices = mesh.getIndexArray();
+            buffer.putInt(mesh.getVertexCount());
+            buffer.putInt(mesh.getTriangleCount());
+            for (double x : positions) {
+                if (buffer.remaining() < 8)
+                    flush(digest, buffer);
+                buffer.putDouble(x);
+            }
+            for (int index : indices) {
+                if (buffer.remaining() < 4)
+                    flush(digest, buffer);
+                buffer.putInt(index);
+            }
+            flush(digest, buffer);
+        }
+        flush(digest, buffer);
+        return digest.digest();
+    }
+
+    private static void flush(MessageDigest digest, ByteBuffer buffer) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Load the tree stored in the given file if its key matches.
+     *
+     * @param file          the cache file
+     * @param key           the key of the tree that is wanted
+     * @param triangleCount the number of triangles the indices may refer to
+     * @return the cached tree, or null if the file does not exist, is stale, or cannot be read
+     */
+    static BvhCache load(File file, byte[] key, int triangleCount) {
+        MappedByteBuffer buffer = CacheFileUtil.map(file, "BVH cache", HEADER_SIZE);
+        if (buffer == null)
+            return null;
+        long fileSize = buffer.capacity();
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            return null;
+        byte[] fileKey = new byte[KEY_SIZE];
+        buffer.get(fileKey);
+        if (!Arrays.equals(fileKey, key)) {
+            logger.info("BVH cache \"" + file + "\" is stale.");
+            return null;
+        }
+        int nodeCount = buffer.getInt();
+        int indexCount = buffer.getInt();
+        if (nodeCount <= 0 || indexCount < 0
+                || fileSize != HEADER_SIZE + 56L * nodeCount + 4L * indexCount)
+            return null;
+
+        BvhCache cache = new BvhCache();
+        cache.nodeBounds = new double[6 * nodeCount];
+        cache.nodeData = new int[2 * nodeCount];
+        cache.indices = new int[indexCount];
+        buffer.asDoubleBuffer().get(cache.nodeBounds);
+        buffer.position(buffer.position() + 48 * nodeCount);
+        buffer.asIntBuffer().get(cache.nodeData);
+        buffer.position(buffer.position() + 8 * nodeCount);
+        buffer.asIntBuffer().get(cache.indices);
+
+        for (int index : cache.indices) {
+            if (index < 0 || index >= triangleCount)
+                return null;
+        }
+        return cache;
+    }
+
+    /**
+     * Write a tree to the given file.  The arrays are streamed to the file rather than copied into a buffer
+     * first, and a tree whose file would be too large to map is not written (see CacheFileUtil).
+     *
+     * @param file       the cache file
+     * @param key        the key of the tree
+     * @param nodeBounds the node bounds, in the layout of Bvh.nodeBounds
+     * @param nodeData   the node data, in the layout of Bvh.nodeData, without unused nodes
+     * @param indices    the triangle indices referenced by the leaves
+     */
+    static void save(File file, byte[] key, double[] nodeBounds, int[] nodeData, int[] indices) {
+        int nodeCount = nodeData.length / 2;
+        long size = HEADER_SIZE + 56L * nodeCount + 4L * indices.length;
+        CacheFileUtil.write(file, "BVH cache", size, (CacheFileUtil.Output output) -> {
+            output.putInt(MAGIC);
+            output.putInt(VERSION);
+            output.put(key);
+            output.putInt(nodeCount);
+            output.putInt(indices.length);
+            output.putDoubles(nodeBounds, 0, 6 * nodeCount);
+            output.putInts(nodeData, 0, 2 * nodeCount);
+            output.putInts(indices, 0, indices.length);
+        });
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of a Bvh
+ *
+ * The build statistics (node count, leaf-size histogram, maximum depth, SAH cost, and memory footprint)
+ * are filled in by Bvh.build() and Bvh.refit().  The traversal counters are only updated while counting
+ * is turned on with setCounting(); they are LongAdders, so render threads update them without locking.
+ * Rays traced through instances are counted by the BVHs of the instanced shapes, not by this one.
+ */
+public class BvhStats {
+    /**
+     * Leaves with at least this many triangles share the last bin of the leaf-size histogram.
+     */
+    public static final int MAX_LEAF_SIZE = 16;
+
+    // Build statistics.
+    private int nodeCount;
+    private int leafCount;
+    private int maxDepth;
+    private long[] leafSizeHistogram = new long[MAX_LEAF_SIZE + 1];
+    private double sahCost;
+    private long memoryBytes;
+
+    // Traversal counters.
+    /**
+     * Whether the traversals update the counters.  Plain rather than volatile: it is meant to be set
+     * before rendering starts, and a few rays counted or not counted around the switch do not matter.
+     */
+    boolean counting = false;
+    private final LongAdder rays = new LongAdder();
+    private final LongAdder nodesVisited = new LongAdder();
+    private final LongAdder boxTests = new LongAdder();
+    private final LongAdder trianglesTested = new LongAdder();
+    private final LongAdder shadowRays = new LongAdder();
+    private final LongAdder shadowNodesVisited = new LongAdder();
+    private final LongAdder shadowBoxTests = new LongAdder();
+    private final LongAdder shadowTrianglesTested = new LongAdder();
+    private final LongAdder shadowEarlyOuts = new LongAdder();
+
+    /**
+     * Set the tree statistics.  Called by Bvh after walking the tree.
+     */
+    void setTreeStatistics(int nodeCount, int leafCount, int maxDepth, long[] leafSizeHistogram, double sahCost) {
+        this.nodeCount = nodeCount;
+        this.leafCount = leafCount;
+        this.maxDepth = maxDepth;
+        this.leafSizeHistogram = leafSizeHistogram;
+        this.sahCost = sahCost;
+    }
+
+    void setMemoryBytes(long memoryBytes) {
+        this.memoryBytes = memoryBytes;
+    }
+
+    /**
+     * Add closest-hit traversals to the counters.
+     *
+     * @param rayCount        the number of rays traversed
+     * @param nodeCount       the number of nodes the rays visited in total
+     * @param boxCount        the number of ray-box tests performed in total
+     * @param triangleCount   the number of ray-triangle tests performed in total
+     */
+    void recordRays(long rayCount, long nodeCount, long boxCount, long triangleCount) {
+        rays.add(rayCount);
+        nodesVisited.add(nodeCount);
+        boxTests.add(boxCount);
+        trianglesTested.add(triangleCount);
+    }
+
+    /**
+     * Add any-hit (shadow ray) traversals to the counters.
+     *
+     * @param rayCount        the number of rays traversed
+     * @param nodeCount       the number of nodes the rays visited in total
+     * @param boxCount        the number of ray-box tests performed in total
+     * @param triangleCount   the number of ray-triangle tests performed in total
+     * @param earlyOutCount   the number of rays whose traversal stopped at a hit
+     */
+    void recordShadowRays(long rayCount, long nodeCount, long boxCount, long triangleCount, long earlyOutCount) {
+        shadowRays.add(rayCount);
+        shadowNodesVisited.add(nodeCount);
+        shadowBoxTests.add(boxCount);
+        shadowTrianglesTested.add(triangleCount);
+        shadowEarlyOuts.add(earlyOutCount);
+    }
+
+    /**
+     * Turn the traversal counters on or off.  Counting costs a few adds per ray, so it is off by default.
+     */
+    public void setCounting(boolean counting) {
+        this.counting = counting;
+    }
+
+    public boolean isCounting() {
+        return counting;
+    }
+
+    /**
+     * Zero the traversal counters.
+     */
+    public void resetCounters() {
+        rays.reset();
+        nodesVisited.reset();
+        boxTests.reset();
+        trianglesTested.reset();
+        shadowRays.reset();
+        shadowNodesVisited.reset();
+        shadowBoxTests.reset();
+        shadowTrianglesTested.reset();
+        shadowEarlyOuts.reset();
+    }
+
+    /**
+     * Get the number of nodes of the binary tree.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Get the depth of the deepest leaf, the root having depth 0.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Get the number of leaves of each size.  Entry i counts the leaves with i triangles, except that the
+     * last entry counts the leaves with MAX_LEAF_SIZE or more triangles.
+     */
+    public long[] getLeafSizeHistogram() {
+        return leafSizeHistogram.clone();
+    }
+
+    /**
+     * Get the SAH cost of the tree, relative to the surface area of the root.
+     */
+    public double getSahCost() {
+        return sahCost;
+    }
+
+    /**
+     * Get the number of bytes taken by the arrays the traversal reads (nodes, triangle indices, packed
+     * triangles, and the 4-wide nodes if any), which are all primitive arrays.  The meshes themselves are not
+     * included.
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public long getRayCount() {
+        return rays.sum();
+    }
+
+    /**
+     * Get the average number of nodes a closest-hit ray entered, i.e., whose box it hit and whose children or
+     * triangles it then tested.
+     */
+    public double getNodesVisitedPerRay() {
+        return ratio(nodesVisited.sum(), rays.sum());
+    }
+
+    /**
+     * Get the average number of ray-box tests per closest-hit ray.
+     */
+    public double getBoxTestsPerRay() {
+        return ratio(boxTests.sum(), rays.sum());
+    }
+
+    public double getTrianglesTestedPerRay() {
+        return ratio(trianglesTested.sum(), rays.sum());
+    }
+
+    public long getShadowRayCount() {
+        return shadowRays.sum();
+    }
+
+    public double getShadowNodesVisitedPerRay() {
+        return ratio(shadowNodesVisited.sum(), shadowRays.sum());
+    }
+
+    public double getShadowBoxTestsPerRay() {
+        return ratio(shadowBoxTests.sum(), shadowRays.sum());
+    }
+
+    public double getShadowTrianglesTestedPerRay() {
+        return ratio(shadowTrianglesTested.sum(), shadowRays.sum());
+    }
+
+    /**
+     * Get the fraction of shadow rays whose traversal stopped early because an occluder was found.
+     */
+    public double getShadowEarlyOutRate() {
+        return ratio(shadowEarlyOuts.sum(), shadowRays.sum());
+    }
+
+    private static double ratio(long numerator, long denominator) {
+        return denominator == 0 ? 0 : (double) numerator / denominator;
+    }
+
+    public String toString() {
+        return String.format(
+                "BvhStats[\n" +
+                "  nodeCount = %d\n" +
+                "  leafCount = %d\n" +
+                "  maxDepth = %d\n" +
+                "  leafSizeHistogram = %s\n" +
+                "  sahCost = %.3f\n" +
+                "  memoryBytes = %d\n" +
+                "  rays = %d (%.2f nodes, %.2f boxes, %.2f triangles per ray)\n" +
+                "  shadowRays = %d (%.2f nodes, %.2f boxes, %.2f triangles per ray, %.1f%% early-out)\n" +
+                "]",
+                nodeCount,
+                leafCount,
+                maxDepth,
+                Arrays.toString(leafSizeHistogram),
+                sahCost,
+                memoryBytes,
+                getRayCount(), getNodesVisitedPerRay(), getBoxTestsPerRay(), getTrianglesTestedPerRay(),
+                getShadowRayCount(), getShadowNodesVisitedPerRay(), getShadowBoxTestsPerRay(),
+                getShadowTrianglesTestedPerRay(),
+                100 * getShadowEarlyOutRate());
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts ranges of a primitive index array by a per-primitive key
+ *
+ * The key of every index in the range is first gathered into a double array running parallel to the
+ * indices, so the sort compares contiguous doubles instead of chasing each index into the key array, and
+ * nothing is boxed.  Small ranges are sorted with a quicksort; large ranges with a merge sort whose halves
+ * and merges are forked on the fork-join pool of the calling task.
+ *
+ * The scratch arrays span the whole index array and a sort only touches the positions of its own range, so
+ * build tasks working on disjoint ranges can sort concurrently with one sorter.
+ */
+class IndexSorter {
+    /**
+     * Ranges shorter than this are sorted or merged serially.
+     */
+    private static final int PARALLEL_THRESHOLD = 8192;
+    /**
+     * Ranges shorter than this are insertion sorted.
+     */
+    private static final int INSERTION_THRESHOLD = 24;
+
+    private final int[] indices;
+    private final double[] keys;
+    private final int[] scratchIndices;
+    private final double[] scratchKeys;
+
+    /**
+     * Create a sorter for the given index array, which is sorted in place.
+     */
+    IndexSorter(int[] indices) {
+        this.indices = indices;
+        keys = new double[indices.length];
+        scratchIndices = new int[indices.length];
+        scratchKeys = new double[indices.length];
+    }
+
+    /**
+     * Sort indices[start..end) by the key values[stride * index + offset], in ascending order.
+     *
+     * @param parallel whether to fork the sort of large ranges; must be called from a fork-join task if set
+     */
+    void sort(double[] values, int stride, int offset, int start, int end, boolean parallel) {
+        for (int i = start; i < end; i++) {
+            keys[i] = values[stride * indices[i] + offset];
+        }
+        if (parallel && end - start >= PARALLEL_THRESHOLD) {
+            new MergeSortTask(start, end, false).invoke();
+        } else {
+            quickSort(indices, keys, start, end);
+        }
+    }
+
+    /**
+     * Sorts [lo, hi) of the main arrays, leaving the result in the scratch arrays if toScratch is set.
+     */
+    private class MergeSortTask extends RecursiveAction {
+        private final int lo;
+        private final int hi;
+        private final boolean toScratch;
+
+        MergeSortTask(int lo, int hi, boolean toScratch) {
+            this.lo = lo;
+            this.hi = hi;
+            this.toScratch = toScratch;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo < PARALLEL_THRESHOLD) {
+                quickSort(indices, keys, lo, hi);
+                if (toScratch) {
+                    System.arraycopy(indices, lo, scratchIndices, lo, hi - lo);
+                    System.arraycopy(keys, lo, scratchKeys, lo, hi - lo);
+                }
+                return;
+            }
+            /* Sort the halves into the other array, then merge them back */
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new MergeSortTask(lo, mid, !toScratch), new MergeSortTask(mid, hi, !toScratch));
+            if (toScratch) {
+                new MergeTask(indices, keys, lo, mid, mid, hi, scratchIndices, scratchKeys, lo).invoke();
+            } else {
+                new MergeTask(scratchIndices, scratchKeys, lo, mid, mid, hi, indices, keys, lo).invoke();
+            }
+        }
+    }
+
+    /**
+     * Merges the sorted runs [aLo, aHi) and [bLo, bHi) of the source arrays into the destination arrays
+     * starting at position to.  Large merges are split at the median of the longer run.
+     */
+    private static class MergeTask extends RecursiveAction {
+        private final int[] srcIndices;
+        private final double[] srcKeys;
+        private final int aLo, aHi, bLo, bHi;
+        private final int[] dstIndices;
+        private final double[] dstKeys;
+        private final int to;
+
+        MergeTask(int[] srcIndices, double[] srcKeys, int aLo, int aHi, int bLo, int bHi,
+                  int[] dstIndices, double[] dstKeys, int to) {
+            this.srcIndices = srcIndices;
+            this.srcKeys = srcKeys;
+            this.aLo = aLo;
+            this.aHi = aHi;
+            this.bLo = bLo;
+            this.bHi = bHi;
+            this.dstIndices = dstIndices;
+            this.dstKeys = dstKeys;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int aSize = aHi - aLo;
+            int bSize = bHi - bLo;
+            if (aSize + bSize < PARALLEL_THRESHOLD) {
+                mergeSerially();
+                return;
+            }
+            /* Split the longer run at its median, and the other run at the position of that key.
+               Elements of the first run go before equal elements of the second. */
+            int aMid, bMid;
+            if (aSize >= bSize) {
+                aMid = (aLo + aHi) >>> 1;
+                bMid = lowerBound(srcKeys, bLo, bHi, srcKeys[aMid]);
+            } else {
+                bMid = (bLo + bHi) >>> 1;
+                aMid = upperBound(srcKeys, aLo, aHi, srcKeys[bMid]);
+            }
+            int toMid = to + (aMid - aLo) + (bMid - bLo);
+            invokeAll(new MergeTask(srcIndices, srcKeys, aLo, aMid, bLo, bMid, dstIndices, dstKeys, to),
+                    new MergeTask(srcIndices, srcKeys, aMid, aHi, bMid, bHi, dstIndices, dstKeys, toMid));
+        }
+
+        private void mergeSerially() {
+            int a = aLo, b = bLo, d = to;
+            while (a < aHi && b < bHi) {
+                if (srcKeys[b] < srcKeys[a]) {
+                    dstKeys[d] = srcKeys[b];
+                    dstIndices[d++] = srcIndices[b++];
+                } else {
+                    dstKeys[d] = srcKeys[a];
+                    dstIndices[d++] = srcIndices[a++];
+                }
+            }
+            System.arraycopy(srcKeys, a, dstKeys, d, aHi - a);
+            System.arraycopy(srcIndices, a, dstIndices, d, aHi - a);
+            d += aHi - a;
+            System.arraycopy(srcKeys, b, dstKeys, d, bHi - b);
+            System.arraycopy(srcIndices, b, dstIndices, d, bHi - b);
+        }
+    }
+
+    /**
+     * Return the first position in the sorted range [lo, hi) whose key is not less than key.
+     */
+    private static int lowerBound(double[] keys, int lo, int hi, double key) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Return the first position in the sorted range [lo, hi) whose key is greater than key.
+     */
+    private static int upperBound(double[] keys, int lo, int hi, double key) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] <= key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Sort [lo, hi) of the parallel index and key arrays by key.
+     */
+    private static void quickSort(int[] indices, double[] keys, int lo, int hi) {
+        while (hi - lo > INSERTION_THRESHOLD) {
+            /* Median of three as the pivot */
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < keys[lo]) swap(indices, keys, mid, lo);
+            if (keys[hi - 1] < keys[lo]) swap(indices, keys, hi - 1, lo);
+            if (keys[hi - 1] < keys[mid]) swap(indices, keys, hi - 1, mid);
+            double pivot = keys[mid];
+
+            int i = lo;
+            int j = hi - 1;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    swap(indices, keys, i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            /* Recurse into the smaller part so that the stack stays logarithmic */
+            if (j + 1 - lo < hi - i) {
+                quickSort(indices, keys, lo, j + 1);
+                lo = i;
+            } else {
+                quickSort(indices, keys, i, hi);
+                hi = j + 1;
+            }
+        }
+
+        for (int i = lo + 1; i < hi; i++) {
+            double key = keys[i];
+            int index = indices[i];
+            int j = i - 1;
+            while (j >= lo && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                indices[j + 1] = indices[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            indices[j + 1] = index;
+        }
+    }
+
+    private static void swap(int[] indices, double[] keys, int i, int j) {
+        int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+        double key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wakame.mesh.Instance;
+import wakame.mesh.Mesh;
+import wakame.struct.Aabb3d;
+import wakame.struct.Intersection;
+
+import javax_.vecmath.Matrix4d;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Top level of a two-level BVH
+ *
+ * Every distinct shape gets one bottom-level Bvh built in its object space, no matter how many instances
+ * place it.  The top level is a binned SAH tree over the world-space bounding boxes of the instances.  A ray
+ * that reaches an instance leaf is transformed into the instance's object space (without renormalizing the
+ * direction, so distances along the ray stay the same) and traced through the shape's bottom-level tree.
+ */
+class InstanceBvh {
+    /**
+     * The logger
+     */
+    private static Logger logger = LoggerFactory.getLogger(InstanceBvh.class);
+    /**
+     * The tree over the instance bounding boxes.  It stores no triangles: its leaves refer to positions
+     * in the arrays below.
+     */
+    private Bvh topLevel;
+    /**
+     * The instances in leaf order.
+     */
+    private Instance[] instances;
+    /**
+     * The bottom-level tree of each instance in leaf order.  Instances of the same shape share one tree.
+     */
+    private Bvh[] shapeBvhs;
+    /**
+     * The world-to-object transformation of each instance in leaf order, packed as the upper three rows
+     * of the matrix (twelve doubles per instance).
+     */
+    private double[] worldToObject;
+    /**
+     * Per-thread traversal stack of the top level.
+     */
+    private final ThreadLocal<int[]> traversalStack = ThreadLocal.withInitial(() -> new int[Bvh.STACK_SIZE]);
+
+    /**
+     * Build the bottom-level trees of all distinct shapes and the top-level tree over the given instances.
+     *
+     * @param parent    the BVH whose build settings and fork-join pool are used
+     * @param instances the instances
+     */
+    InstanceBvh(Bvh parent, List<Instance> instances) {
+        IdentityHashMap<Mesh, Bvh> bvhByShape = new IdentityHashMap<Mesh, Bvh>();
+        ArrayList<Instance> nonEmpty = new ArrayList<Instance>();
+        long placedTriangles = 0;
+        long storedTriangles = 0;
+        for (Instance instance : instances) {
+            Mesh shape = instance.getShape();
+            if (shape.getTriangleCount() == 0)
+                continue;
+            nonEmpty.add(instance);
+            placedTriangles += shape.getTriangleCount();
+            if (!bvhByShape.containsKey(shape)) {
+                Bvh shapeBvh = parent.createSubBvh();
+                shapeBvh.addMesh(shape);
+                shapeBvh.build();
+                bvhByShape.put(shape, shapeBvh);
+                storedTriangles += shape.getTriangleCount();
+            }
+        }
+
+        int count = nonEmpty.size();
+        double[] boxes = new double[6 * count];
+        Aabb3d bbox = new Aabb3d();
+        for (int i = 0; i < count; i++) {
+            nonEmpty.get(i).getBoundingBox(bbox);
+            boxes[6 * i] = bbox.pMin.x;
+            boxes[6 * i + 1] = bbox.pMin.y;
+            boxes[6 * i + 2] = bbox.pMin.z;
+            boxes[6 * i + 3] = bbox.pMax.x;
+            boxes[6 * i + 4] = bbox.pMax.y;
+            boxes[6 * i + 5] = bbox.pMax.z;
+        }
+
+        topLevel = parent.createSubBvh();
+        int[] order = count > 0 ? topLevel.buildOverBoxes(boxes) : new int[0];
+
+        this.instances = new Instance[count];
+        shapeBvhs = new Bvh[count];
+        worldToObject = new double[12 * count];
+        for (int i = 0; i < count; i++) {
+            Instance instance = nonEmpty.get(order[i]);
+            this.instances[i] = instance;
+            shapeBvhs[i] = bvhByShape.get(instance.getShape());
+            Matrix4d mi = instance.getToWorld().mi;
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 4; col++) {
+                    worldToObject[12 * i + 4 * row + col] = mi.getElement(row, col);
+                }
+            }
+        }
+
+        logger.info(String.format("Built a two-level BVH over %d instance(s) of %d shape(s): "
+                        + "%d placed triangles, %d stored.",
+                count, bvhByShape.size(), placedTriangles, storedTriangles));
+    }
+
+    /**
+     * Closest-hit query against all instances.
+     *
+     * If an instance is hit closer than maxt, the intersection record is filled in completely,
+     * with its.mesh set to the instance and all quantities in world space.
+     *
+     * @return whether an instance was hit within [mint, maxt]
+     */
+    boolean rayIntersect(double ox, double oy, double oz, double dx, double dy, double dz,
+                         double mint, double maxt, Intersection its) {
+        if (instances.length == 0)
+            return false;
+
+        int[] nodeData = topLevel.nodeData;
+        int[] stack = traversalStack.get();
+        int stackIdx = 0;
+        int nodeIdx = 0;
+
+        double rcpX = 1.0 / dx, rcpY = 1.0 / dy, rcpZ = 1.0 / dz;
+        int dirIsNegative = (rcpX < 0 ? 1 : 0) | (rcpY < 0 ? 2 : 0) | (rcpZ < 0 ? 4 : 0);
+
+        int hitInstance = -1;
+        int hitTriangle = -1;
+
+        while (true) {
+            if (topLevel.rayIntersectNode(nodeIdx, ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt)) {
+                int first = nodeData[2 * nodeIdx];
+                int count = nodeData[2 * nodeIdx + 1];
+                if (count < 0) {
+                    int axis = -1 - count;
+                    if (((dirIsNegative >> axis) & 1) == 0) {
+                        stack[stackIdx] = first + 1;
+                        nodeIdx = first;
+                    } else {
+                        stack[stackIdx] = first;
+                        nodeIdx = first + 1;
+                    }
+                    stackIdx++;
+                    continue;
+                }
+                for (int i = first; i < first + count; i++) {
+                    int m = 12 * i;
+                    double[] w = worldToObject;
+                    int tri = shapeBvhs[i].closestHit(
+                            w[m] * ox + w[m + 1] * oy + w[m + 2] * oz + w[m + 3],
+                            w[m + 4] * ox + w[m + 5] * oy + w[m + 6] * oz + w[m + 7],
+                            w[m + 8] * ox + w[m + 9] * oy + w[m + 10] * oz + w[m + 11],
+                            w[m] * dx + w[m + 1] * dy + w[m + 2] * dz,
+                            w[m + 4] * dx + w[m + 5] * dy + w[m + 6] * dz,
+                            w[m + 8] * dx + w[m + 9] * dy + w[m + 10] * dz,
+                            mint, maxt, its);
+                    if (tri >= 0) {
+                        maxt = its.t;
+                        hitInstance = i;
+                        hitTriangle = tri;
+                    }
+                }
+            }
+            if (stackIdx == 0)
+                break;
+            nodeIdx = stack[--stackIdx];
+        }
+
+        if (hitInstance < 0)
+            return false;
+
+        /* Fill in the record in object space, then move it to world space */
+        shapeBvhs[hitInstance].fillIntersection(hitTriangle, its);
+        Instance instance = instances[hitInstance];
+        Matrix4d m = instance.getToWorld().m;
+        Matrix4d mit = instance.getToWorld().mit;
+        m.transform(its.p);
+        /* The inverse transpose maps the geometric normal up to the sign of the determinant */
+        mit.transform(its.geoFrame.n);
+        if (instance.isMirrored())
+            its.geoFrame.n.negate();
+        its.geoFrame.setFromNormal(its.geoFrame.n);
+        /* Without vertex normals the shading frame is the geometric frame, as for a mesh loaded in world space */
+        if (instance.getShape().hasNormals()) {
+            mit.transform(its.shFrame.n);
+            its.shFrame.setFromNormal(its.shFrame.n);
+        } else {
+            its.shFrame.set(its.geoFrame);
+        }
+        its.mesh = instance;
+        return true;
+    }
+
+    /**
+     * Any-hit query against all instances.
+     *
+     * @return whether the ray segment [mint, maxt] hits any instance
+     */
+    boolean occluded(double ox, double oy, double oz, double dx, double dy, double dz, double mint, double maxt) {
+        if (instances.length == 0)
+            return false;
+
+        int[] nodeData = topLevel.nodeData;
+        int[] stack = traversalStack.get();
+        int stackIdx = 0;
+        int nodeIdx = 0;
+
+        double rcpX = 1.0 / dx, rcpY = 1.0 / dy, rcpZ = 1.0 / dz;
+
+        while (true) {
+            if (topLevel.rayIntersectNode(nodeIdx, ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt)) {
+                int first = nodeData[2 * nodeIdx];
+                int count = nodeData[2 * nodeIdx + 1];
+                if (count < 0) {
+                    stack[stackIdx++] = first + 1;
+                    nodeIdx = first;
+                    continue;
+                }
+                for (int i = first; i < first + count; i++) {
+                    int m = 12 * i;
+                    double[] w = worldToObject;
+                    boolean hit = shapeBvhs[i].anyHit(
+                            w[m] * ox + w[m + 1] * oy + w[m + 2] * oz + w[m + 3],
+                            w[m + 4] * ox + w[m + 5] * oy + w[m + 6] * oz + w[m + 7],
+                            w[m + 8] * ox + w[m + 9] * oy + w[m + 10] * oz + w[m + 11],
+                            w[m] * dx + w[m + 1] * dy + w[m + 2] * dz,
+                            w[m + 4] * dx + w[m + 5] * dy + w[m + 6] * dz,
+                            w[m + 8] * dx + w[m + 9] * dy + w[m + 10] * dz,
+                            mint, maxt);
+                    if (hit)
+                        return true;
+                }
+            }
+            if (stackIdx == 0)
+                return false;
+            nodeIdx = stack[--stackIdx];
+        }
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wakame.WakameObject;
+import wakame.mesh.WatertightIntersector;
+import wakame.struct.Intersection;
+import wakame.util.PropertiesUtil;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * SAH kd-tree
+ *
+ * Built top-down as in Pharr and Humphreys, "Physically Based Rendering".  At each node, the bounding box
+ * edges of the node's triangles along the longest axis are sorted and swept to find the split plane of lowest
+ * SAH cost (the other axes are tried only if the longest has no plane inside the node).  Triangles that
+ * straddle the plane go to both children.  A node becomes a leaf when it holds few triangles, when the
+ * maximum depth is reached, or when splitting has failed to pay off too many times on the way down.
+ *
+ * Traversal visits the leaves along the ray front to back, keeping the far child of every split the ray
+ * crosses on a stack with the ray interval inside it, and stops as soon as the closest hit lies before the
+ * next interval.  Unlike in a BVH, the nodes of a kd-tree do not overlap, so this usually stops early.
+ */
+public class KdTree extends TriangleAccelerator {
+    /**
+     * The logger
+     */
+    private static Logger logger = LoggerFactory.getLogger(KdTree.class);
+    /**
+     * Default cost of a ray-triangle test relative to a traversal step.
+     */
+    public static final double DEFAULT_INTERSECTION_COST = 80;
+    /**
+     * Default cost of a traversal step.
+     */
+    public static final double DEFAULT_TRAVERSAL_COST = 1;
+    /**
+     * Default fraction by which the cost of a split that leaves one child empty is reduced.
+     */
+    public static final double DEFAULT_EMPTY_BONUS = 0.5;
+    /**
+     * Default number of triangles below which a node always becomes a leaf.
+     */
+    public static final int DEFAULT_MAX_LEAF_SIZE = 1;
+    /**
+     * The number of splits costlier than a leaf allowed on the way down to a node.
+     */
+    private static final int MAX_BAD_REFINES = 3;
+    /**
+     * The low two bits of nodeInfo of a leaf.
+     */
+    private static final int LEAF = 3;
+
+    private double intersectionCost = DEFAULT_INTERSECTION_COST;
+    private double traversalCost = DEFAULT_TRAVERSAL_COST;
+    private double emptyBonus = DEFAULT_EMPTY_BONUS;
+    private int maxLeafSize = DEFAULT_MAX_LEAF_SIZE;
+    /**
+     * The maximum depth, or -1 to use 8 + 1.3 log2(N) for N triangles.
+     */
+    private int maxDepth = -1;
+
+    /**
+     * The number of nodes.
+     */
+    private int nodeCount = 0;
+    /**
+     * The low two bits hold the split axis of an internal node, or LEAF.  The other bits hold the index of
+     * the above child of an internal node (the below child follows the node), or the triangle count of a leaf.
+     */
+    private int[] nodeInfo = new int[0];
+    /**
+     * The position of the split plane of an internal node, or the position in leafTriangles of the first
+     * triangle of a leaf.
+     */
+    private double[] nodeSplit = new double[0];
+    /**
+     * The triangles of all leaves, one leaf after another.
+     */
+    private int[] leafTriangles = new int[0];
+    private int leafTriangleCount = 0;
+    /**
+     * The bounds of the tree (min x, y, z, then max x, y, z).
+     */
+    private final double[] treeBounds = new double[6];
+    /**
+     * The size of the traversal stacks, i.e., one more than the depth of the tree.
+     */
+    private int stackSize = 1;
+    /**
+     * Per-thread traversal stack of nodes.
+     */
+    private final ThreadLocal<int[]> nodeStack = ThreadLocal.withInitial(() -> new int[stackSize]);
+    /**
+     * Per-thread traversal stack of the ray intervals of the nodes, two values per node.
+     */
+    private final ThreadLocal<double[]> intervalStack = ThreadLocal.withInitial(() -> new double[2 * stackSize]);
+
+    // Build state.
+    /**
+     * Position of each bounding box edge of the node being split; the start edge of its i-th triangle
+     * is 2i and the end edge 2i + 1.
+     */
+    private double[] edgePosition;
+    /**
+     * The edges of the node being split in sorted order.
+     */
+    private int[] edgeOrder;
+    private IndexSorter edgeSorter;
+
+    private KdTree() {
+        // NO-OP
+    }
+
+    /**
+     * Set the cost of a ray-triangle test relative to a traversal step.  Must be called before build().
+     */
+    public void setIntersectionCost(double intersectionCost) {
+        this.intersectionCost = intersectionCost;
+    }
+
+    /**
+     * Set the cost of a traversal step.  Must be called before build().
+     */
+    public void setTraversalCost(double traversalCost) {
+        this.traversalCost = traversalCost;
+    }
+
+    /**
+     * Set the fraction, between 0 and 1, by which the cost of a split that leaves one child empty is reduced.
+     * Must be called before build().
+     */
+    public void setEmptyBonus(double emptyBonus) {
+        if (emptyBonus < 0 || emptyBonus > 1) {
+            throw new RuntimeException("KdTree.setEmptyBonus(): The empty bonus must be between 0 and 1.");
+        }
+        this.emptyBonus = emptyBonus;
+    }
+
+    /**
+     * Set the number of triangles at or below which a node always becomes a leaf.  Must be called before build().
+     */
+    public void setMaxLeafSize(int maxLeafSize) {
+        if (maxLeafSize < 1) {
+            throw new RuntimeException("KdTree.setMaxLeafSize(): The maximum leaf size must be at least 1.");
+        }
+        this.maxLeafSize = maxLeafSize;
+    }
+
+    /**
+     * Set the maximum depth of the tree, or -1 to use 8 + 1.3 log2(N) for N triangles.  Must be called
+     * before build().
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Set the build settings from the properties of an accel tag: "intersectionCost", "traversalCost",
+     * "emptyBonus", "maxLeafSize", and "maxDepth", each corresponding to the setter of the same name, and
+     * the settings of the BVH over the instances (see setInstanceBvhProperties()).
+     *
+     * @param properties the properties as a map from property name to values
+     */
+    @Override
+    protected void setProperties(HashMap<String, Object> properties) {
+        setIntersectionCost(PropertiesUtil.getDouble(properties, "intersectionCost", DEFAULT_INTERSECTION_COST));
+        setTraversalCost(PropertiesUtil.getDouble(properties, "traversalCost", DEFAULT_TRAVERSAL_COST));
+        setEmptyBonus(PropertiesUtil.getDouble(properties, "emptyBonus", DEFAULT_EMPTY_BONUS));
+        setMaxLeafSize(PropertiesUtil.getInteger(properties, "maxLeafSize", DEFAULT_MAX_LEAF_SIZE));
+        setMaxDepth(PropertiesUtil.getInteger(properties, "maxDepth", -1));
+        setInstanceBvhProperties(properties);
+    }
+
+    /**
+     * Get the number of nodes of the tree.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    protected void buildStructure() {
+        int depth = maxDepth >= 0 ? maxDepth
+                : (int) Math.round(8 + 1.3 * (31 - Integer.numberOfLeadingZeros(triangleCount)));
+        stackSize = depth + 1;
+
+        treeBounds[0] = bbox.pMin.x;
+        treeBounds[1] = bbox.pMin.y;
+        treeBounds[2] = bbox.pMin.z;
+        treeBounds[3] = bbox.pMax.x;
+        treeBounds[4] = bbox.pMax.y;
+        treeBounds[5] = bbox.pMax.z;
+
+        edgePosition = new double[2 * triangleCount];
+        edgeOrder = new int[2 * triangleCount];
+        edgeSorter = new IndexSorter(edgeOrder);
+        nodeInfo = new int[Math.max(16, 2 * triangleCount)];
+        nodeSplit = new double[nodeInfo.length];
+        leafTriangles = new int[Math.max(16, 2 * triangleCount)];
+
+        int[] triangles = new int[triangleCount];
+        for (int i = 0; i < triangleCount; i++) {
+            triangles[i] = i;
+        }
+        buildNode(treeBounds.clone(), triangles, triangleCount, depth, 0);
+
+        edgePosition = null;
+        edgeOrder = null;
+        edgeSorter = null;
+        nodeInfo = Arrays.copyOf(nodeInfo, nodeCount);
+        nodeSplit = Arrays.copyOf(nodeSplit, nodeCount);
+        leafTriangles = Arrays.copyOf(leafTriangles, leafTriangleCount);
+        logger.info("The kd-tree has " + nodeCount + " nodes and " + leafTriangleCount
+                + " triangle references.");
+    }
+
+    /**
+     * Build the subtree over the given triangles, placing its root at the next free node.
+     *
+     * @param bounds     the bounds of the node, which this method may modify
+     * @param triangles  the triangles, which this method may overwrite
+     * @param count      the number of triangles
+     * @param depth      the number of levels that may still be added below the node
+     * @param badRefines the number of splits costlier than a leaf above the node
+     */
+    private void buildNode(double[] bounds, int[] triangles, int count, int depth, int badRefines) {
+        int node = allocateNode();
+        if (count <= maxLeafSize || depth == 0) {
+            setLeaf(node, triangles, count);
+            return;
+        }
+
+        double[] extent = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            extent[axis] = bounds[axis + 3] - bounds[axis];
+        }
+        double invTotalArea = 1 / (2 * (extent[0] * extent[1] + extent[0] * extent[2] + extent[1] * extent[2]));
+        double leafCost = intersectionCost * count;
+
+        /* Try the longest axis first, and the others only if it has no split plane inside the node */
+        int axis = extent[0] > extent[1] ? (extent[0] > extent[2] ? 0 : 2) : (extent[1] > extent[2] ? 1 : 2);
+        int bestEdge = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int retries = 0; retries < 3; retries++, axis = (axis + 1) % 3) {
+            sortEdges(triangles, count, axis);
+
+            int other0 = (axis + 1) % 3;
+            int other1 = (axis + 2) % 3;
+            double capArea = extent[other0] * extent[other1];
+            double sideLength = extent[other0] + extent[other1];
+            int below = 0;
+            int above = count;
+            for (int i = 0; i < 2 * count; i++) {
+                int edge = edgeOrder[i];
+                boolean isEnd = (edge & 1) != 0;
+                if (isEnd) {
+                    above--;
+                }
+                double t = edgePosition[edge];
+                if (t > bounds[axis] && t < bounds[axis + 3]) {
+                    double belowArea = 2 * (capArea + (t - bounds[axis]) * sideLength);
+                    double aboveArea = 2 * (capArea + (bounds[axis + 3] - t) * sideLength);
+                    double bonus = (below == 0 || above == 0) ? emptyBonus : 0;
+                    double cost = traversalCost + intersectionCost * (1 - bonus)
+                            * (belowArea * invTotalArea * below + aboveArea * invTotalArea * above);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestEdge = i;
+                    }
+                }
+                if (!isEnd) {
+                    below++;
+                }
+            }
+            if (bestEdge >= 0)
+                break;
+        }
+
+        if (bestCost > leafCost) {
+            badRefines++;
+        }
+        if ((bestCost > 4 * leafCost && count < 16) || bestEdge < 0 || badRefines == MAX_BAD_REFINES) {
+            setLeaf(node, triangles, count);
+            return;
+        }
+
+        /* Triangles that start before the split edge go below, those that end after it go above */
+        int[] belowTriangles = new int[count];
+        int[] aboveTriangles = new int[count];
+        int belowCount = 0;
+        int aboveCount = 0;
+        for (int i = 0; i < bestEdge; i++) {
+            int edge = edgeOrder[i];
+            if ((edge & 1) == 0)
+                belowTriangles[belowCount++] = triangles[edge >> 1];
+        }
+        for (int i = bestEdge + 1; i < 2 * count; i++) {
+            int edge = edgeOrder[i];
+            if ((edge & 1) != 0)
+                aboveTriangles[aboveCount++] = triangles[edge >> 1];
+        }
+        double split = edgePosition[edgeOrder[bestEdge]];
+
+        double[] aboveBounds = bounds.clone();
+        aboveBounds[axis] = split;
+        bounds[axis + 3] = split;
+        buildNode(bounds, belowTriangles, belowCount, depth - 1, badRefines);
+        nodeInfo[node] = axis | (nodeCount << 2);
+        nodeSplit[node] = split;
+        buildNode(aboveBounds, aboveTriangles, aboveCount, depth - 1, badRefines);
+    }
+
+    /**
+     * Fill in the bounding box edges of the given triangles along the axis and sort them.  Among edges at the
+     * same position, start edges come first, so that a plane through a flat triangle puts it on both sides.
+     */
+    private void sortEdges(int[] triangles, int count, int axis) {
+        for (int i = 0; i < count; i++) {
+            int tri = triangles[i];
+            edgePosition[2 * i] = triangleBounds[6 * tri + axis];
+            edgePosition[2 * i + 1] = triangleBounds[6 * tri + 3 + axis];
+            edgeOrder[2 * i] = 2 * i;
+            edgeOrder[2 * i + 1] = 2 * i + 1;
+        }
+        edgeSorter.sort(edgePosition, 1, 0, 0, 2 * count, false);
+
+        int runStart = 0;
+        while (runStart < 2 * count) {
+            double t = edgePosition[edgeOrder[runStart]];
+            int runEnd = runStart + 1;
+            while (runEnd < 2 * count && edgePosition[edgeOrder[runEnd]] == t) {
+                runEnd++;
+            }
+            /* Move the start edges of the run to its front */
+            int front = runStart;
+            for (int i = runStart; i < runEnd; i++) {
+                int edge = edgeOrder[i];
+                if ((edge & 1) == 0) {
+                    edgeOrder[i] = edgeOrder[front];
+                    edgeOrder[front++] = edge;
+                }
+            }
+            runStart = runEnd;
+        }
+    }
+
+    private int allocateNode() {
+        if (nodeCount == nodeInfo.length) {
+            nodeInfo = Arrays.copyOf(nodeInfo, 2 * nodeInfo.length);
+            nodeSplit = Arrays.copyOf(nodeSplit, 2 * nodeSplit.length);
+        }
+        return nodeCount++;
+    }
+
+    private void setLeaf(int node, int[] triangles, int count) {
+        if (leafTriangleCount + count > leafTriangles.length) {
+            leafTriangles = Arrays.copyOf(leafTriangles, Math.max(2 * leafTriangles.length, leafTriangleCount + count));
+        }
+        System.arraycopy(triangles, 0, leafTriangles, leafTriangleCount, count);
+        nodeInfo[node] = LEAF | (count << 2);
+        nodeSplit[node] = leafTriangleCount;
+        leafTriangleCount += count;
+    }
+
+    /**
+     * Clip [mint, maxt] against the bounds of the tree.
+     *
+     * @param interval the receiver of the clipped interval
+     * @return whether the clipped interval is not empty
+     */
+    private boolean clipToBounds(double ox, double oy, double oz, double rcpX, double rcpY, double rcpZ,
+                                 double mint, double maxt, double[] interval) {
+        double tMin = mint, tMax = maxt;
+        for (int axis = 0; axis < 3; axis++) {
+            double o = axis == 0 ? ox : (axis == 1 ? oy : oz);
+            double rcp = axis == 0 ? rcpX : (axis == 1 ? rcpY : rcpZ);
+            double t0 = (treeBounds[axis] - o) * rcp;
+            double t1 = (treeBounds[axis + 3] - o) * rcp;
+            if (t0 > t1) {
+                double swap = t0;
+                t0 = t1;
+                t1 = swap;
+            }
+            /* Written so that a NaN from a zero direction component leaves the interval alone */
+            tMin = t0 > tMin ? t0 : tMin;
+            tMax = t1 < tMax ? t1 : tMax;
+        }
+        interval[0] = tMin;
+        interval[1] = tMax;
+        return tMin <= tMax;
+    }
+
+    @Override
+    protected int closestHit(double ox, double oy, double oz, double dx, double dy, double dz,
+                             double mint, double maxt, WatertightIntersector intersector, Intersection its) {
+        double rcpX = 1.0 / dx, rcpY = 1.0 / dy, rcpZ = 1.0 / dz;
+        int[] stack = nodeStack.get();
+        double[] intervals = intervalStack.get();
+        if (!clipToBounds(ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt, intervals))
+            return -1;
+        double tMin = intervals[0], tMax = intervals[1];
+
+        int hitTriangle = -1;
+        int stackIdx = 0;
+        int node = 0;
+        while (true) {
+            /* The nodes are visited front to back, so a hit before this node is the closest */
+            if (maxt < tMin)
+                break;
+            int info = nodeInfo[node];
+            int axis = info & 3;
+            if (axis != LEAF) {
+                double o = axis == 0 ? ox : (axis == 1 ? oy : oz);
+                double d = axis == 0 ? dx : (axis == 1 ? dy : dz);
+                double rcp = axis == 0 ? rcpX : (axis == 1 ? rcpY : rcpZ);
+                double split = nodeSplit[node];
+                double tPlane = (split - o) * rcp;
+                boolean belowFirst = o < split || (o == split && d <= 0);
+                int first = belowFirst ? node + 1 : info >>> 2;
+                int second = belowFirst ? info >>> 2 : node + 1;
+                if (tPlane > tMax || tPlane <= 0) {
+                    node = first;
+                } else if (tPlane < tMin) {
+                    node = second;
+                } else {
+                    stack[stackIdx] = second;
+                    intervals[2 * stackIdx] = tPlane;
+                    intervals[2 * stackIdx + 1] = tMax;
+                    stackIdx++;
+                    node = first;
+                    tMax = tPlane;
+                }
+                continue;
+            }
+
+            int start = (int) nodeSplit[node];
+            int end = start + (info >>> 2);
+            for (int i = start; i < end; i++) {
+                int tri = leafTriangles[i];
+                double t = rayIntersectTriangle(tri, intersector, mint, maxt, its.uv);
+                if (t != Double.POSITIVE_INFINITY) {
+                    maxt = its.t = t;
+                    hitTriangle = tri;
+                }
+            }
+
+            if (stackIdx == 0)
+                break;
+            stackIdx--;
+            node = stack[stackIdx];
+            tMin = intervals[2 * stackIdx];
+            tMax = intervals[2 * stackIdx + 1];
+        }
+        return hitTriangle;
+    }
+
+    @Override
+    protected boolean anyHit(double ox, double oy, double oz, double dx, double dy, double dz,
+                             double mint, double maxt, WatertightIntersector intersector) {
+        double rcpX = 1.0 / dx, rcpY = 1.0 / dy, rcpZ = 1.0 / dz;
+        int[] stack = nodeStack.get();
+        double[] intervals = intervalStack.get();
+        if (!clipToBounds(ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt, intervals))
+            return false;
+        double tMin = intervals[0], tMax = intervals[1];
+
+        int stackIdx = 0;
+        int node = 0;
+        while (true) {
+            int info = nodeInfo[node];
+            int axis = info & 3;
+            if (axis != LEAF) {
+                double o = axis == 0 ? ox : (axis == 1 ? oy : oz);
+                double d = axis == 0 ? dx : (axis == 1 ? dy : dz);
+                double rcp = axis == 0 ? rcpX : (axis == 1 ? rcpY : rcpZ);
+                double split = nodeSplit[node];
+                double tPlane = (split - o) * rcp;
+                boolean belowFirst = o < split || (o == split && d <= 0);
+                int first = belowFirst ? node + 1 : info >>> 2;
+                int second = belowFirst ? info >>> 2 : node + 1;
+                if (tPlane > tMax || tPlane <= 0) {
+                    node = first;
+                } else if (tPlane < tMin) {
+                    node = second;
+                } else {
+                    stack[stackIdx] = second;
+                    intervals[2 * stackIdx] = tPlane;
+                    intervals[2 * stackIdx + 1] = tMax;
+                    stackIdx++;
+                    node = first;
+                    tMax = tPlane;
+                }
+                continue;
+            }
+
+            int start = (int) nodeSplit[node];
+            int end = start + (info >>> 2);
+            for (int i = start; i < end; i++) {
+                if (rayIntersectTriangle(leafTriangles[i], intersector, mint, maxt, null) != Double.POSITIVE_INFINITY)
+                    return true;
+            }
+
+            if (stackIdx == 0)
+                break;
+            stackIdx--;
+            node = stack[stackIdx];
+            tMin = intervals[2 * stackIdx];
+            tMax = intervals[2 * stackIdx + 1];
+        }
+        return false;
+    }
+
+    public static class Builder extends WakameObject.Builder {
+        @Override
+        protected WakameObject createInstance() {
+            return new KdTree();
+        }
+    }
+}
@@ -0,0 +1,616 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Builder of a linear BVH (LBVH), optionally with SAH-built upper levels (HLBVH).
+ *
+ * Implements the approach of Lauterbach et al., "Fast BVH Construction on GPUs" (EG 2009), and Pantaleoni and
+ * Luebke, "HLBVH: Hierarchical LBVH Construction for Real-Time Ray Tracing of Dynamic Geometry" (HPG 2010).
+ * Triangle centroids are quantized to 21 bits per axis and interleaved into 63-bit Morton codes, which are
+ * radix sorted in parallel.  The hierarchy then follows directly from the sorted codes: every node splits its
+ * range where the highest differing bit of its codes flips.  All steps are linear in the number of triangles,
+ * so building is much faster than with the SAH builders, at the price of a worse tree.
+ *
+ * In hierarchical mode, the triangles are first grouped into treelets by the top bits of their codes.  The
+ * levels above the treelets are built with a full SAH sweep over the treelet bounds, which recovers most of the
+ * quality lost at the top of the tree where it matters most, and the treelets are then built independently.
+ *
+ * The builder produces the same node layout as the Bvh builders: the left child of a node immediately follows it,
+ * and the triangles of the left child have the smaller centroid coordinates along the recorded axis.
+ */
+class LbvhBuilder {
+    /**
+     * Number of bits per axis in a Morton code.
+     */
+    private static final int MORTON_BITS_PER_AXIS = 21;
+    /**
+     * Number of bits of the Morton code sorted per radix sort pass.
+     */
+    private static final int RADIX_BITS = 8;
+    /**
+     * Number of top Morton code bits shared by the triangles of a treelet in hierarchical mode.
+     */
+    private static final int TREELET_BITS = 12;
+    /**
+     * Ranges with at most this many triangles become leaves.
+     */
+    private static final int MAX_LEAF_SIZE = 4;
+    /**
+     * Nodes deeper than this become leaves, so that traversal stacks cannot overflow.
+     */
+    private static final int MAX_DEPTH = 48;
+    /**
+     * Subtrees with fewer triangles than this are emitted without forking.
+     */
+    private static final int SERIAL_THRESHOLD = 4096;
+    /**
+     * Number of triangles per chunk in the parallel passes.
+     */
+    private static final int CHUNK_SIZE = 16384;
+
+    /**
+     * Centroids of all triangles, in the layout of Bvh.primCentroids.
+     */
+    private final double[] centroids;
+    /**
+     * Bounding boxes of all triangles, in the layout of Bvh.primBounds.
+     */
+    private final double[] bounds;
+    /**
+     * The number of triangles.
+     */
+    private final int triangleCount;
+    /**
+     * Whether to build the upper levels with the SAH.
+     */
+    private final boolean sahTopLevel;
+    /**
+     * The pool that runs all parallel work.
+     */
+    private final ForkJoinPool forkJoinPool;
+    /**
+     * Morton code of the triangle at each position of indices.
+     */
+    private long[] codes;
+
+    /**
+     * Packed node bounds, in the layout of Bvh.nodeBounds.
+     */
+    double[] nodeBounds;
+    /**
+     * Packed node topology, in the layout of Bvh.nodeData.
+     */
+    int[] nodeData;
+    /**
+     * Triangle indices referenced by the leaves.
+     */
+    int[] indices;
+    /**
+     * The number of treelets the upper levels were built over, in hierarchical mode.
+     */
+    int treeletCount;
+
+    /**
+     * Prepare to build a linear BVH.
+     *
+     * @param centroids    the triangle centroids, packed three doubles per triangle
+     * @param bounds       the triangle bounding boxes, packed six doubles per triangle
+     * @param sahTopLevel  whether to build the upper levels with the SAH (HLBVH)
+     * @param forkJoinPool the pool that runs all parallel work
+     */
+    LbvhBuilder(double[] centroids, double[] bounds, boolean sahTopLevel, ForkJoinPool forkJoinPool) {
+        this.centroids = centroids;
+        this.bounds = bounds;
+        this.triangleCount = centroids.length / 3;
+        this.sahTopLevel = sahTopLevel;
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Build the hierarchy.
+     */
+    void build() {
+        int n = triangleCount;
+        nodeBounds = new double[6 * 2 * n];
+        nodeData = new int[2 * 2 * n];
+        indices = new int[n];
+        codes = new long[n];
+
+        computeMortonCodes();
+        radixSort();
+
+        if (sahTopLevel) {
+            buildHierarchical();
+        } else {
+            forkJoinPool.invoke(new EmitTask(0, 0, n, 0));
+        }
+        codes = null;
+    }
+
+    /**
+     * Number of chunks the parallel passes split the triangles into.
+     */
+    private int getChunkCount() {
+        return Math.max(1, Math.min((triangleCount + CHUNK_SIZE - 1) / CHUNK_SIZE,
+                4 * forkJoinPool.getParallelism()));
+    }
+
+    private int getChunkStart(int chunk, int chunkCount) {
+        return (int) ((long) triangleCount * chunk / chunkCount);
+    }
+
+    /**
+     * Run body(i) for every i in [0, count) on the fork-join pool.
+     */
+    private void parallelFor(int count, IntConsumer body) {
+        forkJoinPool.invoke(new RangeTask(0, count, body));
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        final int start;
+        final int end;
+        final IntConsumer body;
+
+        RangeTask(int start, int end, IntConsumer body) {
+            this.start = start;
+            this.end = end;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                body.accept(start);
+            } else if (end > start) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new RangeTask(start, mid, body), new RangeTask(mid, end, body));
+            }
+        }
+    }
+
+    /**
+     * Quantize the triangle centroids within their bounding box and store their Morton codes.
+     */
+    private void computeMortonCodes() {
+        int chunkCount = getChunkCount();
+        double[] chunkBoxes = new double[6 * chunkCount];
+        parallelFor(chunkCount, (int chunk) -> {
+            int offset = 6 * chunk;
+            chunkBoxes[offset] = chunkBoxes[offset + 1] = chunkBoxes[offset + 2] = Double.MAX_VALUE;
+            chunkBoxes[offset + 3] = chunkBoxes[offset + 4] = chunkBoxes[offset + 5] = -Double.MAX_VALUE;
+            for (int i = getChunkStart(chunk, chunkCount); i < getChunkStart(chunk + 1, chunkCount); i++) {
+                for (int k = 0; k < 3; k++) {
+                    chunkBoxes[offset + k] = Math.min(chunkBoxes[offset + k], centroids[3 * i + k]);
+                    chunkBoxes[offset + 3 + k] = Math.max(chunkBoxes[offset + 3 + k], centroids[3 * i + k]);
+                }
+            }
+        });
+
+        double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] scale = new double[3];
+        for (int k = 0; k < 3; k++) {
+            double max = -Double.MAX_VALUE;
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                min[k] = Math.min(min[k], chunkBoxes[6 * chunk + k]);
+                max = Math.max(max, chunkBoxes[6 * chunk + 3 + k]);
+            }
+            double extent = max - min[k];
+            scale[k] = extent > 0 ? (1 << MORTON_BITS_PER_AXIS) / extent : 0;
+        }
+
+        int maxCell = (1 << MORTON_BITS_PER_AXIS) - 1;
+        parallelFor(chunkCount, (int chunk) -> {
+            for (int i = getChunkStart(chunk, chunkCount); i < getChunkStart(chunk + 1, chunkCount); i++) {
+                long x = Math.min(maxCell, (int) ((centroids[3 * i] - min[0]) * scale[0]));
+                long y = Math.min(maxCell, (int) ((centroids[3 * i + 1] - min[1]) * scale[1]));
+                long z = Math.min(maxCell, (int) ((centroids[3 * i + 2] - min[2]) * scale[2]));
+                codes[i] = (spreadBits(x) << 2) | (spreadBits(y) << 1) | spreadBits(z);
+                indices[i] = i;
+            }
+        });
+    }
+
+    /**
+     * Insert two zero bits after each of the lower 21 bits of x.
+     */
+    private static long spreadBits(long x) {
+        x &= 0x1fffffL;
+        x = (x | (x << 32)) & 0x1f00000000ffffL;
+        x = (x | (x << 16)) & 0x1f0000ff0000ffL;
+        x = (x | (x << 8)) & 0x100f00f00f00f00fL;
+        x = (x | (x << 4)) & 0x10c30c30c30c30c3L;
+        x = (x | (x << 2)) & 0x1249249249249249L;
+        return x;
+    }
+
+    /**
+     * Sort indices by Morton code with a parallel least-significant-digit radix sort.
+     *
+     * Each pass counts the digits of every chunk in parallel, turns the counts into per-chunk output offsets,
+     * and scatters the chunks in parallel.  Chunks are scattered in order, so every pass is stable.
+     */
+    private void radixSort() {
+        int n = triangleCount;
+        int radix = 1 << RADIX_BITS;
+        int chunkCount = getChunkCount();
+        int[][] offsets = new int[chunkCount][radix];
+        long[] tempCodes = new long[n];
+        int[] tempIndices = new int[n];
+
+        for (int shift = 0; shift < 3 * MORTON_BITS_PER_AXIS; shift += RADIX_BITS) {
+            final int digitShift = shift;
+            final long[] sourceCodes = codes;
+            final int[] sourceIndices = indices;
+            final long[] targetCodes = tempCodes;
+            final int[] targetIndices = tempIndices;
+
+            parallelFor(chunkCount, (int chunk) -> {
+                int[] counts = offsets[chunk];
+                Arrays.fill(counts, 0);
+                for (int i = getChunkStart(chunk, chunkCount); i < getChunkStart(chunk + 1, chunkCount); i++) {
+                    counts[(int) (sourceCodes[i] >>> digitShift) & (radix - 1)]++;
+                }
+            });
+
+            int total = 0;
+            boolean trivial = false;
+            for (int digit = 0; digit < radix; digit++) {
+                int digitTotal = 0;
+                for (int chunk = 0; chunk < chunkCount; chunk++) {
+                    int count = offsets[chunk][digit];
+                    offsets[chunk][digit] = total + digitTotal;
+                    digitTotal += count;
+                }
+                if (digitTotal == n)
+                    trivial = true;
+                total += digitTotal;
+            }
+            if (trivial) {
+                // Every code has the same digit, so this pass would not change the order.
+                continue;
+            }
+
+            parallelFor(chunkCount, (int chunk) -> {
+                int[] next = offsets[chunk];
+                for (int i = getChunkStart(chunk, chunkCount); i < getChunkStart(chunk + 1, chunkCount); i++) {
+                    int position = next[(int) (sourceCodes[i] >>> digitShift) & (radix - 1)]++;
+                    targetCodes[position] = sourceCodes[i];
+                    targetIndices[position] = sourceIndices[i];
+                }
+            });
+
+            tempCodes = codes;
+            tempIndices = indices;
+            codes = targetCodes;
+            indices = targetIndices;
+        }
+    }
+
+    /**
+     * Emits the subtree over the sorted range [start, end) by splitting it where the highest differing
+     * bit of the Morton codes flips.
+     */
+    private class EmitTask extends RecursiveAction {
+        final int nodeIndex;
+        final int start;
+        final int end;
+        final int depth;
+
+        EmitTask(int nodeIndex, int start, int end, int depth) {
+            this.nodeIndex = nodeIndex;
+            this.start = start;
+            this.end = end;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            emit(nodeIndex, start, end, depth, true);
+        }
+    }
+
+    private void emit(int nodeIndex, int start, int end, int depth, boolean fork) {
+        int size = end - start;
+        if (size <= MAX_LEAF_SIZE || depth >= MAX_DEPTH) {
+            setLeaf(nodeIndex, start, size);
+            return;
+        }
+
+        int split;
+        int axis;
+        long diff = codes[start] ^ codes[end - 1];
+        if (diff == 0) {
+            // All centroids fall into the same cell; split the range in the middle.
+            split = start + size / 2;
+            axis = 0;
+        } else {
+            int bit = 63 - Long.numberOfLeadingZeros(diff);
+            axis = 2 - bit % 3;
+            long mask = 1L << bit;
+            // codes[lo] has the bit cleared and codes[hi] has it set.
+            int lo = start;
+            int hi = end - 1;
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if ((codes[mid] & mask) != 0)
+                    hi = mid;
+                else
+                    lo = mid;
+            }
+            split = hi;
+        }
+
+        int leftCount = split - start;
+        int nodeIndexLeft = nodeIndex + 1;
+        int nodeIndexRight = nodeIndex + 2 * leftCount;
+        if (fork && size >= SERIAL_THRESHOLD) {
+            RecursiveAction.invokeAll(new EmitTask(nodeIndexLeft, start, split, depth + 1),
+                    new EmitTask(nodeIndexRight, split, end, depth + 1));
+        } else {
+            emit(nodeIndexLeft, start, split, depth + 1, false);
+            emit(nodeIndexRight, split, end, depth + 1, false);
+        }
+        setInternalNode(nodeIndex, axis, nodeIndexRight);
+    }
+
+    /**
+     * Build the upper levels over treelets of triangles whose codes share the top TREELET_BITS bits
+     * with the SAH, then emit the treelets in parallel.
+     */
+    private void buildHierarchical() {
+        int n = triangleCount;
+        int shift = 3 * MORTON_BITS_PER_AXIS - TREELET_BITS;
+
+        /* Find the treelets, i.e., runs of equal top bits in the sorted codes */
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        int runStart = 0;
+        for (int i = 1; i <= n; i++) {
+            if (i == n || (codes[i] >>> shift) != (codes[runStart] >>> shift)) {
+                runs.add(new int[] { runStart, i });
+                runStart = i;
+            }
+        }
+        treeletCount = runs.size();
+        int[] treeletStart = new int[treeletCount];
+        int[] treeletEnd = new int[treeletCount];
+        for (int t = 0; t < treeletCount; t++) {
+            treeletStart[t] = runs.get(t)[0];
+            treeletEnd[t] = runs.get(t)[1];
+        }
+
+        double[] treeletBounds = new double[6 * treeletCount];
+        parallelFor(treeletCount, (int t) -> {
+            int offset = 6 * t;
+            treeletBounds[offset] = treeletBounds[offset + 1] = treeletBounds[offset + 2] = Double.MAX_VALUE;
+            treeletBounds[offset + 3] = treeletBounds[offset + 4] = treeletBounds[offset + 5] = -Double.MAX_VALUE;
+            for (int i = treeletStart[t]; i < treeletEnd[t]; i++) {
+                expandBox(treeletBounds, offset, bounds, 6 * indices[i]);
+            }
+        });
+
+        /* Build the upper levels; this decides where each treelet goes in the final order */
+        UpperLevelBuilder upper = new UpperLevelBuilder(treeletStart, treeletEnd, treeletBounds);
+        Integer[] treelets = new Integer[treeletCount];
+        for (int t = 0; t < treeletCount; t++) {
+            treelets[t] = t;
+        }
+        upper.build(0, treelets, 0, treeletCount, 0, 0);
+
+        /* Move the triangles of every treelet to its new position */
+        long[] newCodes = new long[n];
+        int[] newIndices = new int[n];
+        parallelFor(treeletCount, (int t) -> {
+            int length = treeletEnd[t] - treeletStart[t];
+            System.arraycopy(codes, treeletStart[t], newCodes, upper.newStart[t], length);
+            System.arraycopy(indices, treeletStart[t], newIndices, upper.newStart[t], length);
+        });
+        codes = newCodes;
+        indices = newIndices;
+
+        ArrayList<EmitTask> tasks = new ArrayList<EmitTask>();
+        for (int t = 0; t < treeletCount; t++) {
+            tasks.add(new EmitTask(upper.rootNode[t], upper.newStart[t],
+                    upper.newStart[t] + treeletEnd[t] - treeletStart[t], upper.rootDepth[t]));
+        }
+        forkJoinPool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        /* The upper nodes were created parents first, so their bounds can be computed in reverse order */
+        for (int i = upper.internalNodes.size() - 1; i >= 0; i--) {
+            int node = upper.internalNodes.get(i);
+            setUnionBounds(node, node + 1, nodeData[2 * node]);
+        }
+    }
+
+    /**
+     * Builds the levels above the treelets by sorting the treelet centroids along each axis and
+     * evaluating the SAH at every treelet boundary.
+     */
+    private class UpperLevelBuilder {
+        final int[] treeletStart;
+        final int[] treeletEnd;
+        final double[] treeletBounds;
+        /**
+         * For each treelet, the position of its first triangle in the final order.
+         */
+        final int[] newStart;
+        /**
+         * For each treelet, the index of its root node.
+         */
+        final int[] rootNode;
+        /**
+         * For each treelet, the depth of its root node.
+         */
+        final int[] rootDepth;
+        /**
+         * The internal nodes created, parents before children.
+         */
+        final ArrayList<Integer> internalNodes = new ArrayList<Integer>();
+
+        UpperLevelBuilder(int[] treeletStart, int[] treeletEnd, double[] treeletBounds) {
+            this.treeletStart = treeletStart;
+            this.treeletEnd = treeletEnd;
+            this.treeletBounds = treeletBounds;
+            int count = treeletStart.length;
+            newStart = new int[count];
+            rootNode = new int[count];
+            rootDepth = new int[count];
+        }
+
+        private int getTriangleCount(int t) {
+            return treeletEnd[t] - treeletStart[t];
+        }
+
+        private double getCentroid(int t, int axis) {
+            return 0.5 * (treeletBounds[6 * t + axis] + treeletBounds[6 * t + 3 + axis]);
+        }
+
+        void build(int nodeIndex, Integer[] treelets, int start, int end, int primStart, int depth) {
+            if (end - start == 1) {
+                int t = treelets[start];
+                newStart[t] = primStart;
+                rootNode[t] = nodeIndex;
+                rootDepth[t] = depth;
+                return;
+            }
+
+            int bestAxis = -1;
+            int bestSplit = -1;
+            double bestCost = Double.POSITIVE_INFINITY;
+            int size = end - start;
+            double[] leftCost = new double[size];
+            double[] box = new double[6];
+            if (depth >= MAX_DEPTH / 2) {
+                // Deep upper levels split in the middle, so that the treelets stay well above MAX_DEPTH.
+                double bestExtent = -1;
+                for (int axis = 0; axis < 3; axis++) {
+                    double min = Double.MAX_VALUE;
+                    double max = -Double.MAX_VALUE;
+                    for (int i = start; i < end; i++) {
+                        min = Math.min(min, getCentroid(treelets[i], axis));
+                        max = Math.max(max, getCentroid(treelets[i], axis));
+                    }
+                    if (max - min > bestExtent) {
+                        bestExtent = max - min;
+                        bestAxis = axis;
+                    }
+                }
+                bestSplit = size / 2;
+            }
+            for (int axis = 0; axis < 3 && bestSplit < 0; axis++) {
+                final int sortAxis = axis;
+                Arrays.sort(treelets, start, end,
+                        (Integer a, Integer b) -> Double.compare(getCentroid(a, sortAxis), getCentroid(b, sortAxis)));
+
+                // Sweep from the left; leftCost[i] covers treelets [start, start + i].
+                resetBox(box, 0);
+                int prims = 0;
+                for (int i = 0; i < size; i++) {
+                    int t = treelets[start + i];
+                    expandBox(box, 0, treeletBounds, 6 * t);
+                    prims += getTriangleCount(t);
+                    leftCost[i] = prims * getArea(box, 0);
+                }
+
+                // Sweep from the right and evaluate the split before each treelet.
+                resetBox(box, 0);
+                prims = 0;
+                for (int i = size - 1; i >= 1; i--) {
+                    int t = treelets[start + i];
+                    expandBox(box, 0, treeletBounds, 6 * t);
+                    prims += getTriangleCount(t);
+                    double cost = leftCost[i - 1] + prims * getArea(box, 0);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestSplit = i;
+                    }
+                }
+            }
+
+            final int sortAxis = bestAxis;
+            Arrays.sort(treelets, start, end,
+                    (Integer a, Integer b) -> Double.compare(getCentroid(a, sortAxis), getCentroid(b, sortAxis)));
+            int leftPrims = 0;
+            for (int i = start; i < start + bestSplit; i++) {
+                leftPrims += getTriangleCount(treelets[i]);
+            }
+
+            int nodeIndexRight = nodeIndex + 2 * leftPrims;
+            nodeData[2 * nodeIndex] = nodeIndexRight;
+            nodeData[2 * nodeIndex + 1] = -1 - bestAxis;
+            internalNodes.add(nodeIndex);
+            build(nodeIndex + 1, treelets, start, start + bestSplit, primStart, depth + 1);
+            build(nodeIndexRight, treelets, start + bestSplit, end, primStart + leftPrims, depth + 1);
+        }
+    }
+
+    private void setLeaf(int nodeIndex, int start, int size) {
+        nodeData[2 * nodeIndex] = start;
+        nodeData[2 * nodeIndex + 1] = size;
+        int offset = 6 * nodeIndex;
+        resetBox(nodeBounds, offset);
+        for (int i = start; i < start + size; i++) {
+            expandBox(nodeBounds, offset, bounds, 6 * indices[i]);
+        }
+    }
+
+    private void setInternalNode(int nodeIndex, int axis, int rightChild) {
+        nodeData[2 * nodeIndex] = rightChild;
+        nodeData[2 * nodeIndex + 1] = -1 - axis;
+        setUnionBounds(nodeIndex, nodeIndex + 1, rightChild);
+    }
+
+    private void setUnionBounds(int nodeIndex, int left, int right) {
+        int offset = 6 * nodeIndex;
+        resetBox(nodeBounds, offset);
+        expandBox(nodeBounds, offset, nodeBounds, 6 * left);
+        expandBox(nodeBounds, offset, nodeBounds, 6 * right);
+    }
+
+    private static void resetBox(double[] box, int offset) {
+        box[offset] = box[offset + 1] = box[offset + 2] = Double.MAX_VALUE;
+        box[offset + 3] = box[offset + 4] = box[offset + 5] = -Double.MAX_VALUE;
+    }
+
+    private static void expandBox(double[] box, int offset, double[] other, int otherOffset) {
+        for (int k = 0; k < 3; k++) {
+            box[offset + k] = Math.min(box[offset + k], other[otherOffset + k]);
+            box[offset + 3 + k] = Math.max(box[offset + 3 + k], other[otherOffset + 3 + k]);
+        }
+    }
+
+    private static double getArea(double[] box, int offset) {
+        double xx = box[offset + 3] - box[offset];
+        double yy = box[offset + 4] - box[offset + 1];
+        double zz = box[offset + 5] - box[offset + 2];
+        return 2 * (xx * yy + yy * zz + zz * xx);
+    }
+}
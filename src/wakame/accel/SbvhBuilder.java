@@ -0,0 +1,582 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import wakame.mesh.Mesh;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builder of a spatial split BVH (SBVH).
+ *
+ * Implements the algorithm of Stich, Friedrich, and Dietrich, "Spatial Splits in Bounding Volume
+ * Hierarchies" (HPG 2009).  Besides the usual binned object splits, each node may be split by an
+ * axis-aligned plane that cuts through triangles.  A triangle that straddles the plane is referenced by
+ * both children, each reference bounded by the part of the triangle on its side.  This removes most of
+ * the overlap between sibling nodes that large or long and thin triangles cause, at the price of
+ * duplicated references.  The number of duplicates is limited by a memory budget.
+ *
+ * The builder produces the same node layout as the Bvh builders: the left child of a node immediately follows it,
+ * and the triangles of the left child lie below the split plane along the recorded axis.
+ */
+class SbvhBuilder {
+    /**
+     * Spatial splits are only attempted when the children of the best object split overlap by
+     * more than this fraction of the surface area of the root.
+     */
+    private static final double OVERLAP_THRESHOLD = 1e-5;
+    /**
+     * Nodes deeper than this become leaves, so that traversal stacks cannot overflow.
+     */
+    private static final int MAX_DEPTH = 48;
+
+    /**
+     * Number of bins per axis for both object and spatial splits.
+     */
+    private final int binCount;
+    /**
+     * The three vertices of every triangle, packed nine doubles per triangle.
+     */
+    private final double[] vertices;
+    /**
+     * The total number of triangles.
+     */
+    private final int triangleCount;
+    /**
+     * The largest number of triangle references the hierarchy may hold.
+     */
+    private final int maxReferenceCount;
+    /**
+     * The current number of triangle references, duplicates included.
+     */
+    private int referenceCount;
+    /**
+     * Surface area of the bounding box of the whole scene.
+     */
+    private double rootArea;
+
+    /**
+     * Packed node bounds, in the layout of Bvh.nodeBounds.
+     */
+    double[] nodeBounds;
+    /**
+     * Packed node topology, in the layout of Bvh.nodeData.
+     */
+    int[] nodeData;
+    /**
+     * The number of nodes created.
+     */
+    int nodeCount;
+    /**
+     * Triangle references of the leaves.
+     */
+    int[] indices;
+    /**
+     * The number of entries of indices in use.
+     */
+    int indexCount;
+    /**
+     * The number of spatial splits performed.
+     */
+    int spatialSplitCount;
+
+    /**
+     * Prepare to build an SBVH over all triangles of the given meshes.
+     *
+     * @param meshes the meshes
+     * @param binCount the number of bins per axis
+     * @param splitBudget the number of duplicated references allowed, as a fraction of the number of triangles
+     */
+    SbvhBuilder(List<Mesh> meshes, int binCount, double splitBudget) {
+        this.binCount = binCount;
+
+        int count = 0;
+        for (Mesh mesh : meshes) {
+            count += mesh.getTriangleCount();
+        }
+        triangleCount = count;
+        maxReferenceCount = (int) Math.min(Integer.MAX_VALUE / 9, (long) (count * (1 + splitBudget)));
+
+        vertices = new double[9 * count];
+        int offset = 0;
+        for (Mesh mesh : meshes) {
+            double[] V = mesh.getPositionArray();
+            int[] F = mesh.getIndexArray();
+            for (int i = 0; i < F.length; i++) {
+                System.arraycopy(V, 3 * F[i], vertices, 9 * offset + 3 * i, 3);
+            }
+            offset += mesh.getTriangleCount();
+        }
+    }
+
+    /**
+     * Build the hierarchy.
+     */
+    void build() {
+        int[] tris = new int[triangleCount];
+        double[] bounds = new double[6 * triangleCount];
+        double[] root = emptyBox();
+        for (int i = 0; i < triangleCount; i++) {
+            tris[i] = i;
+            int offset = 6 * i;
+            resetBox(bounds, offset);
+            for (int corner = 0; corner < 3; corner++) {
+                for (int k = 0; k < 3; k++) {
+                    double x = vertices[9 * i + 3 * corner + k];
+                    bounds[offset + k] = Math.min(bounds[offset + k], x);
+                    bounds[offset + 3 + k] = Math.max(bounds[offset + 3 + k], x);
+                }
+            }
+            expandBox(root, 0, bounds, offset);
+        }
+        rootArea = getArea(root, 0);
+        referenceCount = triangleCount;
+
+        nodeBounds = new double[6 * 2 * triangleCount];
+        nodeData = new int[2 * 2 * triangleCount];
+        indices = new int[triangleCount];
+        nodeCount = 0;
+        indexCount = 0;
+        spatialSplitCount = 0;
+
+        buildNode(tris, bounds, triangleCount, 0);
+    }
+
+    /**
+     * A candidate split of a node.
+     */
+    private static class Split {
+        double cost = Double.POSITIVE_INFINITY;
+        int axis = -1;
+        int bin;
+        boolean spatial;
+        final double[] leftBox = emptyBox();
+        final double[] rightBox = emptyBox();
+    }
+
+    /**
+     * Build the subtree over the given references and return the index of its root node.
+     */
+    private int buildNode(int[] tris, double[] bounds, int count, int depth) {
+        int node = allocateNode();
+
+        double[] nodeBox = emptyBox();
+        double[] centroidBox = emptyBox();
+        for (int i = 0; i < count; i++) {
+            expandBox(nodeBox, 0, bounds, 6 * i);
+            for (int k = 0; k < 3; k++) {
+                double c = 0.5 * (bounds[6 * i + k] + bounds[6 * i + 3 + k]);
+                centroidBox[k] = Math.min(centroidBox[k], c);
+                centroidBox[3 + k] = Math.max(centroidBox[3 + k], c);
+            }
+        }
+        setBounds(node, nodeBox);
+
+        double leafCost = Bvh.INTERSECTION_COST * count;
+        Split best = null;
+        if (count > 1 && depth < MAX_DEPTH) {
+            double triFactor = Bvh.INTERSECTION_COST / getArea(nodeBox, 0);
+            best = findObjectSplit(bounds, count, centroidBox, triFactor);
+
+            if (referenceCount < maxReferenceCount) {
+                double overlap = best.axis == -1 ? 0 : getOverlapArea(best.leftBox, best.rightBox);
+                if (best.axis == -1 || overlap / rootArea > OVERLAP_THRESHOLD) {
+                    Split spatial = findSpatialSplit(tris, bounds, count, nodeBox, triFactor);
+                    if (spatial.cost < best.cost)
+                        best = spatial;
+                }
+            }
+        }
+
+        if (best == null || best.axis == -1 || !(best.cost < leafCost)) {
+            makeLeaf(node, tris, count, nodeBox);
+            return node;
+        }
+
+        // Distribute the references between the two children.
+        int[] leftTris = new int[count];
+        double[] leftBounds = new double[6 * count];
+        int[] rightTris = new int[count];
+        double[] rightBounds = new double[6 * count];
+        int leftCount = 0;
+        int rightCount = 0;
+
+        if (!best.spatial) {
+            double scale = binCount / (centroidBox[3 + best.axis] - centroidBox[best.axis]);
+            for (int i = 0; i < count; i++) {
+                double c = 0.5 * (bounds[6 * i + best.axis] + bounds[6 * i + 3 + best.axis]);
+                if (getBin(c, centroidBox[best.axis], scale) <= best.bin) {
+                    leftTris[leftCount] = tris[i];
+                    System.arraycopy(bounds, 6 * i, leftBounds, 6 * leftCount, 6);
+                    leftCount++;
+                } else {
+                    rightTris[rightCount] = tris[i];
+                    System.arraycopy(bounds, 6 * i, rightBounds, 6 * rightCount, 6);
+                    rightCount++;
+                }
+            }
+        } else {
+            int axis = best.axis;
+            double lo = nodeBox[axis];
+            double width = (nodeBox[3 + axis] - lo) / binCount;
+            double plane = lo + (best.bin + 1) * width;
+
+            // References entirely on one side go to that side.
+            double[] leftBox = emptyBox();
+            double[] rightBox = emptyBox();
+            int straddling = 0;
+            int[] straddlingRefs = new int[count];
+            for (int i = 0; i < count; i++) {
+                if (bounds[6 * i + 3 + axis] <= plane) {
+                    leftTris[leftCount] = tris[i];
+                    System.arraycopy(bounds, 6 * i, leftBounds, 6 * leftCount, 6);
+                    expandBox(leftBox, 0, bounds, 6 * i);
+                    leftCount++;
+                } else if (bounds[6 * i + axis] >= plane) {
+                    rightTris[rightCount] = tris[i];
+                    System.arraycopy(bounds, 6 * i, rightBounds, 6 * rightCount, 6);
+                    expandBox(rightBox, 0, bounds, 6 * i);
+                    rightCount++;
+                } else {
+                    straddlingRefs[straddling++] = i;
+                }
+            }
+
+            // Straddling references are split in two, unless moving them to one side is cheaper.
+            double[] leftPart = new double[6];
+            double[] rightPart = new double[6];
+            double[] unionBox = new double[6];
+            for (int s = 0; s < straddling; s++) {
+                int i = straddlingRefs[s];
+                int tri = tris[i];
+                clipTriangle(tri, axis, -Double.MAX_VALUE, plane, bounds, 6 * i, leftPart);
+                clipTriangle(tri, axis, plane, Double.MAX_VALUE, bounds, 6 * i, rightPart);
+
+                int nl = leftCount + (straddling - s);
+                int nr = rightCount + (straddling - s);
+                double splitCost = getArea(union(leftBox, leftPart, unionBox), 0) * nl
+                        + getArea(union(rightBox, rightPart, unionBox), 0) * nr;
+                double leftOnlyCost = getArea(union(leftBox, bounds, 6 * i, new double[6]), 0) * nl
+                        + getArea(rightBox, 0) * (nr - 1);
+                double rightOnlyCost = getArea(leftBox, 0) * (nl - 1)
+                        + getArea(union(rightBox, bounds, 6 * i, new double[6]), 0) * nr;
+
+                boolean validLeft = !isEmpty(leftPart);
+                boolean validRight = !isEmpty(rightPart);
+                if (!validRight || (validLeft && leftOnlyCost < splitCost && leftOnlyCost <= rightOnlyCost)) {
+                    leftTris[leftCount] = tri;
+                    System.arraycopy(bounds, 6 * i, leftBounds, 6 * leftCount, 6);
+                    expandBox(leftBox, 0, bounds, 6 * i);
+                    leftCount++;
+                } else if (!validLeft || rightOnlyCost < splitCost) {
+                    rightTris[rightCount] = tri;
+                    System.arraycopy(bounds, 6 * i, rightBounds, 6 * rightCount, 6);
+                    expandBox(rightBox, 0, bounds, 6 * i);
+                    rightCount++;
+                } else {
+                    if (leftCount == leftTris.length) {
+                        leftTris = Arrays.copyOf(leftTris, 2 * leftTris.length);
+                        leftBounds = Arrays.copyOf(leftBounds, 2 * leftBounds.length);
+                    }
+                    if (rightCount == rightTris.length) {
+                        rightTris = Arrays.copyOf(rightTris, 2 * rightTris.length);
+                        rightBounds = Arrays.copyOf(rightBounds, 2 * rightBounds.length);
+                    }
+                    leftTris[leftCount] = tri;
+                    System.arraycopy(leftPart, 0, leftBounds, 6 * leftCount, 6);
+                    expandBox(leftBox, 0, leftPart, 0);
+                    leftCount++;
+                    rightTris[rightCount] = tri;
+                    System.arraycopy(rightPart, 0, rightBounds, 6 * rightCount, 6);
+                    expandBox(rightBox, 0, rightPart, 0);
+                    rightCount++;
+                    referenceCount++;
+                }
+            }
+            spatialSplitCount++;
+        }
+
+        if (leftCount == 0 || rightCount == 0) {
+            makeLeaf(node, tris, count, nodeBox);
+            return node;
+        }
+
+        // The parent's references are no longer needed once they have been distributed.
+        tris = null;
+        bounds = null;
+
+        buildNode(leftTris, leftBounds, leftCount, depth + 1);
+        leftTris = null;
+        leftBounds = null;
+        int rightChild = buildNode(rightTris, rightBounds, rightCount, depth + 1);
+        nodeData[2 * node] = rightChild;
+        nodeData[2 * node + 1] = -1 - best.axis;
+        return node;
+    }
+
+    /**
+     * Find the best binned object split, where each reference goes to the side its centroid falls on.
+     */
+    private Split findObjectSplit(double[] bounds, int count, double[] centroidBox, double triFactor) {
+        Split best = new Split();
+        int[] binCounts = new int[binCount];
+        double[] binBounds = new double[6 * binCount];
+        double[] rightAreas = new double[binCount];
+        double[] rightBoxes = new double[6 * binCount];
+        double[] box = emptyBox();
+
+        for (int axis = 0; axis < 3; axis++) {
+            double extent = centroidBox[3 + axis] - centroidBox[axis];
+            if (!(extent > 0))
+                continue;
+
+            Arrays.fill(binCounts, 0);
+            for (int b = 0; b < binCount; b++) {
+                resetBox(binBounds, 6 * b);
+            }
+            double scale = binCount / extent;
+            for (int i = 0; i < count; i++) {
+                double c = 0.5 * (bounds[6 * i + axis] + bounds[6 * i + 3 + axis]);
+                int b = getBin(c, centroidBox[axis], scale);
+                binCounts[b]++;
+                expandBox(binBounds, 6 * b, bounds, 6 * i);
+            }
+
+            evaluateBins(axis, binCounts, null, binBounds, count, triFactor, false, best, rightAreas, rightBoxes, box);
+        }
+        return best;
+    }
+
+    /**
+     * Find the best spatial split, where the planes are the boundaries of equally sized bins
+     * spanning the node's bounding box.
+     */
+    private Split findSpatialSplit(int[] tris, double[] bounds, int count, double[] nodeBox, double triFactor) {
+        Split best = new Split();
+        int[] entries = new int[binCount];
+        int[] exits = new int[binCount];
+        double[] binBounds = new double[6 * binCount];
+        double[] rightAreas = new double[binCount];
+        double[] rightBoxes = new double[6 * binCount];
+        double[] box = emptyBox();
+        double[] clipped = new double[6];
+
+        for (int axis = 0; axis < 3; axis++) {
+            double lo = nodeBox[axis];
+            double extent = nodeBox[3 + axis] - lo;
+            if (!(extent > 0))
+                continue;
+
+            Arrays.fill(entries, 0);
+            Arrays.fill(exits, 0);
+            for (int b = 0; b < binCount; b++) {
+                resetBox(binBounds, 6 * b);
+            }
+            double scale = binCount / extent;
+            double width = extent / binCount;
+            for (int i = 0; i < count; i++) {
+                int first = getBin(bounds[6 * i + axis], lo, scale);
+                int last = getBin(bounds[6 * i + 3 + axis], lo, scale);
+                entries[first]++;
+                exits[last]++;
+                if (first == last) {
+                    expandBox(binBounds, 6 * first, bounds, 6 * i);
+                    continue;
+                }
+                for (int b = first; b <= last; b++) {
+                    double binLo = b == first ? -Double.MAX_VALUE : lo + b * width;
+                    double binHi = b == last ? Double.MAX_VALUE : lo + (b + 1) * width;
+                    clipTriangle(tris[i], axis, binLo, binHi, bounds, 6 * i, clipped);
+                    if (!isEmpty(clipped))
+                        expandBox(binBounds, 6 * b, clipped, 0);
+                }
+            }
+
+            evaluateBins(axis, entries, exits, binBounds, count, triFactor, true, best, rightAreas, rightBoxes, box);
+        }
+        return best;
+    }
+
+    /**
+     * Sweep over the bins along one axis and update best with the cheapest split found.
+     *
+     * For object splits, leftCounts holds the number of references per bin and rightCounts is null.
+     * For spatial splits, leftCounts and rightCounts hold the number of references entering and
+     * leaving each bin.
+     */
+    private void evaluateBins(int axis, int[] leftCounts, int[] rightCounts, double[] binBounds, int count,
+                              double triFactor, boolean spatial, Split best,
+                              double[] rightAreas, double[] rightBoxes, double[] box) {
+        int[] primsRightOf = new int[binCount];
+        resetBox(box, 0);
+        int primsRight = 0;
+        for (int b = binCount - 1; b >= 1; b--) {
+            expandBox(box, 0, binBounds, 6 * b);
+            System.arraycopy(box, 0, rightBoxes, 6 * b, 6);
+            rightAreas[b] = getArea(box, 0);
+            primsRight += spatial ? rightCounts[b] : leftCounts[b];
+            primsRightOf[b] = primsRight;
+        }
+
+        resetBox(box, 0);
+        int primsLeft = 0;
+        for (int b = 0; b < binCount - 1; b++) {
+            expandBox(box, 0, binBounds, 6 * b);
+            primsLeft += leftCounts[b];
+            int right = primsRightOf[b + 1];
+            if (primsLeft == 0 || right == 0)
+                continue;
+            double cost = 2.0 * Bvh.TRAVERSAL_COST
+                    + triFactor * (primsLeft * getArea(box, 0) + right * rightAreas[b + 1]);
+            if (cost < best.cost) {
+                best.cost = cost;
+                best.axis = axis;
+                best.bin = b;
+                best.spatial = spatial;
+                System.arraycopy(box, 0, best.leftBox, 0, 6);
+                System.arraycopy(rightBoxes, 6 * (b + 1), best.rightBox, 0, 6);
+            }
+        }
+    }
+
+    /**
+     * Compute the bounding box of the part of a triangle that lies in the slab lo <= x[axis] <= hi,
+     * intersected with the given reference bounds.
+     */
+    private void clipTriangle(int tri, int axis, double lo, double hi, double[] refBounds, int refOffset,
+                              double[] out) {
+        resetBox(out, 0);
+        int base = 9 * tri;
+        for (int corner = 0; corner < 3; corner++) {
+            int v0 = base + 3 * corner;
+            int v1 = base + 3 * ((corner + 1) % 3);
+            double a = vertices[v0 + axis];
+            double b = vertices[v1 + axis];
+
+            if (a >= lo && a <= hi)
+                expandPoint(out, vertices, v0);
+
+            // Add the points where the edge crosses the slab boundaries.
+            if ((a < lo && b > lo) || (a > lo && b < lo))
+                expandEdgePoint(out, v0, v1, (lo - a) / (b - a));
+            if ((a < hi && b > hi) || (a > hi && b < hi))
+                expandEdgePoint(out, v0, v1, (hi - a) / (b - a));
+        }
+
+        for (int k = 0; k < 3; k++) {
+            out[k] = Math.max(out[k], refBounds[refOffset + k]);
+            out[3 + k] = Math.min(out[3 + k], refBounds[refOffset + 3 + k]);
+        }
+        out[axis] = Math.max(out[axis], lo);
+        out[3 + axis] = Math.min(out[3 + axis], hi);
+    }
+
+    private void expandPoint(double[] box, double[] points, int offset) {
+        for (int k = 0; k < 3; k++) {
+            box[k] = Math.min(box[k], points[offset + k]);
+            box[3 + k] = Math.max(box[3 + k], points[offset + k]);
+        }
+    }
+
+    private void expandEdgePoint(double[] box, int v0, int v1, double t) {
+        for (int k = 0; k < 3; k++) {
+            double x = vertices[v0 + k] + t * (vertices[v1 + k] - vertices[v0 + k]);
+            box[k] = Math.min(box[k], x);
+            box[3 + k] = Math.max(box[3 + k], x);
+        }
+    }
+
+    private void makeLeaf(int node, int[] tris, int count, double[] nodeBox) {
+        if (indexCount + count > indices.length) {
+            indices = Arrays.copyOf(indices, Math.max(indexCount + count, 2 * indices.length));
+        }
+        System.arraycopy(tris, 0, indices, indexCount, count);
+        nodeData[2 * node] = indexCount;
+        nodeData[2 * node + 1] = count;
+        indexCount += count;
+    }
+
+    private int allocateNode() {
+        if (nodeCount == nodeData.length / 2) {
+            nodeData = Arrays.copyOf(nodeData, 2 * nodeData.length);
+            nodeBounds = Arrays.copyOf(nodeBounds, 2 * nodeBounds.length);
+        }
+        return nodeCount++;
+    }
+
+    private void setBounds(int node, double[] box) {
+        System.arraycopy(box, 0, nodeBounds, 6 * node, 6);
+    }
+
+    private int getBin(double x, double lo, double scale) {
+        int b = (int) ((x - lo) * scale);
+        return Math.max(0, Math.min(binCount - 1, b));
+    }
+
+    private static double[] emptyBox() {
+        double[] box = new double[6];
+        resetBox(box, 0);
+        return box;
+    }
+
+    private static void resetBox(double[] box, int offset) {
+        box[offset] = box[offset + 1] = box[offset + 2] = Double.MAX_VALUE;
+        box[offset + 3] = box[offset + 4] = box[offset + 5] = -Double.MAX_VALUE;
+    }
+
+    private static void expandBox(double[] box, int offset, double[] other, int otherOffset) {
+        for (int k = 0; k < 3; k++) {
+            box[offset + k] = Math.min(box[offset + k], other[otherOffset + k]);
+            box[offset + 3 + k] = Math.max(box[offset + 3 + k], other[otherOffset + 3 + k]);
+        }
+    }
+
+    private static double[] union(double[] a, double[] b, double[] out) {
+        return union(a, b, 0, out);
+    }
+
+    private static double[] union(double[] a, double[] b, int bOffset, double[] out) {
+        System.arraycopy(a, 0, out, 0, 6);
+        expandBox(out, 0, b, bOffset);
+        return out;
+    }
+
+    private static boolean isEmpty(double[] box) {
+        return box[0] > box[3] || box[1] > box[4] || box[2] > box[5];
+    }
+
+    private static double getArea(double[] box, int offset) {
+        double xx = box[offset + 3] - box[offset];
+        double yy = box[offset + 4] - box[offset + 1];
+        double zz = box[offset + 5] - box[offset + 2];
+        if (xx < 0 || yy < 0 || zz < 0)
+            return 0;
+        return 2 * (xx * yy + yy * zz + zz * xx);
+    }
+
+    private static double getOverlapArea(double[] a, double[] b) {
+        double[] overlap = new double[6];
+        for (int k = 0; k < 3; k++) {
+            overlap[k] = Math.max(a[k], b[k]);
+            overlap[3 + k] = Math.min(a[3 + k], b[3 + k]);
+        }
+        return getArea(overlap, 0);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import java.util.Arrays;
+
+/**
+ * Arranges the nodes of a freshly built tree in memory.
+ *
+ * The builders emit a node's left child right after it and its right child wherever the left subtree ends.
+ * That fixes the order to left-first depth-first, in which the right child of a hot node near the root can lie
+ * far away from it.  This pass renumbers the nodes so that the two children of every internal node form an
+ * adjacent pair (which the traversal fetches together), and places the pairs in one of the orders of
+ * Bvh.NodeLayout.  After the pass, an internal node records its first child, and the second child follows it.
+ */
+class TreeLayout {
+    /**
+     * Size of a treelet in the Treelet layout.  A node takes 56 bytes, so even a single sibling pair is larger
+     * than a cache line; treelets are therefore sized to a 4 KB page, which keeps the nodes most likely to be
+     * visited together in the same page and in nearby lines that the hardware prefetcher fetches ahead.
+     */
+    private static final int TREELET_BYTES = 4096;
+    /**
+     * Number of sibling pairs per treelet.
+     */
+    private static final int TREELET_PAIRS = TREELET_BYTES / (2 * (6 * 8 + 2 * 4));
+
+    private final double[] nodeBounds;
+    private final int[] nodeData;
+    /**
+     * The internal nodes whose child pairs have been placed, in placement order.
+     */
+    private final int[] pairOrder;
+    private int pairCount = 0;
+    /**
+     * The internal nodes just below the levels placed so far by placeVanEmdeBoas().
+     */
+    private int[] fringe;
+    private int fringeCount = 0;
+
+    /**
+     * Prepare to rearrange a tree in the layout of the builders.
+     *
+     * @param nodeBounds the node bounds, with the left child of every internal node right after it
+     * @param nodeData   the node data, with the index of the right child stored in every internal node
+     */
+    TreeLayout(double[] nodeBounds, int[] nodeData) {
+        this.nodeBounds = nodeBounds;
+        this.nodeData = nodeData;
+        pairOrder = new int[nodeData.length / 4];
+    }
+
+    private boolean isInternal(int node) {
+        return nodeData[2 * node + 1] < 0;
+    }
+
+    private int getLeft(int node) {
+        return node + 1;
+    }
+
+    private int getRight(int node) {
+        return nodeData[2 * node];
+    }
+
+    /**
+     * Rearrange the tree.
+     *
+     * @param layout the order in which to place the sibling pairs
+     * @return the new node bounds in index 0 and the new node data in index 1, both without unused slots
+     */
+    Object[] apply(Bvh.NodeLayout layout) {
+        if (isInternal(0)) {
+            switch (layout) {
+                case Treelet:
+                    placeTreelets();
+                    break;
+                case VanEmdeBoas:
+                    fringe = new int[pairOrder.length + 1];
+                    placeVanEmdeBoas(0, getHeight(0));
+                    fringe = null;
+                    break;
+                default:
+                    placeDepthFirst();
+                    break;
+            }
+        }
+
+        int nodeCount = 1 + 2 * pairCount;
+        int[] newIndex = new int[nodeData.length / 2];
+        for (int k = 0; k < pairCount; k++) {
+            int parent = pairOrder[k];
+            newIndex[getLeft(parent)] = 1 + 2 * k;
+            newIndex[getRight(parent)] = 2 + 2 * k;
+        }
+
+        double[] newBounds = new double[6 * nodeCount];
+        int[] newData = new int[2 * nodeCount];
+        copyNode(0, 0, newIndex, newBounds, newData);
+        for (int k = 0; k < pairCount; k++) {
+            int parent = pairOrder[k];
+            copyNode(getLeft(parent), newIndex[getLeft(parent)], newIndex, newBounds, newData);
+            copyNode(getRight(parent), newIndex[getRight(parent)], newIndex, newBounds, newData);
+        }
+        return new Object[] { newBounds, newData };
+    }
+
+    private void copyNode(int node, int target, int[] newIndex, double[] newBounds, int[] newData) {
+        System.arraycopy(nodeBounds, 6 * node, newBounds, 6 * target, 6);
+        newData[2 * target] = isInternal(node) ? newIndex[getLeft(node)] : nodeData[2 * node];
+        newData[2 * target + 1] = nodeData[2 * node + 1];
+    }
+
+    /**
+     * Place the pairs in depth-first order: the pair of a node, then the subtree of the left child,
+     * then the subtree of the right child.
+     */
+    private void placeDepthFirst() {
+        int[] stack = new int[Bvh.STACK_SIZE];
+        int stackIdx = 0;
+        stack[stackIdx++] = 0;
+        while (stackIdx > 0) {
+            int node = stack[--stackIdx];
+            pairOrder[pairCount++] = node;
+            if (isInternal(getRight(node)))
+                stack[stackIdx++] = getRight(node);
+            if (isInternal(getLeft(node)))
+                stack[stackIdx++] = getLeft(node);
+        }
+    }
+
+    /**
+     * Cut the tree into treelets of TREELET_PAIRS pairs and place each treelet contiguously.  A treelet
+     * grows from its root by repeatedly adding the pair below the largest node it can reach, since a ray is
+     * most likely to visit the children of a large node.  The nodes left on its fringe root the next treelets.
+     */
+    private void placeTreelets() {
+        int[] roots = new int[64];
+        int rootCount = 0;
+        roots[rootCount++] = 0;
+        NodeHeap candidates = new NodeHeap(pairOrder.length + 1);
+
+        while (rootCount > 0) {
+            candidates.add(roots[--rootCount]);
+            int placed = 0;
+            while (candidates.size > 0 && placed < TREELET_PAIRS) {
+                int node = candidates.poll();
+                pairOrder[pairCount++] = node;
+                placed++;
+                if (isInternal(getLeft(node)))
+                    candidates.add(getLeft(node));
+                if (isInternal(getRight(node)))
+                    candidates.add(getRight(node));
+            }
+
+            /* Continue depth-first with the subtrees hanging off this treelet, so that nearby treelets
+               stay close in memory */
+            int fringeSize = candidates.size;
+            Arrays.sort(candidates.nodes, 0, fringeSize);
+            if (rootCount + fringeSize > roots.length)
+                roots = Arrays.copyOf(roots, Math.max(2 * roots.length, rootCount + fringeSize));
+            for (int i = fringeSize - 1; i >= 0; i--) {
+                roots[rootCount++] = candidates.nodes[i];
+            }
+            candidates.size = 0;
+        }
+    }
+
+    /**
+     * Binary max-heap of nodes keyed by their surface area, sifting the same way as java.util.PriorityQueue.
+     */
+    private class NodeHeap {
+        final int[] nodes;
+        final double[] areas;
+        int size = 0;
+
+        NodeHeap(int capacity) {
+            nodes = new int[capacity];
+            areas = new double[capacity];
+        }
+
+        void add(int node) {
+            double area = getSurfaceArea(node);
+            int k = size++;
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (Double.compare(areas[parent], area) >= 0)
+                    break;
+                nodes[k] = nodes[parent];
+                areas[k] = areas[parent];
+                k = parent;
+            }
+            nodes[k] = node;
+            areas[k] = area;
+        }
+
+        int poll() {
+            int result = nodes[0];
+            int n = --size;
+            if (n > 0) {
+                int node = nodes[n];
+                double area = areas[n];
+                int k = 0;
+                int half = n >>> 1;
+                while (k < half) {
+                    int child = 2 * k + 1;
+                    int right = child + 1;
+                    if (right < n && Double.compare(areas[right], areas[child]) > 0)
+                        child = right;
+                    if (Double.compare(areas[child], area) <= 0)
+                        break;
+                    nodes[k] = nodes[child];
+                    areas[k] = areas[child];
+                    k = child;
+                }
+                nodes[k] = node;
+                areas[k] = area;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Place the pairs of the top levels levels of the subtree below node in van Emde Boas order: the top half
+     * of the levels first, then each subtree hanging off it, each recursively in the same order.  The internal
+     * nodes just below the placed levels are appended to fringe.
+     *
+     * @param node   the root of the subtree
+     * @param levels the number of levels of pairs to place
+     */
+    private void placeVanEmdeBoas(int node, int levels) {
+        if (levels == 1) {
+            pairOrder[pairCount++] = node;
+            if (isInternal(getLeft(node)))
+                fringe[fringeCount++] = getLeft(node);
+            if (isInternal(getRight(node)))
+                fringe[fringeCount++] = getRight(node);
+            return;
+        }
+        int topLevels = levels / 2;
+        int middleStart = fringeCount;
+        placeVanEmdeBoas(node, topLevels);
+        int middleEnd = fringeCount;
+        for (int i = middleStart; i < middleEnd; i++) {
+            placeVanEmdeBoas(fringe[i], levels - topLevels);
+        }
+        /* Drop the middle nodes, keeping only the fringe of the subtrees below them */
+        System.arraycopy(fringe, middleEnd, fringe, middleStart, fringeCount - middleEnd);
+        fringeCount -= middleEnd - middleStart;
+    }
+
+    /**
+     * Return the number of levels of internal nodes in the subtree below the given internal node.
+     */
+    private int getHeight(int node) {
+        int height = 1;
+        if (isInternal(getLeft(node)))
+            height = Math.max(height, 1 + getHeight(getLeft(node)));
+        if (isInternal(getRight(node)))
+            height = Math.max(height, 1 + getHeight(getRight(node)));
+        return height;
+    }
+
+    private double getSurfaceArea(int node) {
+        int offset = 6 * node;
+        double xx = nodeBounds[offset + 3] - nodeBounds[offset];
+        double yy = nodeBounds[offset + 4] - nodeBounds[offset + 1];
+        double zz = nodeBounds[offset + 5] - nodeBounds[offset + 2];
+        return 2 * (xx * yy + yy * zz + zz * xx);
+    }
+}
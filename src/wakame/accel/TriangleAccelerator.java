@@ -0,0 +1,291 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wakame.WakameObject;
+import wakame.mesh.Instance;
+import wakame.mesh.Mesh;
+import wakame.mesh.WatertightIntersector;
+import wakame.struct.Aabb3d;
+import wakame.struct.Intersection;
+import wakame.struct.Ray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Base of the accelerators other than Bvh
+ *
+ * Gathers the triangles of the registered meshes into packed arrays (nine doubles of vertex data per
+ * triangle, plus the bounding box of each triangle while building), and answers the ray queries with the
+ * closest-hit and any-hit traversals of the subclass.  Instances are not handled by the subclasses: they are
+ * placed in a two-level BVH (see InstanceBvh), which is traced after the triangles with the ray clipped to
+ * the closest triangle hit.  That BVH is configured by the "bvh"-prefixed properties of the accel tag (see
+ * setInstanceBvhProperties()), and uses the default Bvh settings otherwise.
+ */
+abstract class TriangleAccelerator extends Accelerator {
+    /**
+     * The logger
+     */
+    private static Logger logger = LoggerFactory.getLogger(TriangleAccelerator.class);
+    /**
+     * The registered meshes, not counting instances.
+     */
+    protected final ArrayList<Mesh> meshes = new ArrayList<Mesh>();
+    /**
+     * The registered instances.
+     */
+    private final ArrayList<Instance> instances = new ArrayList<Instance>();
+    /**
+     * The bounding box of everything registered.
+     */
+    protected final Aabb3d bbox = new Aabb3d();
+    /**
+     * The number of triangles.
+     */
+    protected int triangleCount;
+    /**
+     * The vertices of each triangle, nine doubles per triangle.
+     */
+    protected double[] triangleData;
+    /**
+     * The bounding box of each triangle (min x, y, z, then max x, y, z).  Only available during
+     * buildStructure().
+     */
+    protected double[] triangleBounds;
+    /**
+     * The index of the mesh of each triangle.
+     */
+    private int[] triangleMesh;
+    /**
+     * The index of each triangle within its mesh.
+     */
+    private int[] trianglePrim;
+    /**
+     * The BVH whose build settings the two-level BVH over the instances uses (see Bvh.createSubBvh()).
+     */
+    private Bvh instanceBvhSettings = new Bvh();
+    /**
+     * The two-level BVH over the instances, or null if there are none.
+     */
+    private InstanceBvh instanceBvh = null;
+    /**
+     * Per-thread ray-triangle intersector.
+     */
+    private final ThreadLocal<WatertightIntersector> rayIntersector =
+            ThreadLocal.withInitial(WatertightIntersector::new);
+
+    @Override
+    public void addMesh(Mesh mesh) {
+        Aabb3d meshBbox = new Aabb3d();
+        mesh.getBoundingBox(meshBbox);
+        bbox.expandBy(meshBbox);
+        if (mesh instanceof Instance) {
+            instances.add((Instance) mesh);
+        } else {
+            meshes.add(mesh);
+        }
+    }
+
+    @Override
+    public void getBoundingBox(Aabb3d bbox) {
+        bbox.set(this.bbox);
+    }
+
+    @Override
+    public void build() {
+        long start = System.currentTimeMillis();
+
+        packTriangles();
+        if (triangleCount > 0) {
+            logger.info("Constructing " + getClass().getSimpleName() + " from " + meshes.size() + " mesh(es) with "
+                    + triangleCount + " triangles.");
+            buildStructure();
+        }
+        triangleBounds = null;
+        if (!instances.isEmpty()) {
+            instanceBvh = new InstanceBvh(instanceBvhSettings, instances);
+        }
+
+        long end = System.currentTimeMillis();
+        long elapsed = end - start;
+        logger.info(String.format("%s building took %d min(s) %d second(s) %d ms", getClass().getSimpleName(),
+                elapsed / (60 * 1000), (elapsed / 1000) % 60, elapsed % 1000));
+    }
+
+    /**
+     * Set the build settings of the two-level BVH over the instances from the properties of an accel tag.
+     * They are the properties of Bvh (see Bvh.setProperties()) prefixed with "bvh", as for the default BVH
+     * of a scene: "bvhBuildMode", "bvhBinCount", "bvhSplitBudget", "bvhWide", "bvhNodeLayout", and
+     * "bvhSinglePrecision".  Subclasses call this from setProperties().
+     *
+     * @param properties the properties as a map from property name to values
+     */
+    protected void setInstanceBvhProperties(HashMap<String, Object> properties) {
+        WakameObject.Builder builder = new Bvh.Builder();
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith("bvh") && name.length() > 3) {
+                builder.setProperty(Character.toLowerCase(name.charAt(3)) + name.substring(4), entry.getValue());
+            }
+        }
+        instanceBvhSettings = (Bvh) builder.build();
+    }
+
+    /**
+     * Build the structure over the packed triangles.  Called by build() when there is at least one triangle.
+     */
+    protected abstract void buildStructure();
+
+    /**
+     * Find the closest triangle hit within [mint, maxt], writing its distance and barycentric coordinates
+     * to its.t and its.uv.
+     *
+     * @return the index of the closest triangle hit, or -1 if there is none
+     */
+    protected abstract int closestHit(double ox, double oy, double oz, double dx, double dy, double dz,
+                                      double mint, double maxt, WatertightIntersector intersector,
+                                      Intersection its);
+
+    /**
+     * Find out whether any triangle is hit within [mint, maxt].
+     */
+    protected abstract boolean anyHit(double ox, double oy, double oz, double dx, double dy, double dz,
+                                      double mint, double maxt, WatertightIntersector intersector);
+
+    /**
+     * Intersect a ray, already set up in the intersector, with the triangle of the given index.
+     *
+     * @return the distance of the hit if it lies within [mint, maxt], and Double.POSITIVE_INFINITY otherwise
+     */
+    protected double rayIntersectTriangle(int tri, WatertightIntersector intersector,
+                                          double mint, double maxt, javax_.vecmath.Tuple2d uv) {
+        double t = intersector.intersect(triangleData, 9 * tri, mint, maxt);
+        if (uv != null && t != Double.POSITIVE_INFINITY)
+            uv.set(intersector.u, intersector.v);
+        return t;
+    }
+
+    @Override
+    public boolean rayIntersect(Ray ray, Intersection its, boolean shadowRay) {
+        if (shadowRay)
+            return occluded(ray);
+
+        double mint = getAdaptiveMint(ray);
+        double maxt = ray.maxt;
+        if (maxt < mint) {
+            return false;
+        }
+
+        double ox = ray.o.x, oy = ray.o.y, oz = ray.o.z;
+        double dx = ray.d.x, dy = ray.d.y, dz = ray.d.z;
+        int hitTriangle = -1;
+        if (triangleCount > 0) {
+            WatertightIntersector intersector = rayIntersector.get();
+            intersector.setRay(ox, oy, oz, dx, dy, dz);
+            hitTriangle = closestHit(ox, oy, oz, dx, dy, dz, mint, maxt, intersector, its);
+        }
+        if (hitTriangle >= 0) {
+            maxt = its.t;
+        }
+
+        /* An instance hit can only be closer than the triangle hit, and fills in its itself */
+        if (instanceBvh != null && instanceBvh.rayIntersect(ox, oy, oz, dx, dy, dz, mint, maxt, its)) {
+            return true;
+        }
+        if (hitTriangle < 0) {
+            return false;
+        }
+        Bvh.fillIntersection(meshes.get(triangleMesh[hitTriangle]), trianglePrim[hitTriangle], its);
+        return true;
+    }
+
+    @Override
+    public boolean occluded(Ray ray) {
+        double mint = getAdaptiveMint(ray);
+        double maxt = ray.maxt;
+        if (maxt < mint) {
+            return false;
+        }
+
+        double ox = ray.o.x, oy = ray.o.y, oz = ray.o.z;
+        double dx = ray.d.x, dy = ray.d.y, dz = ray.d.z;
+        if (triangleCount > 0) {
+            WatertightIntersector intersector = rayIntersector.get();
+            intersector.setRay(ox, oy, oz, dx, dy, dz);
+            if (anyHit(ox, oy, oz, dx, dy, dz, mint, maxt, intersector)) {
+                return true;
+            }
+        }
+        return instanceBvh != null && instanceBvh.occluded(ox, oy, oz, dx, dy, dz, mint, maxt);
+    }
+
+    /**
+     * Copy the vertices of all triangles of the registered meshes into the packed arrays.
+     */
+    private void packTriangles() {
+        int[] meshOffset = new int[meshes.size() + 1];
+        for (int i = 0; i < meshes.size(); i++) {
+            meshOffset[i + 1] = meshOffset[i] + meshes.get(i).getTriangleCount();
+        }
+        triangleCount = meshOffset[meshes.size()];
+        triangleData = new double[9 * triangleCount];
+        triangleBounds = new double[6 * triangleCount];
+        triangleMesh = new int[triangleCount];
+        trianglePrim = new int[triangleCount];
+        IntStream.range(0, meshes.size()).parallel().forEach((int meshIdx) -> {
+            Mesh mesh = meshes.get(meshIdx);
+            double[] V = mesh.getPositionArray();
+            int[] F = mesh.getIndexArray();
+            for (int f = 0; f < mesh.getTriangleCount(); f++) {
+                int tri = meshOffset[meshIdx] + f;
+                packVertex(tri, 0, V, F[3 * f]);
+                packVertex(tri, 1, V, F[3 * f + 1]);
+                packVertex(tri, 2, V, F[3 * f + 2]);
+                triangleMesh[tri] = meshIdx;
+                trianglePrim[tri] = f;
+            }
+        });
+    }
+
+    private void packVertex(int tri, int corner, double[] positions, int vertex) {
+        double x = positions[3 * vertex], y = positions[3 * vertex + 1], z = positions[3 * vertex + 2];
+        int offset = 9 * tri + 3 * corner;
+        triangleData[offset] = x;
+        triangleData[offset + 1] = y;
+        triangleData[offset + 2] = z;
+        int b = 6 * tri;
+        if (corner == 0) {
+            triangleBounds[b] = triangleBounds[b + 3] = x;
+            triangleBounds[b + 1] = triangleBounds[b + 4] = y;
+            triangleBounds[b + 2] = triangleBounds[b + 5] = z;
+        } else {
+            triangleBounds[b] = Math.min(triangleBounds[b], x);
+            triangleBounds[b + 1] = Math.min(triangleBounds[b + 1], y);
+            triangleBounds[b + 2] = Math.min(triangleBounds[b + 2], z);
+            triangleBounds[b + 3] = Math.max(triangleBounds[b + 3], x);
+            triangleBounds[b + 4] = Math.max(triangleBounds[b + 4], y);
+            triangleBounds[b + 5] = Math.max(triangleBounds[b + 5], z);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wakame.WakameObject;
+import wakame.mesh.WatertightIntersector;
+import wakame.struct.Intersection;
+import wakame.util.PropertiesUtil;
+
+import java.util.HashMap;
+
+/**
+ * Uniform grid
+ *
+ * The bounding box of the scene is divided into equal cells, about density * cbrt(N) of them along the
+ * longest axis for N triangles, and every triangle is listed in each cell its bounding box overlaps.  The
+ * cell lists are stored back to back in one array.  A ray walks the cells it passes through in order
+ * (Amanatides and Woo, "A Fast Voxel Traversal Algorithm for Ray Tracing") and stops at the first cell in
+ * which it hits something before leaving the cell.
+ *
+ * Building is linear in the number of triangle references and needs no sorting, so a grid builds much faster
+ * than a tree, but it adapts poorly to scenes whose triangles are unevenly spread.
+ */
+public class UniformGrid extends TriangleAccelerator {
+    /**
+     * The logger
+     */
+    private static Logger logger = LoggerFactory.getLogger(UniformGrid.class);
+    /**
+     * Default number of cells along the longest axis per cube root of the number of triangles.
+     */
+    public static final double DEFAULT_DENSITY = 3;
+    /**
+     * Default maximum number of cells along an axis.
+     */
+    public static final int DEFAULT_MAX_RESOLUTION = 128;
+
+    private double density = DEFAULT_DENSITY;
+    private int maxResolution = DEFAULT_MAX_RESOLUTION;
+
+    /**
+     * The number of cells along each axis.
+     */
+    private final int[] resolution = new int[3];
+    /**
+     * The low corner of the grid.
+     */
+    private final double[] origin = new double[3];
+    /**
+     * The size of a cell along each axis.
+     */
+    private final double[] cellSize = new double[3];
+    /**
+     * The triangles of cell c are cellTriangles[cellStart[c]] to cellTriangles[cellStart[c + 1] - 1].
+     * Cells are numbered x fastest, then y, then z.
+     */
+    private int[] cellStart;
+    private int[] cellTriangles;
+
+    private UniformGrid() {
+        // NO-OP
+    }
+
+    /**
+     * Set the number of cells along the longest axis per cube root of the number of triangles.
+     * Must be called before build().
+     */
+    public void setDensity(double density) {
+        if (density <= 0) {
+            throw new RuntimeException("UniformGrid.setDensity(): The density must be positive.");
+        }
+        this.density = density;
+    }
+
+    /**
+     * Set the maximum number of cells along an axis.  Must be called before build().
+     */
+    public void setMaxResolution(int maxResolution) {
+        if (maxResolution < 1) {
+            throw new RuntimeException("UniformGrid.setMaxResolution(): The maximum resolution must be at least 1.");
+        }
+        this.maxResolution = maxResolution;
+    }
+
+    /**
+     * Set the build settings from the properties of an accel tag: "density" and "maxResolution", each
+     * corresponding to the setter of the same name, and the settings of the BVH over the instances (see
+     * setInstanceBvhProperties()).
+     *
+     * @param properties the properties as a map from property name to values
+     */
+    @Override
+    protected void setProperties(HashMap<String, Object> properties) {
+        setDensity(PropertiesUtil.getDouble(properties, "density", DEFAULT_DENSITY));
+        setMaxResolution(PropertiesUtil.getInteger(properties, "maxResolution", DEFAULT_MAX_RESOLUTION));
+        setInstanceBvhProperties(properties);
+    }
+
+    @Override
+    protected void buildStructure() {
+        double[] extent = {
+                bbox.pMax.x - bbox.pMin.x, bbox.pMax.y - bbox.pMin.y, bbox.pMax.z - bbox.pMin.z
+        };
+        origin[0] = bbox.pMin.x;
+        origin[1] = bbox.pMin.y;
+        origin[2] = bbox.pMin.z;
+        double maxExtent = Math.max(extent[0], Math.max(extent[1], extent[2]));
+        double cellsPerUnit = maxExtent > 0 ? density * Math.cbrt(triangleCount) / maxExtent : 0;
+        for (int axis = 0; axis < 3; axis++) {
+            resolution[axis] = (int) Math.max(1, Math.min(maxResolution, Math.round(extent[axis] * cellsPerUnit)));
+            cellSize[axis] = extent[axis] / resolution[axis];
+        }
+        int cellCount = resolution[0] * resolution[1] * resolution[2];
+
+        /* Count the triangles of each cell, turn the counts into offsets, then fill in the lists */
+        int[] range = new int[6];
+        cellStart = new int[cellCount + 1];
+        for (int tri = 0; tri < triangleCount; tri++) {
+            getCellRange(tri, range);
+            for (int z = range[2]; z <= range[5]; z++)
+                for (int y = range[1]; y <= range[4]; y++)
+                    for (int x = range[0]; x <= range[3]; x++)
+                        cellStart[cellIndex(x, y, z) + 1]++;
+        }
+        long referenceCount = 0;
+        for (int c = 0; c < cellCount; c++) {
+            referenceCount += cellStart[c + 1];
+            if (referenceCount > Integer.MAX_VALUE - 8) {
+                throw new RuntimeException("UniformGrid.buildStructure(): Too many triangle references; "
+                        + "lower the density or the maximum resolution.");
+            }
+            cellStart[c + 1] = (int) referenceCount;
+        }
+        cellTriangles = new int[(int) referenceCount];
+        int[] fill = new int[cellCount];
+        System.arraycopy(cellStart, 0, fill, 0, cellCount);
+        for (int tri = 0; tri < triangleCount; tri++) {
+            getCellRange(tri, range);
+            for (int z = range[2]; z <= range[5]; z++)
+                for (int y = range[1]; y <= range[4]; y++)
+                    for (int x = range[0]; x <= range[3]; x++)
+                        cellTriangles[fill[cellIndex(x, y, z)]++] = tri;
+        }
+
+        logger.info(String.format("The grid has %d x %d x %d cells and %d triangle references.",
+                resolution[0], resolution[1], resolution[2], referenceCount));
+    }
+
+    /**
+     * Get the range of cells overlapped by the bounding box of a triangle, as the low x, y, z and then the
+     * high x, y, z cell coordinates, inclusive.
+     */
+    private void getCellRange(int tri, int[] range) {
+        for (int axis = 0; axis < 3; axis++) {
+            range[axis] = toCell(triangleBounds[6 * tri + axis], axis);
+            range[axis + 3] = toCell(triangleBounds[6 * tri + 3 + axis], axis);
+        }
+    }
+
+    /**
+     * Get the coordinate of the cell containing the given position along an axis, clamped to the grid.
+     */
+    private int toCell(double position, int axis) {
+        if (cellSize[axis] == 0)
+            return 0;
+        int cell = (int) ((position - origin[axis]) / cellSize[axis]);
+        return Math.max(0, Math.min(resolution[axis] - 1, cell));
+    }
+
+    private int cellIndex(int x, int y, int z) {
+        return x + resolution[0] * (y + resolution[1] * z);
+    }
+
+    /**
+     * Walk the cells along [mint, maxt] and test their triangles.
+     *
+     * @param its the receiver of the closest hit, or null to stop at the first hit
+     * @return the closest triangle hit (or the first if its is null), or -1 if there is none
+     */
+    private int traverse(double ox, double oy, double oz, double dx, double dy, double dz,
+                         double mint, double maxt, WatertightIntersector intersector, Intersection its) {
+        /* Clip the ray to the grid */
+        double rcpX = 1.0 / dx, rcpY = 1.0 / dy, rcpZ = 1.0 / dz;
+        double tMin = mint, tMax = maxt;
+        double t0 = (origin[0] - ox) * rcpX, t1 = (origin[0] + resolution[0] * cellSize[0] - ox) * rcpX;
+        tMin = Math.min(t0, t1) > tMin ? Math.min(t0, t1) : tMin;
+        tMax = Math.max(t0, t1) < tMax ? Math.max(t0, t1) : tMax;
+        t0 = (origin[1] - oy) * rcpY;
+        t1 = (origin[1] + resolution[1] * cellSize[1] - oy) * rcpY;
+        tMin = Math.min(t0, t1) > tMin ? Math.min(t0, t1) : tMin;
+        tMax = Math.max(t0, t1) < tMax ? Math.max(t0, t1) : tMax;
+        t0 = (origin[2] - oz) * rcpZ;
+        t1 = (origin[2] + resolution[2] * cellSize[2] - oz) * rcpZ;
+        tMin = Math.min(t0, t1) > tMin ? Math.min(t0, t1) : tMin;
+        tMax = Math.max(t0, t1) < tMax ? Math.max(t0, t1) : tMax;
+        if (!(tMin <= tMax))
+            return -1;
+
+        /* Set up the walk along each axis from the cell the ray enters */
+        int x = toCell(ox + tMin * dx, 0);
+        int y = toCell(oy + tMin * dy, 1);
+        int z = toCell(oz + tMin * dz, 2);
+        int stepX = dx > 0 ? 1 : -1, stepY = dy > 0 ? 1 : -1, stepZ = dz > 0 ? 1 : -1;
+        int endX = dx > 0 ? resolution[0] : -1;
+        int endY = dy > 0 ? resolution[1] : -1;
+        int endZ = dz > 0 ? resolution[2] : -1;
+        double nextX = dx == 0 ? Double.POSITIVE_INFINITY
+                : (origin[0] + (x + (dx > 0 ? 1 : 0)) * cellSize[0] - ox) * rcpX;
+        double nextY = dy == 0 ? Double.POSITIVE_INFINITY
+                : (origin[1] + (y + (dy > 0 ? 1 : 0)) * cellSize[1] - oy) * rcpY;
+        double nextZ = dz == 0 ? Double.POSITIVE_INFINITY
+                : (origin[2] + (z + (dz > 0 ? 1 : 0)) * cellSize[2] - oz) * rcpZ;
+        double deltaX = dx == 0 ? 0 : cellSize[0] * Math.abs(rcpX);
+        double deltaY = dy == 0 ? 0 : cellSize[1] * Math.abs(rcpY);
+        double deltaZ = dz == 0 ? 0 : cellSize[2] * Math.abs(rcpZ);
+
+        int hitTriangle = -1;
+        while (true) {
+            int cell = cellIndex(x, y, z);
+            for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                int tri = cellTriangles[i];
+                double t = rayIntersectTriangle(tri, intersector, mint, maxt, its == null ? null : its.uv);
+                if (t != Double.POSITIVE_INFINITY) {
+                    if (its == null)
+                        return tri;
+                    maxt = its.t = t;
+                    hitTriangle = tri;
+                }
+            }
+
+            /* A hit before the ray leaves the cell is closer than anything in the cells after it */
+            double exit = Math.min(nextX, Math.min(nextY, nextZ));
+            if (maxt <= exit || exit > tMax)
+                break;
+            if (nextX == exit) {
+                x += stepX;
+                if (x == endX)
+                    break;
+                nextX += deltaX;
+            } else if (nextY == exit) {
+                y += stepY;
+                if (y == endY)
+                    break;
+                nextY += deltaY;
+            } else {
+                z += stepZ;
+                if (z == endZ)
+                    break;
+                nextZ += deltaZ;
+            }
+        }
+        return hitTriangle;
+    }
+
+    @Override
+    protected int closestHit(double ox, double oy, double oz, double dx, double dy, double dz,
+                             double mint, double maxt, WatertightIntersector intersector, Intersection its) {
+        return traverse(ox, oy, oz, dx, dy, dz, mint, maxt, intersector, its);
+    }
+
+    @Override
+    protected boolean anyHit(double ox, double oy, double oz, double dx, double dy, double dz,
+                             double mint, double maxt, WatertightIntersector intersector) {
+        return traverse(ox, oy, oz, dx, dy, dz, mint, maxt, intersector, null) >= 0;
+    }
+
+    public static class Builder extends WakameObject.Builder {
+        @Override
+        protected WakameObject createInstance() {
+            return new UniformGrid();
+        }
+    }
+}
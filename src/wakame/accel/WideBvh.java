@@ -0,0 +1,417 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.accel;
+
+import wakame.mesh.WatertightIntersector;
+import wakame.struct.Intersection;
+
+import java.util.ArrayList;
+
+/**
+ * A 4-wide BVH (QBVH) obtained by collapsing the binary tree of a Bvh.
+ *
+ * Each wide node stores the bounding boxes of its (up to) four children in
+ * structure-of-arrays form, so that a node visit tests all four boxes with
+ * the same straight-line code.  Leaves are shared with the binary BVH: a
+ * child that is a leaf refers to the leaf node of the binary tree, whose
+ * triangles are then read from the binary BVH's packed triangle data.
+ */
+class WideBvh {
+    /**
+     * The number of children of a wide node.
+     */
+    static final int WIDTH = 4;
+    /**
+     * Child value that marks an unused child slot.
+     */
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    /**
+     * The binary BVH this wide BVH was collapsed from.
+     */
+    private final Bvh bvh;
+    /**
+     * Bounding boxes of the children of each wide node, packed 24 doubles per node as
+     * (minX[4], minY[4], minZ[4], maxX[4], maxY[4], maxZ[4]).
+     * Unused slots hold an empty (inverted) box, so they never pass the ray-box test.
+     */
+    private double[] childBounds;
+    /**
+     * The same bounds rounded outward to single precision, used instead of childBounds
+     * if the binary BVH stores single-precision data.
+     */
+    private float[] childBoundsFloat;
+    /**
+     * Children of each wide node, packed four ints per node.
+     * A non-negative value is the index of a wide node.  A negative value c other than EMPTY
+     * refers to the leaf with index ~c in the binary BVH.
+     */
+    private int[] children;
+    /**
+     * The binary node each child slot was taken from, packed four ints per node, or EMPTY for unused slots.
+     */
+    private int[] childNodes;
+    /**
+     * Per-thread traversal stack holding node references and their entry distances.
+     */
+    private final ThreadLocal<int[]> nodeStack =
+            ThreadLocal.withInitial(() -> new int[Bvh.STACK_SIZE * WIDTH]);
+    private final ThreadLocal<double[]> distanceStack =
+            ThreadLocal.withInitial(() -> new double[Bvh.STACK_SIZE * WIDTH]);
+
+    /**
+     * Collapse the binary tree of the given (already built) BVH.
+     *
+     * @param bvh the binary BVH
+     */
+    WideBvh(Bvh bvh) {
+        this.bvh = bvh;
+
+        ArrayList<int[]> nodeChildren = new ArrayList<int[]>();
+        int[] wideIndex = new int[bvh.nodeData.length / 2];
+        if (bvh.nodeData[1] >= 0) {
+            // The whole tree is a single leaf.
+            nodeChildren.add(new int[] { ~0, EMPTY, EMPTY, EMPTY });
+        } else {
+            collapse(0, nodeChildren, wideIndex);
+        }
+
+        int nodeCount = nodeChildren.size();
+        children = new int[WIDTH * nodeCount];
+        childNodes = new int[WIDTH * nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            int[] binaryNodes = nodeChildren.get(i);
+            for (int lane = 0; lane < WIDTH; lane++) {
+                int b = binaryNodes[lane];
+                if (b == EMPTY) {
+                    children[WIDTH * i + lane] = EMPTY;
+                    childNodes[WIDTH * i + lane] = EMPTY;
+                    continue;
+                }
+                children[WIDTH * i + lane] = b >= 0 ? wideIndex[b] : b;
+                childNodes[WIDTH * i + lane] = b >= 0 ? b : ~b;
+            }
+        }
+        refit();
+    }
+
+    /**
+     * Copy the bounds of the child slots from the binary tree again.  Called after the binary tree
+     * has been refitted; the wide topology stays the same.
+     */
+    void refit() {
+        if (childBounds == null) {
+            childBounds = new double[6 * childNodes.length];
+        }
+        for (int slot = 0; slot < childNodes.length; slot++) {
+            int binaryNode = childNodes[slot];
+            int offset = 6 * WIDTH * (slot / WIDTH) + slot % WIDTH;
+            if (binaryNode == EMPTY) {
+                for (int k = 0; k < 3; k++) {
+                    childBounds[offset + WIDTH * k] = Double.MAX_VALUE;
+                    childBounds[offset + WIDTH * (k + 3)] = -Double.MAX_VALUE;
+                }
+                continue;
+            }
+            for (int k = 0; k < 6; k++) {
+                childBounds[offset + WIDTH * k] = bvh.nodeBounds[6 * binaryNode + k];
+            }
+        }
+
+        if (bvh.singlePrecision) {
+            childBoundsFloat = new float[childBounds.length];
+            for (int i = 0; i < childBounds.length; i++) {
+                childBoundsFloat[i] = (i / (3 * WIDTH)) % 2 == 0
+                        ? Bvh.roundDown(childBounds[i]) : Bvh.roundUp(childBounds[i]);
+            }
+            childBounds = null;
+        }
+    }
+
+    /**
+     * Create the wide node that replaces the binary internal node with the given index, and,
+     * recursively, the wide nodes below it.  Each wide node is appended to nodeChildren, and its
+     * position there is recorded in wideIndex.  Children are recorded as binary node indices:
+     * internal nodes as is, leaves as ~index.
+     */
+    private void collapse(int binaryNode, ArrayList<int[]> nodeChildren, int[] wideIndex) {
+        int[] lanes = new int[] { EMPTY, EMPTY, EMPTY, EMPTY };
+        int laneCount = 2;
+        lanes[0] = bvh.nodeData[2 * binaryNode];
+        lanes[1] = lanes[0] + 1;
+
+        // Repeatedly open the internal child with the largest surface area until four children are collected.
+        while (laneCount < WIDTH) {
+            int best = -1;
+            double bestArea = -1;
+            for (int lane = 0; lane < laneCount; lane++) {
+                int node = lanes[lane];
+                if (bvh.nodeData[2 * node + 1] >= 0)
+                    continue;
+                double area = getSurfaceArea(node);
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = lane;
+                }
+            }
+            if (best == -1)
+                break;
+            int node = lanes[best];
+            lanes[best] = bvh.nodeData[2 * node];
+            lanes[laneCount++] = lanes[best] + 1;
+        }
+
+        for (int lane = 0; lane < laneCount; lane++) {
+            if (bvh.nodeData[2 * lanes[lane] + 1] >= 0)
+                lanes[lane] = ~lanes[lane];
+        }
+        wideIndex[binaryNode] = nodeChildren.size();
+        nodeChildren.add(lanes);
+
+        for (int lane = 0; lane < laneCount; lane++) {
+            if (lanes[lane] >= 0)
+                collapse(lanes[lane], nodeChildren, wideIndex);
+        }
+    }
+
+    private double getSurfaceArea(int binaryNode) {
+        int offset = 6 * binaryNode;
+        double xx = bvh.nodeBounds[offset + 3] - bvh.nodeBounds[offset];
+        double yy = bvh.nodeBounds[offset + 4] - bvh.nodeBounds[offset + 1];
+        double zz = bvh.nodeBounds[offset + 5] - bvh.nodeBounds[offset + 2];
+        return 2 * (xx * yy + yy * zz + zz * xx);
+    }
+
+    /**
+     * Return the number of wide nodes.
+     */
+    int getNodeCount() {
+        return children.length / WIDTH;
+    }
+
+    /**
+     * Get the number of bytes taken by the wide nodes.
+     */
+    long getMemoryBytes() {
+        long bytes = 4L * children.length + 4L * childNodes.length;
+        if (childBounds != null)
+            bytes += 8L * childBounds.length;
+        if (childBoundsFloat != null)
+            bytes += 4L * childBoundsFloat.length;
+        return bytes;
+    }
+
+    /**
+     * Compute the distance at which the ray enters the box of one child of a wide node.
+     *
+     * The near and far planes of each slab are selected once per ray through the nearX, nearY, and nearZ
+     * offsets (0 for the min planes, 3 * WIDTH for the max planes), so the test itself does not branch on
+     * the ray direction.
+     *
+     * @return the entry distance, or Double.POSITIVE_INFINITY if the ray segment misses the box
+     */
+    private double rayIntersectChild(int offset, int nearX, int nearY, int nearZ,
+                                     double ox, double oy, double oz,
+                                     double rcpX, double rcpY, double rcpZ, double mint, double maxt) {
+        if (childBoundsFloat != null) {
+            return rayIntersectChildFloat(offset, nearX, nearY, nearZ, ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt);
+        }
+        int farX = 3 * WIDTH - nearX;
+        int farY = 3 * WIDTH - nearY;
+        int farZ = 3 * WIDTH - nearZ;
+
+        double nearT = mint;
+        double farT = maxt;
+        double t;
+
+        t = (childBounds[offset + nearX] - ox) * rcpX;
+        nearT = t > nearT ? t : nearT;
+        t = (childBounds[offset + WIDTH + nearY] - oy) * rcpY;
+        nearT = t > nearT ? t : nearT;
+        t = (childBounds[offset + 2 * WIDTH + nearZ] - oz) * rcpZ;
+        nearT = t > nearT ? t : nearT;
+
+        t = (childBounds[offset + farX] - ox) * rcpX;
+        farT = t < farT ? t : farT;
+        t = (childBounds[offset + WIDTH + farY] - oy) * rcpY;
+        farT = t < farT ? t : farT;
+        t = (childBounds[offset + 2 * WIDTH + farZ] - oz) * rcpZ;
+        farT = t < farT ? t : farT;
+
+        return nearT <= farT ? nearT : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * The same test as rayIntersectChild on childBoundsFloat.
+     */
+    private double rayIntersectChildFloat(int offset, int nearX, int nearY, int nearZ,
+                                          double ox, double oy, double oz,
+                                          double rcpX, double rcpY, double rcpZ, double mint, double maxt) {
+        int farX = 3 * WIDTH - nearX;
+        int farY = 3 * WIDTH - nearY;
+        int farZ = 3 * WIDTH - nearZ;
+
+        double nearT = mint;
+        double farT = maxt;
+        double t;
+
+        t = (childBoundsFloat[offset + nearX] - ox) * rcpX;
+        nearT = t > nearT ? t : nearT;
+        t = (childBoundsFloat[offset + WIDTH + nearY] - oy) * rcpY;
+        nearT = t > nearT ? t : nearT;
+        t = (childBoundsFloat[offset + 2 * WIDTH + nearZ] - oz) * rcpZ;
+        nearT = t > nearT ? t : nearT;
+
+        t = (childBoundsFloat[offset + farX] - ox) * rcpX;
+        farT = t < farT ? t : farT;
+        t = (childBoundsFloat[offset + WIDTH + farY] - oy) * rcpY;
+        farT = t < farT ? t : farT;
+        t = (childBoundsFloat[offset + 2 * WIDTH + farZ] - oz) * rcpZ;
+        farT = t < farT ? t : farT;
+
+        return nearT <= farT ? nearT : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Closest-hit traversal.  See Bvh.rayIntersect.
+     *
+     * @return the position in the packed triangle data of the closest triangle hit, or -1 if there is none
+     */
+    int rayIntersect(double ox, double oy, double oz, double dx, double dy, double dz,
+                     double mint, double maxt, Intersection its) {
+        double rcpX = 1.0 / dx, rcpY = 1.0 / dy, rcpZ = 1.0 / dz;
+        int nearX = rcpX < 0 ? 3 * WIDTH : 0;
+        int nearY = rcpY < 0 ? 3 * WIDTH : 0;
+        int nearZ = rcpZ < 0 ? 3 * WIDTH : 0;
+
+        int[] stack = nodeStack.get();
+        double[] distances = distanceStack.get();
+        WatertightIntersector intersector = bvh.getIntersector(ox, oy, oz, dx, dy, dz);
+        int stackIdx = 0;
+        stack[stackIdx] = 0;
+        distances[stackIdx] = mint;
+        stackIdx++;
+
+        int hitTriangle = -1;
+        int nodesVisited = 0;
+        int boxTests = 0;
+        int trianglesTested = 0;
+        while (stackIdx > 0) {
+            stackIdx--;
+            if (distances[stackIdx] > maxt)
+                continue;
+            int node = stack[stackIdx];
+            nodesVisited++;
+
+            if (node < 0) {
+                int leaf = ~node;
+                int first = bvh.nodeData[2 * leaf];
+                int count = bvh.nodeData[2 * leaf + 1];
+                trianglesTested += count;
+                for (int i = first; i < first + count; i++) {
+                    double t = bvh.rayIntersectTriangle(i, intersector, mint, maxt, its.uv);
+                    if (t != Double.POSITIVE_INFINITY) {
+                        maxt = its.t = t;
+                        hitTriangle = i;
+                    }
+                }
+                continue;
+            }
+
+            /* Push the children that are hit, then order them so that the nearest one is popped first */
+            boxTests += WIDTH;
+            int pushed = stackIdx;
+            for (int lane = 0; lane < WIDTH; lane++) {
+                double t = rayIntersectChild(6 * WIDTH * node + lane, nearX, nearY, nearZ,
+                        ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt);
+                if (t != Double.POSITIVE_INFINITY) {
+                    stack[stackIdx] = children[WIDTH * node + lane];
+                    distances[stackIdx] = t;
+                    stackIdx++;
+                }
+            }
+            for (int i = pushed + 1; i < stackIdx; i++) {
+                int c = stack[i];
+                double t = distances[i];
+                int j = i - 1;
+                while (j >= pushed && distances[j] < t) {
+                    stack[j + 1] = stack[j];
+                    distances[j + 1] = distances[j];
+                    j--;
+                }
+                stack[j + 1] = c;
+                distances[j + 1] = t;
+            }
+        }
+        if (bvh.stats.counting)
+            bvh.stats.recordRays(1, nodesVisited, boxTests, trianglesTested);
+        return hitTriangle;
+    }
+
+    /**
+     * Any-hit traversal.  See Bvh.occluded.
+     */
+    boolean occluded(double ox, double oy, double oz, double dx, double dy, double dz,
+                     double mint, double maxt) {
+        double rcpX = 1.0 / dx, rcpY = 1.0 / dy, rcpZ = 1.0 / dz;
+        int nearX = rcpX < 0 ? 3 * WIDTH : 0;
+        int nearY = rcpY < 0 ? 3 * WIDTH : 0;
+        int nearZ = rcpZ < 0 ? 3 * WIDTH : 0;
+
+        int[] stack = nodeStack.get();
+        WatertightIntersector intersector = bvh.getIntersector(ox, oy, oz, dx, dy, dz);
+        int stackIdx = 0;
+        stack[stackIdx++] = 0;
+
+        int nodesVisited = 0;
+        int boxTests = 0;
+        int trianglesTested = 0;
+        while (stackIdx > 0) {
+            int node = stack[--stackIdx];
+            nodesVisited++;
+
+            if (node < 0) {
+                int leaf = ~node;
+                int first = bvh.nodeData[2 * leaf];
+                int count = bvh.nodeData[2 * leaf + 1];
+                for (int i = first; i < first + count; i++) {
+                    trianglesTested++;
+                    if (bvh.rayIntersectTriangle(i, intersector, mint, maxt, null)
+                            != Double.POSITIVE_INFINITY) {
+                        if (bvh.stats.counting)
+                            bvh.stats.recordShadowRays(1, nodesVisited, boxTests, trianglesTested, 1);
+                        return true;
+                    }
+                }
+                continue;
+            }
+
+            boxTests += WIDTH;
+            for (int lane = 0; lane < WIDTH; lane++) {
+                if (rayIntersectChild(6 * WIDTH * node + lane, nearX, nearY, nearZ,
+                        ox, oy, oz, rcpX, rcpY, rcpZ, mint, maxt) != Double.POSITIVE_INFINITY) {
+                    stack[stackIdx++] = children[WIDTH * node + lane];
+                }
+            }
+        }
+        if (bvh.stats.counting)
+            bvh.stats.recordShadowRays(1, nodesVisited, boxTests, trianglesTested, 0);
+        return false;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.app;
+
+import wakame.accel.Bvh;
+import wakame.mesh.Mesh;
+import wakame.mesh.WavefrontOBJ;
+import wakame.struct.Aabb3d;
+import wakame.struct.Intersection;
+import wakame.struct.Ray;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the node layouts of Bvh by tracing the same rays through trees that differ only in the order
+ * of their nodes in memory.
+ *
+ * Two ray sets are traced: coherent rays, shot from a point outside the scene through a grid covering it
+ * like camera rays, whose successive traversals touch mostly the same nodes and so mostly hit in L1/L2; and
+ * random rays between random points in the scene, whose traversals scatter across the whole tree and mostly
+ * miss in the caches.  A layout that places the nodes of a traversal close together helps the latter most.
+ *
+ * Usage: BvhLayoutBenchmark [-mode sweep|binned|sbvh|lbvh|hlbvh] [-wide] [-rays count] [-repeat count] obj...
+ */
+public class BvhLayoutBenchmark {
+    private Bvh.BuildMode buildMode = Bvh.BuildMode.Sweep;
+    private boolean wide = false;
+    private int rayCount = 1 << 20;
+    private int repeatCount = 5;
+    private ArrayList<Mesh> meshes = new ArrayList<Mesh>();
+
+    public void run(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-mode")) {
+                String mode = args[++i];
+                if (mode.equals("sweep")) {
+                    buildMode = Bvh.BuildMode.Sweep;
+                } else if (mode.equals("binned")) {
+                    buildMode = Bvh.BuildMode.Binned;
+                } else if (mode.equals("sbvh")) {
+                    buildMode = Bvh.BuildMode.Spatial;
+                } else if (mode.equals("lbvh")) {
+                    buildMode = Bvh.BuildMode.Linear;
+                } else if (mode.equals("hlbvh")) {
+                    buildMode = Bvh.BuildMode.HierarchicalLinear;
+                } else {
+                    throw new RuntimeException("Unknown BVH build mode '" + mode + "'.");
+                }
+            } else if (args[i].equals("-wide")) {
+                wide = true;
+            } else if (args[i].equals("-rays")) {
+                rayCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-repeat")) {
+                repeatCount = Integer.parseInt(args[++i]);
+            } else {
+                meshes.add((Mesh) new WavefrontOBJ.Builder().setProperty("filename", args[i]).build());
+            }
+        }
+        if (meshes.isEmpty()) {
+            System.out.println("Usage: BvhLayoutBenchmark [-mode sweep|binned|sbvh|lbvh|hlbvh] [-wide] "
+                    + "[-rays count] [-repeat count] obj...");
+            System.exit(0);
+        }
+
+        Bvh[] bvhs = new Bvh[Bvh.NodeLayout.values().length];
+        for (Bvh.NodeLayout layout : Bvh.NodeLayout.values()) {
+            Bvh bvh = new Bvh();
+            bvh.setBuildMode(buildMode);
+            bvh.setWide(wide);
+            bvh.setNodeLayout(layout);
+            for (Mesh mesh : meshes) {
+                bvh.addMesh(mesh);
+            }
+            bvh.build();
+            bvhs[layout.ordinal()] = bvh;
+        }
+
+        Aabb3d bbox = new Aabb3d();
+        bvhs[0].getBoundingBox(bbox);
+        Ray[] coherentRays = createCoherentRays(bbox);
+        Ray[] randomRays = createRandomRays(bbox);
+
+        /* Warm up the JIT on every tree first so that the layout measured first is not penalized */
+        for (Bvh bvh : bvhs) {
+            trace(bvh, randomRays);
+        }
+
+        System.out.println(String.format("%-12s %16s %16s", "layout", "coherent Mrays/s", "random Mrays/s"));
+        for (Bvh.NodeLayout layout : Bvh.NodeLayout.values()) {
+            Bvh bvh = bvhs[layout.ordinal()];
+            double coherent = measure(bvh, coherentRays);
+            double random = measure(bvh, randomRays);
+            System.out.println(String.format("%-12s %16.3f %16.3f", layout, coherent, random));
+        }
+    }
+
+    /**
+     * Create rays from a point in front of the scene through a square grid over it, in scanline order.
+     */
+    private Ray[] createCoherentRays(Aabb3d bbox) {
+        int resolution = (int) Math.sqrt(rayCount);
+        double extent = bbox.getMaxExtent();
+        javax_.vecmath.Point3d center = new javax_.vecmath.Point3d(bbox.pMin);
+        center.interpolate(bbox.pMax, 0.5);
+        javax_.vecmath.Point3d origin = new javax_.vecmath.Point3d(center.x, center.y, center.z + 2 * extent);
+
+        Ray[] rays = new Ray[resolution * resolution];
+        javax_.vecmath.Vector3d direction = new javax_.vecmath.Vector3d();
+        for (int y = 0; y < resolution; y++) {
+            for (int x = 0; x < resolution; x++) {
+                direction.set(center.x + extent * ((x + 0.5) / resolution - 0.5) - origin.x,
+                        center.y + extent * ((y + 0.5) / resolution - 0.5) - origin.y,
+                        center.z - origin.z);
+                direction.normalize();
+                rays[y * resolution + x] = new Ray(origin, direction);
+            }
+        }
+        return rays;
+    }
+
+    /**
+     * Create rays between pairs of random points inside the bounding box of the scene.
+     */
+    private Ray[] createRandomRays(Aabb3d bbox) {
+        Random random = new Random(0);
+        Ray[] rays = new Ray[rayCount];
+        javax_.vecmath.Point3d origin = new javax_.vecmath.Point3d();
+        javax_.vecmath.Vector3d direction = new javax_.vecmath.Vector3d();
+        for (int i = 0; i < rayCount; i++) {
+            origin.set(bbox.pMin.x + (bbox.pMax.x - bbox.pMin.x) * random.nextDouble(),
+                    bbox.pMin.y + (bbox.pMax.y - bbox.pMin.y) * random.nextDouble(),
+                    bbox.pMin.z + (bbox.pMax.z - bbox.pMin.z) * random.nextDouble());
+            direction.set(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+            direction.normalize();
+            rays[i] = new Ray(origin, direction);
+        }
+        return rays;
+    }
+
+    /**
+     * Trace the rays through the tree repeatCount times and return the best throughput in millions of rays
+     * per second.
+     */
+    private double measure(Bvh bvh, Ray[] rays) {
+        double best = 0;
+        for (int pass = 0; pass < repeatCount; pass++) {
+            long start = System.nanoTime();
+            trace(bvh, rays);
+            long elapsed = System.nanoTime() - start;
+            best = Math.max(best, rays.length * 1e3 / elapsed);
+        }
+        return best;
+    }
+
+    private void trace(Bvh bvh, Ray[] rays) {
+        Intersection its = new Intersection();
+        for (Ray ray : rays) {
+            bvh.rayIntersect(ray, its, false);
+        }
+    }
+
+    public static void main(String[] args) {
+        new BvhLayoutBenchmark().run(args);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.app;
+
+import wakame.accel.Bvh;
+import wakame.mesh.Mesh;
+import wakame.mesh.WavefrontOBJ;
+import wakame.struct.Aabb3d;
+import wakame.struct.Intersection;
+import wakame.struct.Ray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks the single-precision mode of Bvh against the double-precision one.
+ *
+ * The same meshes are put into a double-precision and a single-precision BVH, and two sets of rays are
+ * traced through both.  Random rays between random points in the scene must agree on whether they hit
+ * anything, and on the distance and mesh of the hit up to single-precision accuracy.  Rays aimed at points
+ * on edges shared by two triangles, where rounding would open gaps between the triangles if the
+ * intersection test were not watertight, must hit in single precision whenever they hit in double precision.
+ *
+ * Usage: BvhPrecisionCheck [-rays count] obj...  For example, on the meshes of data/pa2/tests.
+ */
+public class BvhPrecisionCheck {
+    /**
+     * Tolerance on the hit distance, relative to the extent of the scene.
+     */
+    private static final double DISTANCE_TOLERANCE = 1e-5;
+
+    private int rayCount = 100000;
+    private ArrayList<Mesh> meshes = new ArrayList<Mesh>();
+
+    public void run(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-rays")) {
+                rayCount = Integer.parseInt(args[++i]);
+            } else {
+                meshes.add((Mesh) new WavefrontOBJ.Builder().setProperty("filename", args[i]).build());
+            }
+        }
+        if (meshes.isEmpty()) {
+            System.out.println("Usage: BvhPrecisionCheck [-rays count] obj...");
+            System.exit(0);
+        }
+
+        Bvh doubleBvh = createBvh(false);
+        Bvh singleBvh = createBvh(true);
+        Aabb3d bbox = new Aabb3d();
+        doubleBvh.getBoundingBox(bbox);
+        double tolerance = DISTANCE_TOLERANCE * bbox.getMaxExtent();
+
+        Random random = new Random(0);
+        Intersection expected = new Intersection();
+        Intersection actual = new Intersection();
+        javax_.vecmath.Point3d origin = new javax_.vecmath.Point3d();
+        javax_.vecmath.Vector3d direction = new javax_.vecmath.Vector3d();
+
+        int hitMismatches = 0;
+        int distanceMismatches = 0;
+        double maxDistanceError = 0;
+        for (int i = 0; i < rayCount; i++) {
+            randomPoint(bbox, random, origin);
+            direction.set(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+            direction.normalize();
+            Ray ray = new Ray(origin, direction);
+            boolean expectedHit = doubleBvh.rayIntersect(ray, expected, false);
+            boolean actualHit = singleBvh.rayIntersect(ray, actual, false);
+            if (expectedHit != actualHit || expectedHit != singleBvh.occluded(ray)) {
+                hitMismatches++;
+            } else if (expectedHit) {
+                double error = Math.abs(expected.t - actual.t);
+                maxDistanceError = Math.max(maxDistanceError, error);
+                if (error > tolerance || expected.mesh != actual.mesh)
+                    distanceMismatches++;
+            }
+        }
+
+        int edgeRays = 0;
+        int leaks = 0;
+        javax_.vecmath.Point3d target = new javax_.vecmath.Point3d();
+        for (Mesh mesh : meshes) {
+            int triangleCount = mesh.getTriangleCount();
+
+            /* Find the triangles on each edge, identifying vertices by position since the loader splits
+               vertices along texture and normal seams */
+            HashMap<String, ArrayList<Integer>> edgeTriangles = new HashMap<String, ArrayList<Integer>>();
+            for (int i = 0; i < triangleCount; i++) {
+                for (int corner = 0; corner < 3; corner++) {
+                    edgeTriangles.computeIfAbsent(getEdgeKey(mesh, i, corner),
+                            (String key) -> new ArrayList<Integer>()).add(i);
+                }
+            }
+
+            javax_.vecmath.Point3d p0 = new javax_.vecmath.Point3d();
+            javax_.vecmath.Point3d p1 = new javax_.vecmath.Point3d();
+            for (int i = 0; i < Math.min(rayCount, triangleCount); i++) {
+                int tri = random.nextInt(triangleCount);
+                int corner = random.nextInt(3);
+                ArrayList<Integer> neighbors = edgeTriangles.get(getEdgeKey(mesh, tri, corner));
+                if (neighbors.size() != 2)
+                    continue;
+                mesh.getPosition(mesh.getVertexIndex(tri, corner), p0);
+                mesh.getPosition(mesh.getVertexIndex(tri, (corner + 1) % 3), p1);
+                target.interpolate(p0, p1, random.nextDouble());
+                randomPoint(bbox, random, origin);
+                direction.sub(target, origin);
+                if (direction.length() == 0)
+                    continue;
+                direction.normalize();
+
+                /* A ray through a boundary edge, or through a crease edge that is on the silhouette as seen
+                   from the origin, passes on one side of both triangles and may legitimately miss once they
+                   are rounded.  Only rays that cross the surface from one triangle to the other must hit. */
+                if (getFacing(mesh, neighbors.get(0), direction) != getFacing(mesh, neighbors.get(1), direction))
+                    continue;
+                Ray ray = new Ray(origin, direction);
+                if (doubleBvh.rayIntersect(ray, expected, false)) {
+                    edgeRays++;
+                    if (!singleBvh.rayIntersect(ray, actual, false))
+                        leaks++;
+                }
+            }
+        }
+
+        System.out.println(String.format("Random rays: %d traced, %d disagree on hitting, "
+                        + "%d disagree on the hit (maximum distance error %g).",
+                rayCount, hitMismatches, distanceMismatches, maxDistanceError));
+        System.out.println(String.format("Rays through shared edges: %d hit in double precision, "
+                + "%d of them miss in single precision.", edgeRays, leaks));
+        System.exit(hitMismatches + distanceMismatches + leaks == 0 ? 0 : 1);
+    }
+
+    private Bvh createBvh(boolean singlePrecision) {
+        Bvh bvh = new Bvh();
+        bvh.setSinglePrecision(singlePrecision);
+        for (Mesh mesh : meshes) {
+            bvh.addMesh(mesh);
+        }
+        bvh.build();
+        return bvh;
+    }
+
+    /**
+     * Return whether the given direction runs against the normal of the given triangle.
+     */
+    private boolean getFacing(Mesh mesh, int triangle, javax_.vecmath.Vector3d direction) {
+        javax_.vecmath.Point3d p0 = new javax_.vecmath.Point3d();
+        javax_.vecmath.Point3d p1 = new javax_.vecmath.Point3d();
+        javax_.vecmath.Point3d p2 = new javax_.vecmath.Point3d();
+        mesh.getPosition(mesh.getVertexIndex(triangle, 0), p0);
+        mesh.getPosition(mesh.getVertexIndex(triangle, 1), p1);
+        mesh.getPosition(mesh.getVertexIndex(triangle, 2), p2);
+        javax_.vecmath.Vector3d e1 = new javax_.vecmath.Vector3d();
+        javax_.vecmath.Vector3d e2 = new javax_.vecmath.Vector3d();
+        e1.sub(p1, p0);
+        e2.sub(p2, p0);
+        javax_.vecmath.Vector3d n = new javax_.vecmath.Vector3d();
+        n.cross(e1, e2);
+        return n.dot(direction) < 0;
+    }
+
+    private String getEdgeKey(Mesh mesh, int triangle, int corner) {
+        javax_.vecmath.Point3d p = new javax_.vecmath.Point3d();
+        mesh.getPosition(mesh.getVertexIndex(triangle, corner), p);
+        String a = p.toString();
+        mesh.getPosition(mesh.getVertexIndex(triangle, (corner + 1) % 3), p);
+        String b = p.toString();
+        return a.compareTo(b) < 0 ? a + b : b + a;
+    }
+
+    private void randomPoint(Aabb3d bbox, Random random, javax_.vecmath.Point3d p) {
+        p.set(bbox.pMin.x + (bbox.pMax.x - bbox.pMin.x) * random.nextDouble(),
+                bbox.pMin.y + (bbox.pMax.y - bbox.pMin.y) * random.nextDouble(),
+                bbox.pMin.z + (bbox.pMax.z - bbox.pMin.z) * random.nextDouble());
+    }
+
+    public static void main(String[] args) {
+        new BvhPrecisionCheck().run(args);
+    }
+}
@@ -25,6 +25,7 @@ import wakame.Constants;
 import wakame.Parser;
 import wakame.Scene;
 import wakame.WakameObject;
+import wakame.accel.Bvh;
 import wakame.block.BlockGenerator;
 import wakame.block.ImageBlock;
 import wakame.camera.Camera;
@@ -164,6 +165,12 @@ public class Main {
         long elapsed = end - start;
         logger.info(String.format("Rendering took %d min(s) %d second(s) %d ms",
                 elapsed / (60*1000), (elapsed / 1000) % 60, elapsed % 1000));
+        if (scene.getAccelerator() instanceof Bvh) {
+            Bvh bvh = (Bvh) scene.getAccelerator();
+            if (bvh.getStats().isCounting()) {
+                logger.info("BVH statistics: " + bvh.getStats());
+            }
+        }
 
         /* Determine the filename of the output bitmap */
         String pfmFileName = FilenameUtils.removeExtension(fileName) + ".pfm";
@@ -0,0 +1,184 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser of decimal numbers written as text in a byte buffer
+ *
+ * Used by the loaders of text mesh files to read numbers straight from the bytes of the file without creating
+ * strings.  A number ends at a space, a tab, a line end, or the end of the range being read.
+ */
+final class DecimalParser {
+    /**
+     * Powers of ten that are exactly representable as doubles.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /**
+     * The largest mantissa that converts exactly to a double.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /**
+     * The position right after the last number parsed.
+     */
+    int position;
+
+    private ByteBuffer buffer;
+    private int pos;
+    private int end;
+
+    /**
+     * Parse the floating-point number that starts at the given position, and set position to right after it.
+     * Numbers with at most 18 significant digits and a small enough decimal exponent are converted with a
+     * single multiplication or division by an exact power of ten, which rounds the same way as
+     * Double.parseDouble().  Any other token is handed to Double.parseDouble().
+     *
+     * @param buffer the buffer
+     * @param start  the position of the first character of the number
+     * @param end    the end of the range that may be read
+     * @return the number
+     */
+    double parseDouble(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.pos = start;
+        this.end = end;
+        double value = parseDouble();
+        position = pos;
+        this.buffer = null;
+        return value;
+    }
+
+    private double parseDouble() {
+        int tokenStart = pos;
+        boolean negative = false;
+        byte c = peek();
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean exact = true;
+        while (isDigit(c = peek())) {
+            anyDigit = true;
+            if (significantDigits < 18) {
+                mantissa = 10 * mantissa + (c - '0');
+                if (mantissa != 0)
+                    significantDigits++;
+            } else {
+                exact = false;
+            }
+            pos++;
+        }
+        if (!exact)
+            return parseDoubleToken(tokenStart);
+        if (c == '.') {
+            pos++;
+            while (isDigit(c = peek())) {
+                anyDigit = true;
+                if (significantDigits < 18) {
+                    mantissa = 10 * mantissa + (c - '0');
+                    if (mantissa != 0)
+                        significantDigits++;
+                    exponent--;
+                } else {
+                    exact = false;
+                }
+                pos++;
+            }
+        }
+        if (!anyDigit || !exact)
+            return parseDoubleToken(tokenStart);
+        if (c == 'e' || c == 'E') {
+            pos++;
+            boolean negativeExponent = false;
+            c = peek();
+            if (c == '-' || c == '+') {
+                negativeExponent = c == '-';
+                pos++;
+            }
+            if (!isDigit(peek()))
+                return parseDoubleToken(tokenStart);
+            int e = 0;
+            while (isDigit(c = peek())) {
+                if (e < 10000)
+                    e = 10 * e + (c - '0');
+                pos++;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (!isSeparator(c))
+            return parseDoubleToken(tokenStart);
+
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return parseDoubleToken(tokenStart);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse the token starting at the given position with Double.parseDouble().
+     */
+    private double parseDoubleToken(int tokenStart) {
+        pos = tokenStart;
+        while (!isSeparator(peek()))
+            pos++;
+        byte[] bytes = new byte[pos - tokenStart];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(tokenStart + i);
+        String token = new String(bytes, StandardCharsets.US_ASCII);
+        try {
+            return Double.parseDouble(token);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("DecimalParser.parseDouble(): Invalid number: " + token);
+        }
+    }
+
+    /**
+     * Get the byte at the current position, or a newline past the end of the range.
+     */
+    private byte peek() {
+        return pos < end ? buffer.get(pos) : (byte) '\n';
+    }
+
+    /**
+     * Return whether a byte ends a number: a space, a tab, or a line end.
+     */
+    static boolean isSeparator(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.mesh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wakame.WakameObject;
+import wakame.struct.Aabb3d;
+import wakame.struct.Transform;
+import wakame.util.PropertiesUtil;
+import yondoko.util.FileResolver;
+import yondoko.util.StringUtil;
+
+import javax_.vecmath.Point3d;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+
+/**
+ * A placement of shared triangle geometry in the scene
+ *
+ * The geometry (the "shape") is loaded once per file and scene in its own object space and shared by every
+ * instance that refers to the same file; each instance only stores its toWorld transform and its
+ * own BSDF.  The instance itself holds no triangles: the BVH builds one bottom-level tree per
+ * shape and intersects rays against it in object space, so memory scales with the unique geometry
+ * instead of the placed geometry.
+ */
+public class Instance extends Mesh {
+    /**
+     * The unresolved file name of the shape.
+     */
+    private String fileName;
+    /**
+     * The shared geometry, in object space.
+     */
+    private Mesh shape;
+    /**
+     * Transformation from object space to world space.
+     */
+    private Transform toWorld;
+    /**
+     * Whether toWorld has a negative determinant, i.e. mirrors the shape.
+     */
+    private boolean mirrored;
+    /**
+     * Shapes loaded by the scene being loaded, by resolved file name.  Scene clears it once the scene is
+     * complete (see clearShapes()).
+     */
+    private static final HashMap<String, LoadedShape> shapes = new HashMap<String, LoadedShape>();
+    /**
+     * The logger
+     */
+    private static Logger logger = LoggerFactory.getLogger(Instance.class);
+
+    /**
+     * A loaded shape together with the size and modification time its file had when it was loaded.
+     */
+    private static class LoadedShape {
+        Mesh mesh;
+        long fileSize;
+        long lastModifiedTime;
+    }
+
+    private Instance() {
+        // NO-OP
+    }
+
+    @Override
+    protected void setProperties(HashMap<String, Object> properties) {
+        fileName = PropertiesUtil.getString(properties, "filename");
+        toWorld = PropertiesUtil.getTransform(properties, "toWorld", new Transform());
+        mirrored = toWorld.m.determinant() < 0;
+        name = fileName;
+        shape = getShape(FileResolver.resolve(fileName));
+        updateBoundingBox();
+    }
+
+    /**
+     * Recompute the bounding box from the transformed corners of the shape's bounding box.
+     */
+    @Override
+    public void updateBoundingBox() {
+        Aabb3d shapeBbox = new Aabb3d();
+        shape.getBoundingBox(shapeBbox);
+        bbox.reset();
+        if (shape.getTriangleCount() > 0) {
+            Point3d corner = new Point3d();
+            for (int i = 0; i < 8; i++) {
+                shapeBbox.getCornerPoint(i, corner);
+                toWorld.m.transform(corner);
+                bbox.expandBy(corner);
+            }
+        }
+    }
+
+    /**
+     * Return the shape stored in the file with the given name, loading it if no instance of the current scene
+     * has used it yet or if the file has changed since.  Files whose names end in ".ply" are read as PLY files,
+     * and all others as OBJ files.
+     *
+     * @param resolvedFileName the resolved file name
+     * @return the shape, in object space
+     */
+    private static Mesh getShape(String resolvedFileName) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(Paths.get(resolvedFileName), BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        synchronized (shapes) {
+            LoadedShape shape = shapes.get(resolvedFileName);
+            if (shape != null && shape.fileSize == attributes.size()
+                    && shape.lastModifiedTime == attributes.lastModifiedTime().toMillis()) {
+                logger.info("Reusing the mesh loaded from \"" + resolvedFileName + "\".");
+                return shape.mesh;
+            }
+            WakameObject.Builder builder = resolvedFileName.toLowerCase().endsWith(".ply")
+                    ? new StanfordPLY.Builder() : new WavefrontOBJ.Builder();
+            shape = new LoadedShape();
+            shape.mesh = (Mesh) builder
+                    .setProperty("filename", resolvedFileName)
+                    .build();
+            shape.fileSize = attributes.size();
+            shape.lastModifiedTime = attributes.lastModifiedTime().toMillis();
+            shapes.put(resolvedFileName, shape);
+            return shape.mesh;
+        }
+    }
+
+    /**
+     * Forget the shapes loaded so far, so that they can be garbage collected once the scene that uses them is
+     * gone, and so that the next scene loads its shapes afresh.  Called by Scene when it is complete.
+     */
+    public static void clearShapes() {
+        synchronized (shapes) {
+            shapes.clear();
+        }
+    }
+
+    /**
+     * Return the geometry placed by this instance.  It is shared with all other instances of the same file.
+     *
+     * @return the shape, in object space
+     */
+    public Mesh getShape() {
+        return shape;
+    }
+
+    /**
+     * Return the transformation from object space to world space.
+     *
+     * @return the transformation
+     */
+    public Transform getToWorld() {
+        return toWorld;
+    }
+
+    /**
+     * Return whether the transformation to world space mirrors the shape, which flips the orientation of its
+     * triangles.
+     *
+     * @return whether the determinant of the transformation is negative
+     */
+    public boolean isMirrored() {
+        return mirrored;
+    }
+
+    public static class Builder extends WakameObject.Builder {
+        @Override
+        protected WakameObject createInstance() {
+            return new Instance();
+        }
+    }
+
+    public String toString() {
+        return String.format(
+                "Instance[\n" +
+                "  filename = %s\n" +
+                "  triangleCount = %d\n" +
+                "  toWorld = %s\n" +
+                "  bsdf = %s\n" +
+                "]",
+                fileName,
+                shape.getTriangleCount(),
+                StringUtil.indent(toWorld.toString()),
+                StringUtil.indent(StringUtil.safeToString(bsdf))
+        );
+    }
+}
@@ -26,9 +26,6 @@ import wakame.struct.Aabb3d;
 import wakame.struct.Ray;
 import yondoko.util.StringUtil;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Triangle mesh
  *
@@ -36,6 +33,12 @@ import java.util.List;
  * for querying the individual triangles. Subclasses of Mesh implement
  * the specifics of how to create its contents (e.g. by loading from an
  * external file).
+ *
+ * The vertex attributes and the triangles are stored in flat primitive arrays
+ * rather than as one object per vertex, which takes a fraction of the memory
+ * for large meshes: positions as three doubles per vertex, normals as three
+ * floats, texture coordinates as two floats, and triangles as three vertex
+ * indices.
  */
 public abstract class Mesh extends WakameObject {
     /**
@@ -43,21 +46,21 @@ public abstract class Mesh extends WakameObject {
      */
     protected String name = "";
     /**
-     * Vertex positions.
+     * Vertex positions, three values per vertex.
      */
-    protected ArrayList<javax_.vecmath.Point3d> positions = new ArrayList<javax_.vecmath.Point3d>();
+    protected double[] positions = new double[0];
     /**
-     * Vertex normals
+     * Vertex normals, three values per vertex, or an empty array if the mesh has none.
      */
-    protected ArrayList<javax_.vecmath.Vector3d> normals = new ArrayList<javax_.vecmath.Vector3d>();
+    protected float[] normals = new float[0];
     /**
-     * Vertex texture coordinates.
+     * Vertex texture coordinates, two values per vertex, or an empty array if the mesh has none.
      */
-    protected ArrayList<javax_.vecmath.Vector2d> texCoords = new ArrayList<javax_.vecmath.Vector2d>();
+    protected float[] texCoords = new float[0];
     /**
-     * Faces
+     * Faces, three vertex indices per triangle.
      */
-    protected ArrayList<javax_.vecmath.Point3i> triangles = new ArrayList<javax_.vecmath.Point3i>();
+    protected int[] indices = new int[0];
     /**
      * BSDF
      */
@@ -70,13 +73,26 @@ public abstract class Mesh extends WakameObject {
      * Axis-aligned bounding box.
      */
     protected Aabb3d bbox = new Aabb3d();
+    /**
+     * Per-thread intersector used by the single-triangle tests.
+     */
+    private static final ThreadLocal<WatertightIntersector> rayIntersector =
+            ThreadLocal.withInitial(WatertightIntersector::new);
 
     /**
      * Return the triangle count.
      * @return the triangle count
      */
     public int getTriangleCount() {
-        return triangles.size();
+        return indices.length / 3;
+    }
+
+    /**
+     * Return the vertex count.
+     * @return the vertex count
+     */
+    public int getVertexCount() {
+        return positions.length / 3;
     }
 
     /**
@@ -93,10 +109,15 @@ public abstract class Mesh extends WakameObject {
      */
     public void getTriangleBoundingBox(int index, Aabb3d bbox) {
         bbox.reset();
-        javax_.vecmath.Point3i tri = triangles.get(index);
-        bbox.expandBy(positions.get(tri.x));
-        bbox.expandBy(positions.get(tri.y));
-        bbox.expandBy(positions.get(tri.z));
+        for (int corner = 0; corner < 3; corner++) {
+            int v = 3 * indices[3 * index + corner];
+            bbox.pMin.x = Math.min(bbox.pMin.x, positions[v]);
+            bbox.pMin.y = Math.min(bbox.pMin.y, positions[v + 1]);
+            bbox.pMin.z = Math.min(bbox.pMin.z, positions[v + 2]);
+            bbox.pMax.x = Math.max(bbox.pMax.x, positions[v]);
+            bbox.pMax.y = Math.max(bbox.pMax.y, positions[v + 1]);
+            bbox.pMax.z = Math.max(bbox.pMax.z, positions[v + 2]);
+        }
     }
 
     /**
@@ -105,11 +126,12 @@ public abstract class Mesh extends WakameObject {
      * @param centroid the receiver of the centroid value
      */
     public void getTriangleCentroid(int index, javax_.vecmath.Tuple3d centroid) {
-        centroid.set(0, 0, 0);
-        javax_.vecmath.Point3i tri = triangles.get(index);
-        centroid.add(positions.get(tri.x));
-        centroid.add(positions.get(tri.y));
-        centroid.add(positions.get(tri.z));
+        int v0 = 3 * indices[3 * index];
+        int v1 = 3 * indices[3 * index + 1];
+        int v2 = 3 * indices[3 * index + 2];
+        centroid.set(positions[v0] + positions[v1] + positions[v2],
+                positions[v0 + 1] + positions[v1 + 1] + positions[v2 + 1],
+                positions[v0 + 2] + positions[v1 + 2] + positions[v2 + 2]);
         centroid.scale(1.0 / 3);
     }
 
@@ -135,17 +157,19 @@ public abstract class Mesh extends WakameObject {
      * @return the surface area of the triangle with the given index
      */
     public double getTriangleSurfaceArea(int index) {
-        javax_.vecmath.Point3i tri = triangles.get(index);
-        javax_.vecmath.Point3d p0 = positions.get(tri.x);
-        javax_.vecmath.Point3d p1 = positions.get(tri.y);
-        javax_.vecmath.Point3d p2 = positions.get(tri.z);
-        javax_.vecmath.Vector3d v0 = new javax_.vecmath.Vector3d();
-        javax_.vecmath.Vector3d v1 = new javax_.vecmath.Vector3d();
-        v0.sub(p1, p0);
-        v1.sub(p2, p0);
-        javax_.vecmath.Vector3d cross = new javax_.vecmath.Vector3d();
-        cross.cross(v0, v1);
-        return cross.length() * 0.5;
+        int i0 = 3 * indices[3 * index];
+        int i1 = 3 * indices[3 * index + 1];
+        int i2 = 3 * indices[3 * index + 2];
+        double ax = positions[i1] - positions[i0];
+        double ay = positions[i1 + 1] - positions[i0 + 1];
+        double az = positions[i1 + 2] - positions[i0 + 2];
+        double bx = positions[i2] - positions[i0];
+        double by = positions[i2 + 1] - positions[i0 + 1];
+        double bz = positions[i2 + 2] - positions[i0 + 2];
+        double cx = ay * bz - az * by;
+        double cy = az * bx - ax * bz;
+        double cz = ax * by - ay * bx;
+        return Math.sqrt(cx * cx + cy * cy + cz * cz) * 0.5;
     }
 
     /**
@@ -168,8 +192,9 @@ public abstract class Mesh extends WakameObject {
     /**
      * Ray-triangle intersection test.
      *
-     * Uses the algorithm by Moeller and Trumbore discussed at
-     * http://www.acm.org/jgt/papers/MollerTrumbore97/code.html
+     * Uses the watertight test of Woop et al. (see WatertightIntersector), so a ray
+     * through an edge shared by two triangles of the mesh hits at least one of them.
+     * Nothing is allocated per call.
      *
      * Note that the test only applies to a single triangle in the mesh.
      * An acceleration data structure like BVH is needed to search
@@ -181,68 +206,154 @@ public abstract class Mesh extends WakameObject {
      * @return whether the ray intersect the triangle with the given index
      */
     public boolean rayIntersect(int index, Ray ray, TriangleIntersection inter) {
-        javax_.vecmath.Point3i tri = triangles.get(index);
-        int i0 = tri.x;
-        int i1 = tri.y;
-        int i2 = tri.z;
+        WatertightIntersector intersector = rayIntersector.get();
+        intersector.setRay(ray);
+        double t = intersector.intersect(positions, indices[3 * index], indices[3 * index + 1], indices[3 * index + 2],
+                ray.mint, ray.maxt);
+        if (t == Double.POSITIVE_INFINITY) {
+            return false;
+        }
+        inter.t = t;
+        inter.bary.set(1 - intersector.u - intersector.v, intersector.u, intersector.v);
+        return true;
+    }
 
-        javax_.vecmath.Point3d p0 = positions.get(i0);
-        javax_.vecmath.Point3d p1 = positions.get(i1);
-        javax_.vecmath.Point3d p2 = positions.get(i2);
+    /**
+     * Ray-triangle occlusion test.
+     *
+     * Same test as rayIntersect(int, Ray, TriangleIntersection), but only checks
+     * whether the ray hits the triangle somewhere within [mint, maxt]. The
+     * ray's own mint and maxt are ignored, and nothing is allocated.
+     *
+     * @param index the index of the triangle
+     * @param ray the ray
+     * @param mint the start of the ray segment to test
+     * @param maxt the end of the ray segment to test
+     * @return whether the ray segment intersects the triangle with the given index
+     */
+    public boolean rayIntersect(int index, Ray ray, double mint, double maxt) {
+        WatertightIntersector intersector = rayIntersector.get();
+        intersector.setRay(ray);
+        return intersector.intersect(positions, indices[3 * index], indices[3 * index + 1], indices[3 * index + 2],
+                mint, maxt) != Double.POSITIVE_INFINITY;
+    }
 
-        // Find vectors for the two edges sharing p0.
-        javax_.vecmath.Vector3d edge1 = new javax_.vecmath.Vector3d(); edge1.sub(p1, p0);
-        javax_.vecmath.Vector3d edge2 = new javax_.vecmath.Vector3d(); edge2.sub(p2, p0);
+    /**
+     * Get the position of the vertex with the given index.
+     * @param index the index of the vertex
+     * @param p the receiver of the position
+     */
+    public void getPosition(int index, javax_.vecmath.Tuple3d p) {
+        p.set(positions[3 * index], positions[3 * index + 1], positions[3 * index + 2]);
+    }
 
-        // Begin calculating the determinant - also used to calculate the y-component of the barycentric coordinate.
-        javax_.vecmath.Vector3d pvec = new javax_.vecmath.Vector3d(); pvec.cross(ray.d, edge2);
-        double det = edge1.dot(pvec);
+    /**
+     * Move the vertex with the given index.  The bounding box is grown to contain the new position; call
+     * updateBoundingBox() to shrink it once vertices have moved inward.  A Bvh over the mesh must be refitted
+     * (see Bvh.refit()) or rebuilt before it is traced again.
+     * @param index the index of the vertex
+     * @param p the new position, in world space
+     */
+    public void setPosition(int index, javax_.vecmath.Tuple3d p) {
+        positions[3 * index] = p.x;
+        positions[3 * index + 1] = p.y;
+        positions[3 * index + 2] = p.z;
+        bbox.expandBy(p);
+    }
 
-        // If the determinant is near zero, ray lies in the plane of the triangle.
-        if (det > -1e-8 && det < 1e-8) {
-            return false;
+    /**
+     * Recompute the bounding box from the vertex positions.
+     */
+    public void updateBoundingBox() {
+        bbox.reset();
+        javax_.vecmath.Point3d p = new javax_.vecmath.Point3d();
+        for (int i = 0; i < getVertexCount(); i++) {
+            getPosition(i, p);
+            bbox.expandBy(p);
         }
-        double invDet = 1.0 / det;
+    }
 
-        // Calculate the distance from p0 to ray origin.
-        javax_.vecmath.Vector3d tvec = new javax_.vecmath.Vector3d(); tvec.sub(ray.o, p0);
+    /**
+     * Return whether the mesh has per-vertex normals.
+     */
+    public boolean hasNormals() {
+        return normals.length > 0;
+    }
 
-        // Calculate the y-component and test bounds.
-        inter.bary.y = tvec.dot(pvec) * invDet;
-        if (inter.bary.y < 0 | inter.bary.y > 1) {
-            return false;
-        }
+    /**
+     * Get the normal of the vertex with the given index.  Only valid if hasNormals().
+     * @param index the index of the vertex
+     * @param n the receiver of the normal
+     */
+    public void getNormal(int index, javax_.vecmath.Tuple3d n) {
+        n.set(normals[3 * index], normals[3 * index + 1], normals[3 * index + 2]);
+    }
 
-        // Prepare to test the z-component.
-        javax_.vecmath.Vector3d qvec = new javax_.vecmath.Vector3d(); qvec.cross(tvec, edge1);
+    /**
+     * Return whether the mesh has per-vertex texture coordinates.
+     */
+    public boolean hasTexCoords() {
+        return texCoords.length > 0;
+    }
 
-        // Calculate the z-component and test bounds.
-        inter.bary.z = ray.d.dot(qvec) * invDet;
-        if (inter.bary.z < 0 || inter.bary.y + inter.bary.z > 1) {
-            return false;
-        }
-        inter.bary.x = 1 - inter.bary.y - inter.bary.z;
+    /**
+     * Get the texture coordinates of the vertex with the given index.  Only valid if hasTexCoords().
+     * @param index the index of the vertex
+     * @param uv the receiver of the texture coordinates
+     */
+    public void getTexCoord(int index, javax_.vecmath.Tuple2d uv) {
+        uv.set(texCoords[2 * index], texCoords[2 * index + 1]);
+    }
 
-        // Compute the "time" of the intersection.
-        inter.t = edge2.dot(qvec) * invDet;
+    /**
+     * Return the index of a vertex of a triangle.
+     * @param triangle the index of the triangle
+     * @param corner 0, 1, or 2
+     * @return the index of the vertex at the given corner of the triangle
+     */
+    public int getVertexIndex(int triangle, int corner) {
+        return indices[3 * triangle + corner];
+    }
 
-        return inter.t >= ray.mint && inter.t <= ray.maxt;
+    /**
+     * Get the indices of the three vertices of a triangle.
+     * @param triangle the index of the triangle
+     * @param tri the receiver of the vertex indices
+     */
+    public void getTriangle(int triangle, javax_.vecmath.Tuple3i tri) {
+        tri.set(indices[3 * triangle], indices[3 * triangle + 1], indices[3 * triangle + 2]);
     }
 
-    public List<javax_.vecmath.Point3d> getPositions() {
+    /**
+     * Return the array of vertex positions, three values per vertex.  The array is the mesh's own
+     * storage and must not be modified; move vertices with setPosition() instead.
+     */
+    public double[] getPositionArray() {
         return positions;
     }
 
-    public List<javax_.vecmath.Vector3d> getNormals() {
+    /**
+     * Return the array of vertex normals, three values per vertex, or an empty array if the mesh has none.
+     * The array is the mesh's own storage and must not be modified.
+     */
+    public float[] getNormalArray() {
         return normals;
     }
 
-    public List<javax_.vecmath.Vector2d> getTexCoords() {
+    /**
+     * Return the array of vertex texture coordinates, two values per vertex, or an empty array if the mesh has
+     * none.  The array is the mesh's own storage and must not be modified.
+     */
+    public float[] getTexCoordArray() {
         return texCoords;
     }
 
-    public List<javax_.vecmath.Point3i> getTriangles() {
-        return triangles;
+    /**
+     * Return the index buffer, three vertex indices per triangle.  The array is the mesh's own storage and must
+     * not be modified.
+     */
+    public int[] getIndexArray() {
+        return indices;
     }
 
     public Emitter getEmitter() {
@@ -270,8 +381,8 @@ public abstract class Mesh extends WakameObject {
                 "  emitter = %s\n" +
                 "]",
                 name,
-                positions.size(),
-                triangles.size(),
+                getVertexCount(),
+                getTriangleCount(),
                 StringUtil.indent(StringUtil.safeToString(bsdf)),
                 StringUtil.indent(StringUtil.safeToString(emitter))
         );
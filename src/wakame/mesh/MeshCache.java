@@ -0,0 +1,185 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.mesh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wakame.struct.Aabb3d;
+import wakame.struct.Transform;
+import wakame.util.CacheFileUtil;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * On-disk cache of a loaded mesh
+ *
+ * The file stores the arrays of a mesh exactly as the loader produced them: world-space positions, normals,
+ * texture coordinates, and deduplicated triangle indices, plus the bounding box.  It is keyed by the size and
+ * modification time of the source file and by the toWorld transform, so editing the source or moving the
+ * mesh simply causes a reload that overwrites the cache.
+ *
+ * File layout (little endian): magic, version, source size, source modification time (ms), toWorld matrix
+ * (16 doubles, row major), bounding box (6 doubles), vertex count, triangle count, whether there are normals,
+ * whether there are texture coordinates, positions (3 doubles per vertex), normals (3 floats per vertex, if
+ * any), texture coordinates (2 floats per vertex, if any), indices (3 ints per triangle).
+ */
+class MeshCache {
+    /**
+     * The logger
+     */
+    private static Logger logger = LoggerFactory.getLogger(MeshCache.class);
+    /**
+     * "WMSH" in little endian.
+     */
+    private static final int MAGIC = 0x48534D57;
+    /**
+     * Bumped whenever the file layout or the way the loaders build the arrays changes.
+     */
+    private static final int VERSION = 1;
+    /**
+     * Size of the header in bytes.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 16 * 8 + 6 * 8 + 4 + 4 + 4 + 4;
+    /**
+     * The extension appended to the name of the source file to get the name of its cache.
+     */
+    static final String EXTENSION = ".wmesh";
+
+    double[] positions;
+    float[] normals;
+    float[] texCoords;
+    int[] indices;
+    final Aabb3d bbox = new Aabb3d();
+
+    private MeshCache() {
+        // NO-OP
+    }
+
+    /**
+     * Get the cache file of the given source file.
+     */
+    static File getCacheFile(String sourceFileName) {
+        return new File(sourceFileName + EXTENSION);
+    }
+
+    /**
+     * Load the mesh stored in the given file if it was made from the current version of the source file with
+     * the same transform.
+     *
+     * @param file    the cache file
+     * @param source  the attributes of the source file
+     * @param toWorld the transform applied to the source
+     * @return the cached mesh, or null if the file does not exist, is stale, or cannot be read
+     */
+    static MeshCache load(File file, BasicFileAttributes source, Transform toWorld) {
+        MappedByteBuffer buffer = CacheFileUtil.map(file, "mesh cache", HEADER_SIZE);
+        if (buffer == null)
+            return null;
+        long fileSize = buffer.capacity();
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            return null;
+        if (buffer.getLong() != source.size() || buffer.getLong() != source.lastModifiedTime().toMillis()) {
+            logger.info("Mesh cache \"" + file + "\" is stale.");
+            return null;
+        }
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                if (Double.doubleToLongBits(buffer.getDouble())
+                        != Double.doubleToLongBits(toWorld.m.getElement(i, j))) {
+                    logger.info("Mesh cache \"" + file + "\" was made with another transform.");
+                    return null;
+                }
+            }
+        }
+
+        MeshCache cache = new MeshCache();
+        cache.bbox.pMin.set(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+        cache.bbox.pMax.set(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+        int vertexCount = buffer.getInt();
+        int triangleCount = buffer.getInt();
+        boolean hasNormals = buffer.getInt() != 0;
+        boolean hasTexCoords = buffer.getInt() != 0;
+        if (vertexCount < 0 || triangleCount < 0 || fileSize != HEADER_SIZE + 24L * vertexCount
+                + (hasNormals ? 12L * vertexCount : 0) + (hasTexCoords ? 8L * vertexCount : 0)
+                + 12L * triangleCount)
+            return null;
+
+        cache.positions = new double[3 * vertexCount];
+        cache.normals = new float[hasNormals ? 3 * vertexCount : 0];
+        cache.texCoords = new float[hasTexCoords ? 2 * vertexCount : 0];
+        cache.indices = new int[3 * triangleCount];
+        buffer.asDoubleBuffer().get(cache.positions);
+        buffer.position(buffer.position() + 8 * cache.positions.length);
+        buffer.asFloatBuffer().get(cache.normals);
+        buffer.position(buffer.position() + 4 * cache.normals.length);
+        buffer.asFloatBuffer().get(cache.texCoords);
+        buffer.position(buffer.position() + 4 * cache.texCoords.length);
+        buffer.asIntBuffer().get(cache.indices);
+
+        for (int index : cache.indices) {
+            if (index < 0 || index >= vertexCount)
+                return null;
+        }
+        return cache;
+    }
+
+    /**
+     * Write a mesh to the given file.  A mesh whose file would be too large to map is not written (see
+     * CacheFileUtil).
+     *
+     * @param file    the cache file
+     * @param source  the attributes the source file had when the mesh was loaded from it
+     * @param toWorld the transform applied to the source
+     * @param mesh    the loaded mesh
+     */
+    static void save(File file, BasicFileAttributes source, Transform toWorld, Mesh mesh) {
+        double[] positions = mesh.getPositionArray();
+        float[] normals = mesh.getNormalArray();
+        float[] texCoords = mesh.getTexCoordArray();
+        int[] indices = mesh.getIndexArray();
+        long size = HEADER_SIZE + 8L * positions.length + 4L * normals.length + 4L * texCoords.length
+                + 4L * indices.length;
+        Aabb3d bbox = new Aabb3d();
+        mesh.getBoundingBox(bbox);
+
+        CacheFileUtil.write(file, "mesh cache", size, (CacheFileUtil.Output output) -> {
+            output.putInt(MAGIC);
+            output.putInt(VERSION);
+            output.putLong(source.size());
+            output.putLong(source.lastModifiedTime().toMillis());
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 4; j++) {
+                    output.putDouble(toWorld.m.getElement(i, j));
+                }
+            }
+            output.putDouble(bbox.pMin.x).putDouble(bbox.pMin.y).putDouble(bbox.pMin.z);
+            output.putDouble(bbox.pMax.x).putDouble(bbox.pMax.y).putDouble(bbox.pMax.z);
+            output.putInt(mesh.getVertexCount());
+            output.putInt(mesh.getTriangleCount());
+            output.putInt(normals.length > 0 ? 1 : 0);
+            output.putInt(texCoords.length > 0 ? 1 : 0);
+            output.putDoubles(positions, 0, positions.length);
+            output.putFloats(normals, 0, normals.length);
+            output.putFloats(texCoords, 0, texCoords.length);
+            output.putInts(indices, 0, indices.length);
+        });
+    }
+}
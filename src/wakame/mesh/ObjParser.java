@@ -0,0 +1,333 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.mesh;
+
+import wakame.struct.Transform;
+
+import javax_.vecmath.Point3d;
+import javax_.vecmath.Vector3d;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parser of the records of a Wavefront OBJ file
+ *
+ * Reads the "v", "vt", "vn", and "f" records straight from the bytes of a buffer, usually a memory-mapped
+ * region of the file, and parses the numbers without creating strings.  Positions and normals are transformed
+ * to world space as they are read.  Faces are triangulated as fans around their first vertex, and every
+ * triangle corner is recorded as its 1-based position, texture coordinate, and normal numbers, with -1 for
+ * an attribute that is not given.  WavefrontOBJ then turns the distinct corners into the vertices of the mesh.
+ * Other records (groups, materials, lines, ...) are skipped.
+ *
+ * When a file is parsed in chunks, the parser of a chunk does not know how many attributes the earlier chunks
+ * define.  A negative (relative) index is then resolved against the attributes of the chunk alone, which can
+ * give a number of zero or less, and the corner is listed in relativeCorners so that the count of the earlier
+ * chunks can be added once it is known.
+ */
+final class ObjParser {
+    private final Transform trafo;
+    private final Point3d p = new Point3d();
+    private final Vector3d n = new Vector3d();
+    private final DecimalParser decimalParser = new DecimalParser();
+
+    /**
+     * The positions in world space, three values each.
+     */
+    double[] positions = new double[3 * 1024];
+    int positionCount = 0;
+    /**
+     * The texture coordinates, two values each.
+     */
+    float[] texCoords = new float[2 * 1024];
+    int texCoordCount = 0;
+    /**
+     * The normals in world space, three values each.
+     */
+    float[] normals = new float[3 * 1024];
+    int normalCount = 0;
+    /**
+     * The position, texture coordinate, and normal numbers of each triangle corner, three corners per
+     * triangle.
+     */
+    int[] cornerP = new int[3 * 1024];
+    int[] cornerT = new int[3 * 1024];
+    int[] cornerN = new int[3 * 1024];
+    int cornerCount = 0;
+
+    /**
+     * The corners whose numbers were resolved from negative indices, as 3 * corner + attribute, where the
+     * attribute is 0 for the position, 1 for the texture coordinate, and 2 for the normal.  Only recorded
+     * when parsing a chunk.
+     */
+    int[] relativeCorners = new int[0];
+    int relativeCornerCount = 0;
+
+    private final boolean chunk;
+    /**
+     * The indices of the corners of the face being parsed, as written, with 0 for an attribute that is not
+     * given.
+     */
+    private int[] faceP = new int[16];
+    private int[] faceT = new int[16];
+    private int[] faceN = new int[16];
+
+    private ByteBuffer buffer;
+    private int pos;
+    private int end;
+
+    /**
+     * @param trafo the transformation from the file to world space
+     * @param chunk whether the parser reads a chunk that may not be the start of the file
+     */
+    ObjParser(Transform trafo, boolean chunk) {
+        this.trafo = trafo;
+        this.chunk = chunk;
+    }
+
+    /**
+     * Parse the lines in buffer[start, end).  The range must start at the beginning of a line, and must end
+     * at the end of one or at the end of the file.
+     */
+    void parse(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.pos = start;
+        this.end = end;
+        while (pos < end) {
+            skipBlanks();
+            byte c = peek();
+            if (c == 'v') {
+                byte c1 = peek(1);
+                if (isBlank(c1)) {
+                    pos += 1;
+                    parsePosition();
+                } else if (c1 == 't' && isBlank(peek(2))) {
+                    pos += 2;
+                    parseTexCoord();
+                } else if (c1 == 'n' && isBlank(peek(2))) {
+                    pos += 2;
+                    parseNormal();
+                }
+            } else if (c == 'f' && isBlank(peek(1))) {
+                pos += 1;
+                parseFace();
+            }
+            skipLine();
+        }
+        this.buffer = null;
+    }
+
+    private void parsePosition() {
+        p.x = parseDouble();
+        p.y = parseDouble();
+        p.z = parseDouble();
+        trafo.m.transform(p);
+        if (3 * positionCount + 3 > positions.length)
+            positions = Arrays.copyOf(positions, 2 * positions.length);
+        positions[3 * positionCount] = p.x;
+        positions[3 * positionCount + 1] = p.y;
+        positions[3 * positionCount + 2] = p.z;
+        positionCount++;
+    }
+
+    private void parseTexCoord() {
+        double u = parseDouble();
+        double v = parseDouble();
+        if (2 * texCoordCount + 2 > texCoords.length)
+            texCoords = Arrays.copyOf(texCoords, 2 * texCoords.length);
+        texCoords[2 * texCoordCount] = (float) u;
+        texCoords[2 * texCoordCount + 1] = (float) v;
+        texCoordCount++;
+    }
+
+    private void parseNormal() {
+        n.x = parseDouble();
+        n.y = parseDouble();
+        n.z = parseDouble();
+        trafo.mit.transform(n);
+        if (3 * normalCount + 3 > normals.length)
+            normals = Arrays.copyOf(normals, 2 * normals.length);
+        normals[3 * normalCount] = (float) n.x;
+        normals[3 * normalCount + 1] = (float) n.y;
+        normals[3 * normalCount + 2] = (float) n.z;
+        normalCount++;
+    }
+
+    /**
+     * Parse the vertices of a face, each given as "p", "p/uv", "p//n", or "p/uv/n", and record the corners
+     * of its triangles.
+     */
+    private void parseFace() {
+        int count = 0;
+        while (true) {
+            skipBlanks();
+            if (isLineEnd(peek()))
+                break;
+            if (count == faceP.length) {
+                faceP = Arrays.copyOf(faceP, 2 * count);
+                faceT = Arrays.copyOf(faceT, 2 * count);
+                faceN = Arrays.copyOf(faceN, 2 * count);
+            }
+            faceP[count] = parseIndex();
+            faceT[count] = 0;
+            faceN[count] = 0;
+            if (peek() == '/') {
+                pos++;
+                if (isDigitOrSign(peek()))
+                    faceT[count] = parseIndex();
+                if (peek() == '/') {
+                    pos++;
+                    if (isDigitOrSign(peek()))
+                        faceN[count] = parseIndex();
+                }
+            }
+            if (!isBlank(peek()) && !isLineEnd(peek()))
+                throw invalid("vertex data");
+            count++;
+        }
+
+        /* Triangulate the polygon as a fan around its first vertex */
+        for (int i = 0; i < count - 2; i++) {
+            addCorner(0);
+            addCorner(i + 1);
+            addCorner(i + 2);
+        }
+    }
+
+    private void addCorner(int i) {
+        if (cornerCount == cornerP.length) {
+            cornerP = Arrays.copyOf(cornerP, 2 * cornerCount);
+            cornerT = Arrays.copyOf(cornerT, 2 * cornerCount);
+            cornerN = Arrays.copyOf(cornerN, 2 * cornerCount);
+        }
+        cornerP[cornerCount] = resolveIndex(faceP[i], positionCount, 0);
+        cornerT[cornerCount] = faceT[i] == 0 ? -1 : resolveIndex(faceT[i], texCoordCount, 1);
+        cornerN[cornerCount] = faceN[i] == 0 ? -1 : resolveIndex(faceN[i], normalCount, 2);
+        cornerCount++;
+    }
+
+    /**
+     * Turn an index as written in a face into a 1-based number.  Negative indices count back from the last
+     * attribute read so far.
+     */
+    private int resolveIndex(int index, int count, int attribute) {
+        if (index > 0)
+            return index;
+        if (chunk) {
+            if (relativeCornerCount == relativeCorners.length)
+                relativeCorners = Arrays.copyOf(relativeCorners, Math.max(16, 2 * relativeCornerCount));
+            relativeCorners[relativeCornerCount++] = 3 * cornerCount + attribute;
+        }
+        return count + index + 1;
+    }
+
+    /**
+     * Parse an index of a face vertex: an optionally signed, nonzero decimal integer.
+     */
+    private int parseIndex() {
+        boolean negative = false;
+        byte c = peek();
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            pos++;
+        }
+        if (!isDigit(peek()))
+            throw invalid("vertex data");
+        long value = 0;
+        while (isDigit(c = peek())) {
+            value = 10 * value + (c - '0');
+            if (value > Integer.MAX_VALUE)
+                throw invalid("vertex data");
+            pos++;
+        }
+        if (value == 0)
+            throw invalid("vertex data");
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Parse a floating-point number (see DecimalParser).
+     */
+    private double parseDouble() {
+        skipBlanks();
+        if (isLineEnd(peek()))
+            throw invalid("number");
+        double value = decimalParser.parseDouble(buffer, pos, end);
+        pos = decimalParser.position;
+        return value;
+    }
+
+    private RuntimeException invalid(String what) {
+        int lineStart = pos;
+        while (lineStart > 0 && buffer.get(lineStart - 1) != '\n')
+            lineStart--;
+        int lineEnd = pos;
+        while (!isLineEnd(peek(lineEnd - pos)))
+            lineEnd++;
+        byte[] bytes = new byte[lineEnd - lineStart];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(lineStart + i);
+        return new RuntimeException("ObjParser.parse(): Invalid " + what + ": "
+                + new String(bytes, StandardCharsets.US_ASCII).trim());
+    }
+
+    private void skipBlanks() {
+        while (pos < end && isBlank(buffer.get(pos)))
+            pos++;
+    }
+
+    /**
+     * Move to the start of the next line.
+     */
+    private void skipLine() {
+        while (pos < end && buffer.get(pos++) != '\n') {
+            // NO-OP
+        }
+    }
+
+    /**
+     * Get the byte at the current position, or a newline past the end of the range.
+     */
+    private byte peek() {
+        return pos < end ? buffer.get(pos) : (byte) '\n';
+    }
+
+    private byte peek(int offset) {
+        return pos + offset < end ? buffer.get(pos + offset) : (byte) '\n';
+    }
+
+    private static boolean isBlank(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Return whether a byte ends the content of a line; a carriage return is taken as the end of a CRLF.
+     */
+    private static boolean isLineEnd(byte c) {
+        return c == '\n' || c == '\r';
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isDigitOrSign(byte c) {
+        return isDigit(c) || c == '-' || c == '+';
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.mesh;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wakame.WakameObject;
+import wakame.struct.Transform;
+import wakame.util.PropertiesUtil;
+import yondoko.util.FileResolver;
+
+import javax_.vecmath.Point3d;
+import javax_.vecmath.Vector3d;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Loader for Stanford PLY triangle meshes
+ *
+ * Reads ASCII, binary little-endian, and binary big-endian files straight from a memory-mapped buffer.  The
+ * "vertex" element supplies the positions (x, y, z), and optionally the normals (nx, ny, nz) and the texture
+ * coordinates (u, v, or s, t, or texture_u, texture_v); the "face" element supplies the polygons through its
+ * "vertex_indices" (or "vertex_index") list, which are triangulated as fans around their first vertex.  All
+ * other elements and properties are skipped.
+ */
+public class StanfordPLY extends Mesh {
+    /**
+     * The unresolved file name of the mesh file.
+     */
+    private String fileName;
+    /**
+     * Resolved file name of the mesh file.
+     */
+    private String resolvedFileName;
+    /**
+     * The logger
+     */
+    private static Logger logger = LoggerFactory.getLogger(StanfordPLY.class);
+
+    /**
+     * Roles of the vertex properties the mesh uses.
+     */
+    private static final int SKIP = -1;
+    private static final int X = 0, Y = 1, Z = 2, NX = 3, NY = 4, NZ = 5, U = 6, V = 7;
+
+    /**
+     * Scalar types of PLY properties.
+     */
+    private enum Type {
+        INT8, UINT8, INT16, UINT16, INT32, UINT32, FLOAT32, FLOAT64;
+
+        static Type fromName(String name) {
+            switch (name) {
+                case "char": case "int8": return INT8;
+                case "uchar": case "uint8": return UINT8;
+                case "short": case "int16": return INT16;
+                case "ushort": case "uint16": return UINT16;
+                case "int": case "int32": return INT32;
+                case "uint": case "uint32": return UINT32;
+                case "float": case "float32": return FLOAT32;
+                case "double": case "float64": return FLOAT64;
+                default:
+                    throw new RuntimeException("StanfordPLY.Type.fromName(): Unknown property type: " + name);
+            }
+        }
+    }
+
+    private static class Property {
+        String name;
+        Type type;
+        /**
+         * The type of the length of a list property, or null if the property is a scalar.
+         */
+        Type countType;
+    }
+
+    private static class Element {
+        String name;
+        int count;
+        ArrayList<Property> properties = new ArrayList<Property>();
+    }
+
+    private StanfordPLY() {
+        // NO-OP
+    }
+
+    @Override
+    protected void setProperties(HashMap<String, Object> properties) {
+        fileName = PropertiesUtil.getString(properties, "filename");
+        resolvedFileName = FileResolver.resolve(fileName);
+        Transform trafo = PropertiesUtil.getTransform(properties, "toWorld", new Transform());
+
+        logger.info("Loading a mesh from \"" + resolvedFileName + "\" ...");
+
+        bbox.reset();
+
+        long start = System.currentTimeMillis();
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(resolvedFileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new RuntimeException("StanfordPLY.setProperties(): \"" + resolvedFileName
+                        + "\" is larger than 2 GB.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        /* Read the header */
+        ArrayList<Element> elements = new ArrayList<Element>();
+        String format = null;
+        String line = readHeaderLine(buffer);
+        if (!line.equals("ply")) {
+            throw new RuntimeException("StanfordPLY.setProperties(): \"" + resolvedFileName
+                    + "\" is not a PLY file.");
+        }
+        while (!(line = readHeaderLine(buffer)).equals("end_header")) {
+            String[] comps = line.split("\\s+");
+            if (comps[0].equals("format") && comps.length >= 2) {
+                format = comps[1];
+            } else if (comps[0].equals("element") && comps.length >= 3) {
+                Element element = new Element();
+                element.name = comps[1];
+                element.count = Integer.parseInt(comps[2]);
+                elements.add(element);
+            } else if (comps[0].equals("property") && !elements.isEmpty()) {
+                Property property = new Property();
+                if (comps.length >= 5 && comps[1].equals("list")) {
+                    property.countType = Type.fromName(comps[2]);
+                    property.type = Type.fromName(comps[3]);
+                    property.name = comps[4];
+                } else if (comps.length >= 3) {
+                    property.type = Type.fromName(comps[1]);
+                    property.name = comps[2];
+                } else {
+                    throw new RuntimeException("StanfordPLY.setProperties(): Invalid property: " + line);
+                }
+                elements.get(elements.size() - 1).properties.add(property);
+            }
+        }
+
+        ValueReader reader;
+        if ("ascii".equals(format)) {
+            reader = new AsciiReader(buffer);
+        } else if ("binary_little_endian".equals(format)) {
+            reader = new BinaryReader(buffer.order(ByteOrder.LITTLE_ENDIAN));
+        } else if ("binary_big_endian".equals(format)) {
+            reader = new BinaryReader(buffer.order(ByteOrder.BIG_ENDIAN));
+        } else {
+            throw new RuntimeException("StanfordPLY.setProperties(): Unsupported format: " + format);
+        }
+
+        try {
+            readElements(elements, reader, trafo);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new RuntimeException("StanfordPLY.setProperties(): \"" + resolvedFileName + "\" is truncated.");
+        }
+
+        long end = System.currentTimeMillis();
+        long elapsed = end - start;
+
+        logger.info(String.format("Done loading mesh with %d vertices and %d triangles. "
+                        + "Took %d min(s) %d second(s) and %d ms.",
+                getVertexCount(), getTriangleCount(),
+                elapsed / (60*1000), (elapsed / 1000) % 60, elapsed % 1000));
+    }
+
+    /**
+     * Read the elements in the order the header lists them, filling in the vertex attributes from the vertex
+     * element and the triangles from the face element.
+     */
+    private void readElements(ArrayList<Element> elements, ValueReader reader, Transform trafo) {
+        int[] faceIndices = new int[0];
+        int indexCount = 0;
+        int vertexCount = 0;
+        boolean hasVertices = false;
+        for (Element element : elements) {
+            if (element.name.equals("vertex")) {
+                if (hasVertices) {
+                    throw new RuntimeException("StanfordPLY.readElements(): \"" + resolvedFileName
+                            + "\" has more than one vertex element.");
+                }
+                hasVertices = true;
+                vertexCount = element.count;
+                readVertices(element, reader, trafo);
+            } else if (element.name.equals("face")) {
+                int listIndex = -1;
+                for (int i = 0; i < element.properties.size(); i++) {
+                    Property property = element.properties.get(i);
+                    if (property.countType != null
+                            && (property.name.equals("vertex_indices") || property.name.equals("vertex_index")))
+                        listIndex = i;
+                }
+                if (listIndex < 0) {
+                    throw new RuntimeException("StanfordPLY.readElements(): The faces of \"" + resolvedFileName
+                            + "\" have no vertex_indices list.");
+                }
+                if (faceIndices.length == 0)
+                    faceIndices = new int[3 * element.count];
+                int[] face = new int[16];
+                for (int f = 0; f < element.count; f++) {
+                    for (int i = 0; i < element.properties.size(); i++) {
+                        Property property = element.properties.get(i);
+                        if (i != listIndex) {
+                            skipProperty(property, reader);
+                            continue;
+                        }
+                        int count = (int) reader.read(property.countType);
+                        if (count > face.length)
+                            face = new int[2 * count];
+                        for (int k = 0; k < count; k++)
+                            face[k] = (int) reader.read(property.type);
+
+                        /* Triangulate the polygon as a fan around its first vertex */
+                        for (int k = 0; k < count - 2; k++) {
+                            if (indexCount + 3 > faceIndices.length)
+                                faceIndices = Arrays.copyOf(faceIndices, 2 * faceIndices.length + 3);
+                            faceIndices[indexCount++] = face[0];
+                            faceIndices[indexCount++] = face[k + 1];
+                            faceIndices[indexCount++] = face[k + 2];
+                        }
+                    }
+                }
+            } else {
+                for (int i = 0; i < element.count; i++) {
+                    for (Property property : element.properties)
+                        skipProperty(property, reader);
+                }
+            }
+        }
+
+        indices = indexCount == faceIndices.length ? faceIndices : Arrays.copyOf(faceIndices, indexCount);
+        for (int index : indices) {
+            if (index < 0 || index >= vertexCount) {
+                throw new RuntimeException("StanfordPLY.readElements(): A face of \"" + resolvedFileName
+                        + "\" refers to vertex " + index + ", but there are " + vertexCount + ".");
+            }
+        }
+    }
+
+    /**
+     * Read the vertex element into the attribute arrays.
+     */
+    private void readVertices(Element element, ValueReader reader, Transform trafo) {
+        int[] roles = new int[element.properties.size()];
+        boolean[] found = new boolean[8];
+        for (int i = 0; i < roles.length; i++) {
+            Property property = element.properties.get(i);
+            roles[i] = property.countType == null ? getVertexRole(property.name) : SKIP;
+            if (roles[i] != SKIP)
+                found[roles[i]] = true;
+        }
+        if (!found[X] || !found[Y] || !found[Z]) {
+            throw new RuntimeException("StanfordPLY.readVertices(): The vertices of \"" + resolvedFileName
+                    + "\" have no positions.");
+        }
+        boolean hasNormals = found[NX] && found[NY] && found[NZ];
+        boolean hasTexCoords = found[U] && found[V];
+
+        int count = element.count;
+        positions = new double[3 * count];
+        normals = new float[hasNormals ? 3 * count : 0];
+        texCoords = new float[hasTexCoords ? 2 * count : 0];
+        double[] values = new double[8];
+        Point3d p = new Point3d();
+        Vector3d n = new Vector3d();
+        for (int v = 0; v < count; v++) {
+            for (int i = 0; i < roles.length; i++) {
+                Property property = element.properties.get(i);
+                if (roles[i] == SKIP)
+                    skipProperty(property, reader);
+                else
+                    values[roles[i]] = reader.read(property.type);
+            }
+
+            p.set(values[X], values[Y], values[Z]);
+            trafo.m.transform(p);
+            bbox.expandBy(p);
+            positions[3 * v] = p.x;
+            positions[3 * v + 1] = p.y;
+            positions[3 * v + 2] = p.z;
+            if (hasNormals) {
+                n.set(values[NX], values[NY], values[NZ]);
+                trafo.mit.transform(n);
+                normals[3 * v] = (float) n.x;
+                normals[3 * v + 1] = (float) n.y;
+                normals[3 * v + 2] = (float) n.z;
+            }
+            if (hasTexCoords) {
+                texCoords[2 * v] = (float) values[U];
+                texCoords[2 * v + 1] = (float) values[V];
+            }
+        }
+    }
+
+    private static int getVertexRole(String name) {
+        switch (name) {
+            case "x": return X;
+            case "y": return Y;
+            case "z": return Z;
+            case "nx": return NX;
+            case "ny": return NY;
+            case "nz": return NZ;
+            case "u": case "s": case "texture_u": case "texture_s": return U;
+            case "v": case "t": case "texture_v": case "texture_t": return V;
+            default: return SKIP;
+        }
+    }
+
+    private static void skipProperty(Property property, ValueReader reader) {
+        if (property.countType == null) {
+            reader.skip(property.type);
+        } else {
+            int count = (int) reader.read(property.countType);
+            for (int k = 0; k < count; k++)
+                reader.skip(property.type);
+        }
+    }
+
+    /**
+     * Read a line of the header, leaving the buffer at the start of the next one.
+     */
+    private String readHeaderLine(ByteBuffer buffer) {
+        int start = buffer.position();
+        while (buffer.hasRemaining() && buffer.get() != '\n') {
+            // NO-OP
+        }
+        if (!buffer.hasRemaining() && buffer.position() == start) {
+            throw new RuntimeException("StanfordPLY.readHeaderLine(): The header of \"" + resolvedFileName
+                    + "\" is incomplete.");
+        }
+        byte[] bytes = new byte[buffer.position() - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(start + i);
+        return new String(bytes, StandardCharsets.US_ASCII).trim();
+    }
+
+    /**
+     * Reader of the values of the body of the file.
+     */
+    private interface ValueReader {
+        /**
+         * Read a value of the given type.
+         */
+        double read(Type type);
+
+        /**
+         * Skip a value of the given type.
+         */
+        void skip(Type type);
+    }
+
+    private static class BinaryReader implements ValueReader {
+        private final ByteBuffer buffer;
+
+        BinaryReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public double read(Type type) {
+            switch (type) {
+                case INT8: return buffer.get();
+                case UINT8: return buffer.get() & 0xFF;
+                case INT16: return buffer.getShort();
+                case UINT16: return buffer.getShort() & 0xFFFF;
+                case INT32: return buffer.getInt();
+                case UINT32: return buffer.getInt() & 0xFFFFFFFFL;
+                case FLOAT32: return buffer.getFloat();
+                default: return buffer.getDouble();
+            }
+        }
+
+        @Override
+        public void skip(Type type) {
+            int size;
+            switch (type) {
+                case INT8: case UINT8: size = 1; break;
+                case INT16: case UINT16: size = 2; break;
+                case INT32: case UINT32: case FLOAT32: size = 4; break;
+                default: size = 8; break;
+            }
+            buffer.position(buffer.position() + size);
+        }
+    }
+
+    private static class AsciiReader implements ValueReader {
+        private final ByteBuffer buffer;
+        private final DecimalParser decimalParser = new DecimalParser();
+
+        AsciiReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public double read(Type type) {
+            skipSeparators();
+            double value = decimalParser.parseDouble(buffer, buffer.position(), buffer.limit());
+            buffer.position(decimalParser.position);
+            return value;
+        }
+
+        @Override
+        public void skip(Type type) {
+            skipSeparators();
+            int pos = buffer.position();
+            while (pos < buffer.limit() && !DecimalParser.isSeparator(buffer.get(pos)))
+                pos++;
+            buffer.position(pos);
+        }
+
+        /**
+         * Move to the start of the next value.
+         */
+        private void skipSeparators() {
+            int pos = buffer.position();
+            while (pos < buffer.limit() && DecimalParser.isSeparator(buffer.get(pos)))
+                pos++;
+            if (pos == buffer.limit()) {
+                throw new RuntimeException("StanfordPLY.AsciiReader.skipSeparators(): Unexpected end of file.");
+            }
+            buffer.position(pos);
+        }
+    }
+
+    @Override
+    protected void activate() {
+        super.activate();
+    }
+
+    public static class Builder extends WakameObject.Builder {
+        @Override
+        protected WakameObject createInstance() {
+            return new StanfordPLY();
+        }
+    }
+
+    public String getUnresolvedFileName() {
+        return fileName;
+    }
+
+    public String toString() {
+        return "StanfordPLY[\n" +
+               "  filename = " + resolvedFileName + "\n" +
+               "  vertices = " + getVertexCount() + "\n" +
+               "  triangles = " + getTriangleCount() + "\n" +
+               "]";
+    }
+}
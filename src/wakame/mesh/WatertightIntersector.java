@@ -0,0 +1,185 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.mesh;
+
+import wakame.struct.Ray;
+
+/**
+ * Watertight ray-triangle intersection
+ *
+ * Implements the test of Woop et al., "Watertight Ray/Triangle Intersection" (JCGT 2013).  The vertices are
+ * translated to the ray origin and sheared so that the ray runs along the z axis, and the triangle is hit if
+ * the 2D edge functions at the origin all have the same sign.  Two triangles sharing an edge evaluate the same
+ * edge function on it with opposite signs, so a ray through the edge hits at least one of them, and there is
+ * no determinant epsilon that drops hits on tiny triangles.
+ *
+ * The permutation and shear depend only on the ray, so they are computed once by setRay() and then reused
+ * for every triangle tested against the ray.  The triangle vertices are read straight from packed arrays
+ * (or from points), and nothing is allocated.  An instance holds the state of one ray, so each thread
+ * uses its own.
+ */
+public final class WatertightIntersector {
+    /**
+     * Permutation of the axes that makes the dominant axis of the ray direction the z axis.
+     */
+    private int kx, ky, kz;
+    /**
+     * Shear constants.
+     */
+    private double sx, sy, sz;
+    /**
+     * Ray origin, permuted.
+     */
+    private double ox, oy, oz;
+    /**
+     * Barycentric coordinates (of the second and third vertex) of the last hit found.
+     */
+    public double u, v;
+
+    /**
+     * Set up the intersector for the given ray.
+     */
+    public void setRay(double ox, double oy, double oz, double dx, double dy, double dz) {
+        /* Make the dominant axis of the direction z, keeping the winding of the triangles */
+        double ax = Math.abs(dx), ay = Math.abs(dy), az = Math.abs(dz);
+        kz = ax > ay ? (ax > az ? 0 : 2) : (ay > az ? 1 : 2);
+        kx = kz == 2 ? 0 : kz + 1;
+        ky = kx == 2 ? 0 : kx + 1;
+        double dkz = component(dx, dy, dz, kz);
+        if (dkz < 0) {
+            int swap = kx;
+            kx = ky;
+            ky = swap;
+        }
+        sx = component(dx, dy, dz, kx) / dkz;
+        sy = component(dx, dy, dz, ky) / dkz;
+        sz = 1.0 / dkz;
+        this.ox = component(ox, oy, oz, kx);
+        this.oy = component(ox, oy, oz, ky);
+        this.oz = component(ox, oy, oz, kz);
+    }
+
+    /**
+     * Set up the intersector for the given ray.
+     */
+    public void setRay(Ray ray) {
+        setRay(ray.o.x, ray.o.y, ray.o.z, ray.d.x, ray.d.y, ray.d.z);
+    }
+
+    /**
+     * Intersect the ray with a triangle whose vertices are stored as nine consecutive values.
+     *
+     * @param vertices the array holding the x, y, and z coordinates of the three vertices
+     * @param offset   the position of the first coordinate in the array
+     * @param mint     the start of the ray segment to test
+     * @param maxt     the end of the ray segment to test
+     * @return the distance of the intersection along the ray if it lies within [mint, maxt],
+     * and Double.POSITIVE_INFINITY otherwise
+     */
+    public double intersect(double[] vertices, int offset, double mint, double maxt) {
+        return intersect(
+                vertices[offset + kx] - ox, vertices[offset + ky] - oy, vertices[offset + kz] - oz,
+                vertices[offset + 3 + kx] - ox, vertices[offset + 3 + ky] - oy, vertices[offset + 3 + kz] - oz,
+                vertices[offset + 6 + kx] - ox, vertices[offset + 6 + ky] - oy, vertices[offset + 6 + kz] - oz,
+                mint, maxt);
+    }
+
+    /**
+     * Single-precision counterpart of intersect(double[], int, double, double).  The arithmetic is done
+     * in double precision on the float vertices.
+     */
+    public double intersect(float[] vertices, int offset, double mint, double maxt) {
+        return intersect(
+                vertices[offset + kx] - ox, vertices[offset + ky] - oy, vertices[offset + kz] - oz,
+                vertices[offset + 3 + kx] - ox, vertices[offset + 3 + ky] - oy, vertices[offset + 3 + kz] - oz,
+                vertices[offset + 6 + kx] - ox, vertices[offset + 6 + ky] - oy, vertices[offset + 6 + kz] - oz,
+                mint, maxt);
+    }
+
+    /**
+     * Intersect the ray with a triangle of an indexed mesh.
+     *
+     * @param positions the vertex positions, three values per vertex
+     * @param v0        the index of the first vertex
+     * @param v1        the index of the second vertex
+     * @param v2        the index of the third vertex
+     * @param mint      the start of the ray segment to test
+     * @param maxt      the end of the ray segment to test
+     * @return the distance of the intersection along the ray if it lies within [mint, maxt],
+     * and Double.POSITIVE_INFINITY otherwise
+     */
+    public double intersect(double[] positions, int v0, int v1, int v2, double mint, double maxt) {
+        int a = 3 * v0, b = 3 * v1, c = 3 * v2;
+        return intersect(
+                positions[a + kx] - ox, positions[a + ky] - oy, positions[a + kz] - oz,
+                positions[b + kx] - ox, positions[b + ky] - oy, positions[b + kz] - oz,
+                positions[c + kx] - ox, positions[c + ky] - oy, positions[c + kz] - oz,
+                mint, maxt);
+    }
+
+    /**
+     * Intersect the ray with the triangle (p0, p1, p2).
+     *
+     * @return the distance of the intersection along the ray if it lies within [mint, maxt],
+     * and Double.POSITIVE_INFINITY otherwise
+     */
+    public double intersect(javax_.vecmath.Tuple3d p0, javax_.vecmath.Tuple3d p1, javax_.vecmath.Tuple3d p2,
+                            double mint, double maxt) {
+        return intersect(
+                component(p0, kx) - ox, component(p0, ky) - oy, component(p0, kz) - oz,
+                component(p1, kx) - ox, component(p1, ky) - oy, component(p1, kz) - oz,
+                component(p2, kx) - ox, component(p2, ky) - oy, component(p2, kz) - oz,
+                mint, maxt);
+    }
+
+    private double intersect(double a0, double a1, double a2,
+                             double b0, double b1, double b2,
+                             double c0, double c1, double c2,
+                             double mint, double maxt) {
+        // Shear the vertices so that the ray becomes the z axis.
+        double aX = a0 - sx * a2, aY = a1 - sy * a2;
+        double bX = b0 - sx * b2, bY = b1 - sy * b2;
+        double cX = c0 - sx * c2, cY = c1 - sy * c2;
+
+        // Edge functions, i.e., the scaled barycentric coordinates of the origin.
+        double e0 = cX * bY - cY * bX;
+        double e1 = aX * cY - aY * cX;
+        double e2 = bX * aY - bY * aX;
+        if ((e0 < 0 || e1 < 0 || e2 < 0) && (e0 > 0 || e1 > 0 || e2 > 0))
+            return Double.POSITIVE_INFINITY;
+        double det = e0 + e1 + e2;
+        if (det == 0)
+            return Double.POSITIVE_INFINITY;
+
+        double t = (e0 * a2 + e1 * b2 + e2 * c2) * sz / det;
+        if (!(t >= mint && t <= maxt))
+            return Double.POSITIVE_INFINITY;
+        u = e1 / det;
+        v = e2 / det;
+        return t;
+    }
+
+    private static double component(double x, double y, double z, int axis) {
+        return axis == 0 ? x : (axis == 1 ? y : z);
+    }
+
+    private static double component(javax_.vecmath.Tuple3d p, int axis) {
+        return axis == 0 ? p.x : (axis == 1 ? p.y : p.z);
+    }
+}
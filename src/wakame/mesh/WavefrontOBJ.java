@@ -24,16 +24,21 @@ import wakame.WakameObject;
 import wakame.struct.Transform;
 import wakame.util.PropertiesUtil;
 import yondoko.util.FileResolver;
-import yondoko.util.IOUtil;
 
 import javax_.vecmath.Point3d;
-import javax_.vecmath.Point3i;
-import javax_.vecmath.Vector2d;
-import javax_.vecmath.Vector3d;
-import java.io.*;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.stream.IntStream;
 
 /**
  * Loader for Wavefront OBJ triangle meshes
@@ -52,189 +57,478 @@ public class WavefrontOBJ extends Mesh {
      */
     private static Logger logger = LoggerFactory.getLogger(WavefrontOBJ.class);
 
+    /**
+     * The largest part of the file mapped into memory at once.
+     */
+    private static final long MAP_WINDOW_SIZE = 1L << 30;
+    /**
+     * The smallest chunk a file is split into for parallel parsing; smaller files are parsed on one thread.
+     */
+    private static final long MIN_CHUNK_SIZE = 4L << 20;
+    /**
+     * The number of shards of the parallel vertex deduplication, and its base-2 logarithm.
+     */
+    private static final int DEDUP_SHARD_BITS = 6;
+    private static final int DEDUP_SHARD_COUNT = 1 << DEDUP_SHARD_BITS;
+    /**
+     * The number of corners handled by one task of the parallel vertex deduplication.
+     */
+    private static final int DEDUP_BLOCK_SIZE = 1 << 16;
+
     private WavefrontOBJ() {
         // NO-OP
     }
 
+    /**
+     * Set up the mesh from the properties of its tag: "filename", "toWorld", "parallel", which turns the
+     * multithreaded loading of large files on or off, and "cache", which turns the mesh cache on or off.
+     * Both are on by default.
+     *
+     * With the cache on, the loaded mesh is written to the file named like the OBJ file with ".wmesh"
+     * appended (see MeshCache), and later loads of the same file with the same transform read that instead
+     * of parsing the text.
+     *
+     * @param properties the properties as a map from property name to values
+     */
     @Override
     protected void setProperties(HashMap<String, Object> properties) {
         fileName = PropertiesUtil.getString(properties, "filename");
         resolvedFileName = FileResolver.resolve(fileName);
         Transform trafo = PropertiesUtil.getTransform(properties, "toWorld", new Transform());
+        boolean parallel = PropertiesUtil.getBoolean(properties, "parallel", true);
+        boolean cache = PropertiesUtil.getBoolean(properties, "cache", true);
 
         logger.info("Loading a mesh from \"" + resolvedFileName + "\" ...");
 
-        String content = IOUtil.readTextFile(resolvedFileName);
-        InputStream inputStream = new ByteArrayInputStream(content.getBytes(Charset.forName("UTF-8")));
-        BufferedReader fin = new BufferedReader(new InputStreamReader(inputStream));
+        long start = System.currentTimeMillis();
 
-        ArrayList<Point3d> P = new ArrayList<>();
-        ArrayList<Vector2d> T = new ArrayList<>();
-        ArrayList<Vector3d> N = new ArrayList<>();
-        ArrayList<Integer> indices = new ArrayList<>();
-        ArrayList<OBJVertex> vertices = new ArrayList<>();
-        HashMap<OBJVertex, Integer> vertexMap = new HashMap<>();
+        Path path = Paths.get(resolvedFileName);
+        BasicFileAttributes source;
+        try {
+            source = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
 
-        bbox.reset();
+        File cacheFile = cache ? MeshCache.getCacheFile(resolvedFileName) : null;
+        MeshCache cached = cache ? MeshCache.load(cacheFile, source, trafo) : null;
+        String how;
+        if (cached != null) {
+            positions = cached.positions;
+            normals = cached.normals;
+            texCoords = cached.texCoords;
+            indices = cached.indices;
+            bbox.set(cached.bbox);
+            how = " from \"" + cacheFile + "\"";
+        } else {
+            int chunkCount = parseFile(path, trafo, parallel);
+            how = chunkCount > 1 ? " in " + chunkCount + " chunks" : "";
+            if (cache) {
+                MeshCache.save(cacheFile, source, trafo, this);
+            }
+        }
 
-        long start = System.currentTimeMillis();
+        long end = System.currentTimeMillis();
+        long elapsed = end - start;
 
-        try {
-            String line = fin.readLine();
-            while (line != null) {
-                line = line.trim();
-                if (line.length() == 0) {
-                    line = fin.readLine();
-                    continue;
-                }
-                if (line.charAt(0) == '#') {
-                    line = fin.readLine();
-                    continue;
-                }
+        logger.info(String.format("Done loading mesh with %d vertices and %d triangles%s. "
+                        + "Took %d min(s) %d second(s) and %d ms.",
+                getVertexCount(), getTriangleCount(), how,
+                elapsed / (60*1000), (elapsed / 1000) % 60, elapsed % 1000));
+    }
 
-                int spacePos = line.indexOf(' ');
-                if (spacePos == -1) {
-                    line = fin.readLine();
-                    continue;
-                }
-                String prefix = line.substring(0, spacePos);
-                String theRest = line.substring(spacePos+1, line.length()).trim();
-                if (prefix.equals("v")) {
-                    String[] comps = theRest.split("\\s+");
-                    Point3d p = new Point3d(
-                            Double.valueOf(comps[0]),
-                            Double.valueOf(comps[1]),
-                            Double.valueOf(comps[2]));
-                    trafo.m.transform(p);
-                    bbox.expandBy(p);
-                    P.add(p);
-                } else if (prefix.equals("vt")) {
-                    String[] comps = theRest.split("\\s+");
-                    Vector2d t = new Vector2d(
-                            Double.valueOf(comps[0]),
-                            Double.valueOf(comps[1]));
-                    T.add(t);
-                } else if (prefix.equals("vn")) {
-                    String[] comps = theRest.split("\\s+");
-                    Vector3d n = new Vector3d(
-                            Double.valueOf(comps[0]),
-                            Double.valueOf(comps[1]),
-                            Double.valueOf(comps[2]));
-                    trafo.mit.transform(n);
-                    N.add(n);
-                } else if (prefix.equals("f")) {
-                    String[] comps = theRest.split("\\s+");
-                    OBJVertex[] verts = new OBJVertex[comps.length];
-                    for (int i = 0; i < verts.length; i++) {
-                        verts[i] = new OBJVertex(comps[i]);
-                    }
-
-                    OBJVertex[] triVerts = new OBJVertex[3];
-                    for (int i = 0; i < verts.length - 2; i++) {
-                        triVerts[0] = verts[0];
-                        triVerts[1] = verts[i+1];
-                        triVerts[2] = verts[i+2];
-
-                        for (int j = 0; j < 3; j++) {
-                            if (!vertexMap.containsKey(triVerts[j])) {
-                                indices.add(vertices.size());
-                                vertexMap.put(triVerts[j], vertices.size());
-                                vertices.add(triVerts[j]);
-                            } else {
-                                indices.add(vertexMap.get(triVerts[j]));
-                            }
-                        }
-                    }
-                }
-                line = fin.readLine();
+    /**
+     * Parse the OBJ file and build the arrays of the mesh from it.
+     *
+     * @return the number of chunks the file was parsed in
+     */
+    private int parseFile(Path path, Transform trafo, boolean parallel) {
+        ObjParser parser;
+        int chunkCount;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            chunkCount = parallel ? getChunkCount(size) : 1;
+            if (chunkCount > 1) {
+                parser = parseChunks(channel, size, chunkCount, trafo);
+            } else {
+                parser = parseWhole(channel, size, trafo);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException(e);
         }
 
-        for (int i = 0; i < indices.size() / 3; i++) {
-            triangles.add(new Point3i(
-                    indices.get(3 * i + 0),
-                    indices.get(3*i+1),
-                    indices.get(3*i+2)));
+        bbox.reset();
+        Point3d p = new Point3d();
+        for (int i = 0; i < parser.positionCount; i++) {
+            p.set(parser.positions[3 * i], parser.positions[3 * i + 1], parser.positions[3 * i + 2]);
+            bbox.expandBy(p);
         }
 
-        for (int i = 0; i < vertices.size(); i++) {
-            Point3d p = P.get(vertices.get(i).p-1);
-            positions.add(new Point3d(p));
+        if (chunkCount > 1) {
+            buildVerticesSharded(parser);
+        } else {
+            buildVertices(parser);
         }
+        return chunkCount;
+    }
+
+    /**
+     * Get the number of chunks to parse a file of the given size in: about four per processor, but none
+     * smaller than MIN_CHUNK_SIZE and none larger than MAP_WINDOW_SIZE.  With a single processor the file
+     * is parsed whole.
+     */
+    private static int getChunkCount(long size) {
+        int processorCount = Runtime.getRuntime().availableProcessors();
+        if (processorCount == 1)
+            return 1;
+        long count = Math.min(4L * processorCount, size / MIN_CHUNK_SIZE);
+        count = Math.max(count, (size + MAP_WINDOW_SIZE - 1) / MAP_WINDOW_SIZE);
+        return (int) Math.max(1, count);
+    }
 
-        if (N.size() > 0) {
-            for (int i = 0; i < vertices.size(); i++) {
-                Vector3d n = N.get(vertices.get(i).n-1);
-                normals.add(new Vector3d(n));
+    /**
+     * Parse the whole file on the calling thread.
+     */
+    private ObjParser parseWhole(FileChannel channel, long size, Transform trafo) throws IOException {
+        ObjParser parser = new ObjParser(trafo, false);
+        long offset = 0;
+        while (offset < size) {
+            /* Map the file a window at a time, handing the parser whole lines only */
+            long length = Math.min(MAP_WINDOW_SIZE, size - offset);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            int parseEnd = (int) length;
+            if (offset + length < size) {
+                while (parseEnd > 0 && buffer.get(parseEnd - 1) != '\n')
+                    parseEnd--;
+                if (parseEnd == 0) {
+                    throw new RuntimeException("WavefrontOBJ.parseWhole(): A line of \"" + resolvedFileName
+                            + "\" is longer than " + MAP_WINDOW_SIZE + " bytes.");
+                }
             }
+            parser.parse(buffer, 0, parseEnd);
+            offset += parseEnd;
         }
+        return parser;
+    }
 
-        if (T.size() > 0) {
-            for (int i = 0; i < vertices.size(); i++) {
-                Vector2d t = T.get(vertices.get(i).uv-1);
-                texCoords.add(new Vector2d(t));
-            }
+    /**
+     * Split the file into chunks of whole lines, parse them concurrently, and concatenate the results.
+     *
+     * The attributes of a chunk are numbered after those of the chunks before it, so once all chunks are
+     * parsed, a prefix sum over their attribute counts gives the numbers to add to the indices that the
+     * chunks resolved from negative (relative) indices.
+     */
+    private ObjParser parseChunks(FileChannel channel, long size, int chunkCount, Transform trafo)
+            throws IOException {
+        long[] chunkStart = new long[chunkCount + 1];
+        chunkStart[chunkCount] = size;
+        for (int i = 1; i < chunkCount; i++) {
+            chunkStart[i] = findLineStart(channel, Math.max(chunkStart[i - 1], i * (size / chunkCount)), size);
         }
 
-        long end = System.currentTimeMillis();
-        long elapsed = end - start;
+        ObjParser[] chunks = new ObjParser[chunkCount];
+        IntStream.range(0, chunkCount).parallel().forEach((int i) -> {
+            ObjParser chunk = new ObjParser(trafo, true);
+            long length = chunkStart[i + 1] - chunkStart[i];
+            if (length > 0) {
+                try {
+                    chunk.parse(channel.map(FileChannel.MapMode.READ_ONLY, chunkStart[i], length), 0, (int) length);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            chunks[i] = chunk;
+        });
+
+        int[] positionStart = new int[chunkCount + 1];
+        int[] texCoordStart = new int[chunkCount + 1];
+        int[] normalStart = new int[chunkCount + 1];
+        int[] cornerStart = new int[chunkCount + 1];
+        for (int i = 0; i < chunkCount; i++) {
+            positionStart[i + 1] = positionStart[i] + chunks[i].positionCount;
+            texCoordStart[i + 1] = texCoordStart[i] + chunks[i].texCoordCount;
+            normalStart[i + 1] = normalStart[i] + chunks[i].normalCount;
+            cornerStart[i + 1] = cornerStart[i] + chunks[i].cornerCount;
+        }
 
-        logger.info(String.format("Done loading mesh with %d vertices and %d triangles. "
-                        + "Took %d min(s) %d second(s) and %d ms.",
-                positions.size(), triangles.size(),
-                elapsed / (60*1000), (elapsed / 1000) % 60, elapsed % 1000));
+        ObjParser parser = new ObjParser(trafo, false);
+        parser.positionCount = positionStart[chunkCount];
+        parser.texCoordCount = texCoordStart[chunkCount];
+        parser.normalCount = normalStart[chunkCount];
+        parser.cornerCount = cornerStart[chunkCount];
+        parser.positions = new double[3 * parser.positionCount];
+        parser.texCoords = new float[2 * parser.texCoordCount];
+        parser.normals = new float[3 * parser.normalCount];
+        parser.cornerP = new int[parser.cornerCount];
+        parser.cornerT = new int[parser.cornerCount];
+        parser.cornerN = new int[parser.cornerCount];
+        IntStream.range(0, chunkCount).parallel().forEach((int i) -> {
+            ObjParser chunk = chunks[i];
+            System.arraycopy(chunk.positions, 0, parser.positions, 3 * positionStart[i], 3 * chunk.positionCount);
+            System.arraycopy(chunk.texCoords, 0, parser.texCoords, 2 * texCoordStart[i], 2 * chunk.texCoordCount);
+            System.arraycopy(chunk.normals, 0, parser.normals, 3 * normalStart[i], 3 * chunk.normalCount);
+            System.arraycopy(chunk.cornerP, 0, parser.cornerP, cornerStart[i], chunk.cornerCount);
+            System.arraycopy(chunk.cornerT, 0, parser.cornerT, cornerStart[i], chunk.cornerCount);
+            System.arraycopy(chunk.cornerN, 0, parser.cornerN, cornerStart[i], chunk.cornerCount);
+            for (int k = 0; k < chunk.relativeCornerCount; k++) {
+                int corner = cornerStart[i] + chunk.relativeCorners[k] / 3;
+                switch (chunk.relativeCorners[k] % 3) {
+                    case 0:
+                        parser.cornerP[corner] += positionStart[i];
+                        break;
+                    case 1:
+                        parser.cornerT[corner] += texCoordStart[i];
+                        break;
+                    default:
+                        parser.cornerN[corner] += normalStart[i];
+                        break;
+                }
+            }
+        });
+        return parser;
     }
 
-    @Override
-    protected void activate() {
-        super.activate();
+    /**
+     * Get the position of the first line that starts at or after the given position.
+     */
+    private static long findLineStart(FileChannel channel, long position, long size) throws IOException {
+        if (position == 0 || position >= size)
+            return position;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long offset = position - 1;
+        while (offset < size) {
+            buffer.clear();
+            int count = channel.read(buffer, offset);
+            if (count <= 0)
+                break;
+            for (int i = 0; i < count; i++) {
+                if (buffer.get(i) == '\n')
+                    return offset + i + 1;
+            }
+            offset += count;
+        }
+        return size;
     }
 
-    private static class OBJVertex {
-        public int p = -1;
-        public int n = -1;
-        public int uv = -1;
+    /**
+     * Turn the distinct corners of the triangles into vertices, numbered in the order they first appear.
+     */
+    private void buildVertices(ObjParser parser) {
+        VertexMap vertexMap = new VertexMap();
+        indices = new int[parser.cornerCount];
+        for (int i = 0; i < parser.cornerCount; i++) {
+            indices[i] = vertexMap.getVertex(parser.cornerP[i], parser.cornerT[i], parser.cornerN[i]);
+        }
+        allocateVertices(parser, vertexMap.size);
+        copyVertexAttributes(parser, vertexMap, null);
+    }
 
-        public OBJVertex() {
-            // NO-OP
+    /**
+     * Do the same as buildVertices() on several threads.
+     *
+     * The corners are split into shards by the hash of their attribute numbers, so that equal corners land
+     * in the same shard, and each shard is deduplicated by its own VertexMap, concurrently with the others.
+     * A vertex is new at the first corner it appears in; counting the new vertices in the order of the
+     * corners then numbers the vertices exactly as buildVertices() does.
+     */
+    private void buildVerticesSharded(ObjParser parser) {
+        int cornerCount = parser.cornerCount;
+        int blockCount = (cornerCount + DEDUP_BLOCK_SIZE - 1) / DEDUP_BLOCK_SIZE;
+
+        /* Sort the corners by shard, keeping their order within each shard */
+        byte[] cornerShard = new byte[cornerCount];
+        int[][] blockShardStart = new int[blockCount][DEDUP_SHARD_COUNT];
+        IntStream.range(0, blockCount).parallel().forEach((int b) -> {
+            for (int c = b * DEDUP_BLOCK_SIZE; c < Math.min(cornerCount, (b + 1) * DEDUP_BLOCK_SIZE); c++) {
+                int shard = VertexMap.hash(parser.cornerP[c], parser.cornerT[c], parser.cornerN[c])
+                        >>> (32 - DEDUP_SHARD_BITS);
+                cornerShard[c] = (byte) shard;
+                blockShardStart[b][shard]++;
+            }
+        });
+        int[] shardStart = new int[DEDUP_SHARD_COUNT + 1];
+        int offset = 0;
+        for (int shard = 0; shard < DEDUP_SHARD_COUNT; shard++) {
+            shardStart[shard] = offset;
+            for (int b = 0; b < blockCount; b++) {
+                int count = blockShardStart[b][shard];
+                blockShardStart[b][shard] = offset;
+                offset += count;
+            }
+        }
+        shardStart[DEDUP_SHARD_COUNT] = offset;
+        int[] shardCorners = new int[cornerCount];
+        IntStream.range(0, blockCount).parallel().forEach((int b) -> {
+            int[] next = blockShardStart[b];
+            for (int c = b * DEDUP_BLOCK_SIZE; c < Math.min(cornerCount, (b + 1) * DEDUP_BLOCK_SIZE); c++) {
+                shardCorners[next[cornerShard[c]]++] = c;
+            }
+        });
+
+        /* Deduplicate each shard, marking the corner where a vertex first appears by storing ~vertex */
+        indices = new int[cornerCount];
+        VertexMap[] shardMaps = new VertexMap[DEDUP_SHARD_COUNT];
+        IntStream.range(0, DEDUP_SHARD_COUNT).parallel().forEach((int shard) -> {
+            VertexMap vertexMap = new VertexMap();
+            for (int k = shardStart[shard]; k < shardStart[shard + 1]; k++) {
+                int c = shardCorners[k];
+                int newVertex = vertexMap.size;
+                int v = vertexMap.getVertex(parser.cornerP[c], parser.cornerT[c], parser.cornerN[c]);
+                indices[c] = v == newVertex ? ~v : v;
+            }
+            shardMaps[shard] = vertexMap;
+        });
+
+        /* Number the vertices in the order of the corners where they first appear */
+        int[] blockVertexStart = new int[blockCount + 1];
+        IntStream.range(0, blockCount).parallel().forEach((int b) -> {
+            int count = 0;
+            for (int c = b * DEDUP_BLOCK_SIZE; c < Math.min(cornerCount, (b + 1) * DEDUP_BLOCK_SIZE); c++) {
+                if (indices[c] < 0)
+                    count++;
+            }
+            blockVertexStart[b + 1] = count;
+        });
+        for (int b = 0; b < blockCount; b++) {
+            blockVertexStart[b + 1] += blockVertexStart[b];
         }
+        int[][] shardVertexIndex = new int[DEDUP_SHARD_COUNT][];
+        for (int shard = 0; shard < DEDUP_SHARD_COUNT; shard++) {
+            shardVertexIndex[shard] = new int[shardMaps[shard].size];
+        }
+        IntStream.range(0, blockCount).parallel().forEach((int b) -> {
+            int vertex = blockVertexStart[b];
+            for (int c = b * DEDUP_BLOCK_SIZE; c < Math.min(cornerCount, (b + 1) * DEDUP_BLOCK_SIZE); c++) {
+                if (indices[c] < 0)
+                    shardVertexIndex[cornerShard[c]][~indices[c]] = vertex++;
+            }
+        });
+        IntStream.range(0, blockCount).parallel().forEach((int b) -> {
+            for (int c = b * DEDUP_BLOCK_SIZE; c < Math.min(cornerCount, (b + 1) * DEDUP_BLOCK_SIZE); c++) {
+                int v = indices[c] < 0 ? ~indices[c] : indices[c];
+                indices[c] = shardVertexIndex[cornerShard[c]][v];
+            }
+        });
 
-        public OBJVertex(String s) {
-            String comps[] = s.split("/");
+        allocateVertices(parser, blockVertexStart[blockCount]);
+        IntStream.range(0, DEDUP_SHARD_COUNT).parallel().forEach((int shard) ->
+                copyVertexAttributes(parser, shardMaps[shard], shardVertexIndex[shard]));
+    }
+
+    private void allocateVertices(ObjParser parser, int vertexCount) {
+        positions = new double[3 * vertexCount];
+        normals = parser.normalCount > 0 ? new float[3 * vertexCount] : new float[0];
+        texCoords = parser.texCoordCount > 0 ? new float[2 * vertexCount] : new float[0];
+    }
 
-            if (comps.length < 1 || comps.length > 3) {
-                throw new RuntimeException("Invalid vertex data: " + s);
+    /**
+     * Copy the attributes of the vertices of a VertexMap into the vertex arrays of the mesh.
+     *
+     * @param vertexIndex the index in the mesh of each vertex of the map, or null if they are the same
+     */
+    private void copyVertexAttributes(ObjParser parser, VertexMap vertexMap, int[] vertexIndex) {
+        for (int v = 0; v < vertexMap.size; v++) {
+            int i = vertexIndex == null ? v : vertexIndex[v];
+            System.arraycopy(parser.positions, 3 * checkIndex(vertexMap.p[v], parser.positionCount, "position"),
+                    positions, 3 * i, 3);
+            if (parser.normalCount > 0) {
+                System.arraycopy(parser.normals, 3 * checkIndex(vertexMap.n[v], parser.normalCount, "normal"),
+                        normals, 3 * i, 3);
+            }
+            if (parser.texCoordCount > 0) {
+                System.arraycopy(parser.texCoords,
+                        2 * checkIndex(vertexMap.uv[v], parser.texCoordCount, "texture coordinate"),
+                        texCoords, 2 * i, 2);
             }
+        }
+    }
 
-            p = Integer.valueOf(comps[0]);
+    /**
+     * Turn a 1-based attribute number into a 0-based index, checking that the attribute exists.
+     */
+    private int checkIndex(int number, int count, String attribute) {
+        if (number == -1) {
+            throw new RuntimeException("WavefrontOBJ.setProperties(): A face of \"" + resolvedFileName
+                    + "\" gives no " + attribute + " for some of its vertices.");
+        }
+        if (number < 1 || number > count) {
+            throw new RuntimeException("WavefrontOBJ.setProperties(): A face of \"" + resolvedFileName
+                    + "\" refers to " + attribute + " " + number + ", but there are " + count + ".");
+        }
+        return number - 1;
+    }
 
-            if (comps.length >= 2 && comps[1].length() > 0) {
-                uv = Integer.valueOf(comps[1]);
+    @Override
+    protected void activate() {
+        super.activate();
+    }
+
+    /**
+     * The distinct combinations of position, texture coordinate, and normal indices used by the faces of the
+     * file, each of which becomes a vertex of the mesh.
+     *
+     * The indices are 1-based as in the file, with -1 for an attribute that is not given.  Lookups go through an
+     * open-addressing hash table of vertex numbers, so no object is created per vertex.
+     */
+    private static class VertexMap {
+        int[] p = new int[1024];
+        int[] uv = new int[1024];
+        int[] n = new int[1024];
+        int size = 0;
+        /**
+         * Vertex numbers, or -1 for an empty slot.  The length is a power of two.
+         */
+        private int[] table = newTable(2048);
+
+        int getVertex(int vp, int vuv, int vn) {
+            int mask = table.length - 1;
+            int slot = hash(vp, vuv, vn) & mask;
+            while (table[slot] >= 0) {
+                int v = table[slot];
+                if (p[v] == vp && uv[v] == vuv && n[v] == vn)
+                    return v;
+                slot = (slot + 1) & mask;
             }
 
-            if (comps.length >= 3 && comps[2].length() > 0) {
-                n = Integer.valueOf(comps[2]);
+            if (size == p.length) {
+                p = Arrays.copyOf(p, 2 * size);
+                uv = Arrays.copyOf(uv, 2 * size);
+                n = Arrays.copyOf(n, 2 * size);
             }
+            int v = size++;
+            p[v] = vp;
+            uv[v] = vuv;
+            n[v] = vn;
+            table[slot] = v;
+            if (2 * size > table.length)
+                rehash();
+            return v;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (o instanceof OBJVertex) {
-                OBJVertex other = (OBJVertex)o;
-                return other.p == p && other.n == n && other.uv == uv;
-            } else {
-                return false;
+        private void rehash() {
+            table = newTable(2 * table.length);
+            int mask = table.length - 1;
+            for (int v = 0; v < size; v++) {
+                int slot = hash(p[v], uv[v], n[v]) & mask;
+                while (table[slot] >= 0)
+                    slot = (slot + 1) & mask;
+                table[slot] = v;
             }
         }
 
-        @Override
-        public int hashCode() {
-            int hash = Integer.hashCode(p);
-            hash = hash * 37 + Integer.hashCode(uv);
-            hash = hash * 37 + Integer.hashCode(n);
-            return hash;
+        private static int[] newTable(int length) {
+            int[] table = new int[length];
+            Arrays.fill(table, -1);
+            return table;
+        }
+
+        static int hash(int vp, int vuv, int vn) {
+            int hash = vp;
+            hash = hash * 37 + vuv;
+            hash = hash * 37 + vn;
+            /* Spread the bits, since consecutive vertices have consecutive indices */
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
         }
     }
 
@@ -252,8 +546,8 @@ public class WavefrontOBJ extends Mesh {
     public String toString() {
         return "WavefrontObj[\n" +
                "  filename = " + resolvedFileName + "\n" +
-               "  vertices = " + positions.size() + "\n" +
-               "  triangles = " + triangles.size() + "\n" +
+               "  vertices = " + getVertexCount() + "\n" +
+               "  triangles = " + getTriangleCount() + "\n" +
                "]";
     }
 }
@@ -0,0 +1,60 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.struct;
+
+/**
+ * Results of tracing a RayBatch
+ *
+ * hit[i] tells whether ray i hit something.  For closest-hit queries, t[i] holds the distance of the hit
+ * and intersections[i] the full intersection record; for occlusion queries only hit[i] is filled in.
+ */
+public class HitBatch {
+    /**
+     * Whether each ray hit something.
+     */
+    public final boolean[] hit;
+    /**
+     * The distance along each ray of its closest hit.  Only valid where hit is true.
+     */
+    public final double[] t;
+    /**
+     * The intersection record of each ray.  Only valid where hit is true.
+     */
+    public final Intersection[] intersections;
+
+    /**
+     * Create a batch of results for up to the given number of rays.
+     * @param capacity the maximum number of rays
+     */
+    public HitBatch(int capacity) {
+        hit = new boolean[capacity];
+        t = new double[capacity];
+        intersections = new Intersection[capacity];
+        for (int i = 0; i < capacity; i++) {
+            intersections[i] = new Intersection();
+        }
+    }
+
+    /**
+     * Return the maximum number of rays the batch can hold results for.
+     */
+    public int getCapacity() {
+        return hit.length;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.struct;
+
+/**
+ * A batch of rays stored as structure of arrays
+ *
+ * Ray i has origin (ox[i], oy[i], oz[i]), direction (dx[i], dy[i], dz[i]), and segment [mint[i], maxt[i]].
+ * Tracing a whole batch at once lets the BVH fetch each node once for all rays that visit it, which pays off
+ * for coherent rays such as the primary or shadow rays of an image block.
+ */
+public class RayBatch {
+    public final double[] ox;
+    public final double[] oy;
+    public final double[] oz;
+    public final double[] dx;
+    public final double[] dy;
+    public final double[] dz;
+    public final double[] mint;
+    public final double[] maxt;
+    /**
+     * The number of rays in the batch.
+     */
+    private int size = 0;
+
+    /**
+     * Create an empty batch that can hold the given number of rays.
+     * @param capacity the maximum number of rays
+     */
+    public RayBatch(int capacity) {
+        ox = new double[capacity];
+        oy = new double[capacity];
+        oz = new double[capacity];
+        dx = new double[capacity];
+        dy = new double[capacity];
+        dz = new double[capacity];
+        mint = new double[capacity];
+        maxt = new double[capacity];
+    }
+
+    /**
+     * Return the maximum number of rays the batch can hold.
+     */
+    public int getCapacity() {
+        return ox.length;
+    }
+
+    /**
+     * Return the number of rays in the batch.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Remove all rays from the batch.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Append a ray to the batch.
+     * @param ray the ray
+     * @return the index of the ray in the batch
+     */
+    public int add(Ray ray) {
+        if (size == ox.length) {
+            throw new RuntimeException("RayBatch.add(): The batch is full.");
+        }
+        set(size, ray);
+        return size++;
+    }
+
+    /**
+     * Overwrite the ray with the given index.
+     * @param index the index of the ray
+     * @param ray the ray
+     */
+    public void set(int index, Ray ray) {
+        ox[index] = ray.o.x;
+        oy[index] = ray.o.y;
+        oz[index] = ray.o.z;
+        dx[index] = ray.d.x;
+        dy[index] = ray.d.y;
+        dz[index] = ray.d.z;
+        mint[index] = ray.mint;
+        maxt[index] = ray.maxt;
+    }
+
+    /**
+     * Copy the ray with the given index.
+     * @param index the index of the ray
+     * @param ray the receiver of the ray
+     */
+    public void get(int index, Ray ray) {
+        ray.o.set(ox[index], oy[index], oz[index]);
+        ray.d.set(dx[index], dy[index], dz[index]);
+        ray.mint = mint[index];
+        ray.maxt = maxt[index];
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * This file is part of Wakame, a Java reimplementation of Nori, an educational ray tracer by Wenzel Jakob.
+ *
+ * Copyright (c) 2015 by Pramook Khungurn
+ *
+ * Wakame is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 3
+ * as published by the Free Software Foundation.
+ *
+ * Wakame is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package wakame.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Utility methods for reading and writing binary cache files.
+ *
+ * A cache file is read by mapping it into memory as a whole, so files larger than MAX_SIZE are never read or
+ * written.  Files are little endian, and are written through a temporary file that is then moved over the
+ * target, so that a concurrent render never maps a half-written cache.  Failures are logged and otherwise
+ * ignored, since a cache is only an optimization.
+ */
+public class CacheFileUtil {
+    /**
+     * The logger
+     */
+    private static Logger logger = LoggerFactory.getLogger(CacheFileUtil.class);
+    /**
+     * The largest cache file in bytes, which is the largest region a single MappedByteBuffer can map.
+     */
+    public static final long MAX_SIZE = Integer.MAX_VALUE;
+    /**
+     * Size of the buffer through which the content is written.
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Writer of the content of a cache file.
+     */
+    public interface Content {
+        void write(Output output) throws IOException;
+    }
+
+    /**
+     * Little-endian output that streams values to a file channel through a small buffer.
+     */
+    public static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        private Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void reserve(int byteCount) throws IOException {
+            if (buffer.remaining() < byteCount)
+                flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        public Output putInt(int value) throws IOException {
+            reserve(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        public Output putLong(long value) throws IOException {
+            reserve(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        public Output putDouble(double value) throws IOException {
+            reserve(8);
+            buffer.putDouble(value);
+            return this;
+        }
+
+        public Output put(byte[] values) throws IOException {
+            reserve(values.length);
+            buffer.put(values);
+            return this;
+        }
+
+        public Output putDoubles(double[] values, int offset, int count) throws IOException {
+            while (count > 0) {
+                reserve(8);
+                int n = Math.min(count, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(values, offset, n);
+                buffer.position(buffer.position() + 8 * n);
+                offset += n;
+                count -= n;
+            }
+            return this;
+        }
+
+        public Output putFloats(float[] values, int offset, int count) throws IOException {
+            while (count > 0) {
+                reserve(4);
+                int n = Math.min(count, buffer.remaining() / 4);
+                buffer.asFloatBuffer().put(values, offset, n);
+                buffer.position(buffer.position() + 4 * n);
+                offset += n;
+                count -= n;
+            }
+            return this;
+        }
+
+        public Output putInts(int[] values, int offset, int count) throws IOException {
+            while (count > 0) {
+                reserve(4);
+                int n = Math.min(count, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(values, offset, n);
+                buffer.position(buffer.position() + 4 * n);
+                offset += n;
+                count -= n;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Map the given cache file into memory.
+     *
+     * @param file        the cache file
+     * @param description what the file holds, for the log (e.g. "BVH cache")
+     * @param minSize     the size below which the file cannot be a valid cache, usually the header size
+     * @return the little-endian contents of the file, or null if it does not exist, is smaller than minSize,
+     * is larger than MAX_SIZE, or cannot be read
+     */
+    public static MappedByteBuffer map(File file, String description, long minSize) {
+        if (!file.isFile())
+            return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < minSize)
+                return null;
+            if (size > MAX_SIZE) {
+                logger.warn("Ignoring " + description + " \"" + file + "\" since it is larger than "
+                        + MAX_SIZE + " bytes.");
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } catch (IOException e) {
+            logger.warn("Could not read " + description + " \"" + file + "\": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write a cache file of the given size.  The file is skipped if the size exceeds MAX_SIZE, since it could
+     * not be mapped when read back.
+     *
+     * @param file        the cache file
+     * @param description what the file holds, for the log (e.g. "BVH cache")
+     * @param size        the number of bytes the content writes
+     * @param content     the writer of the content
+     */
+    public static void write(File file, String description, long size, Content content) {
+        if (size > MAX_SIZE) {
+            logger.warn("Not writing " + description + " \"" + file + "\" since it would take " + size
+                    + " bytes, more than " + MAX_SIZE + ".");
+            return;
+        }
+
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                Output output = new Output(channel);
+                content.write(output);
+                output.flush();
+                if (channel.size() != size) {
+                    throw new IOException("wrote " + channel.size() + " bytes instead of " + size + ".");
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Wrote " + description + " \"" + file + "\".");
+        } catch (IOException e) {
+            logger.warn("Could not write " + description + " \"" + file + "\": " + e.getMessage());
+            try {
+                if (temp != null)
+                    Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // NO-OP
+            }
+        }
+    }
+}
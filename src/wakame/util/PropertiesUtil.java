@@ -78,6 +78,31 @@ public class PropertiesUtil {
         }
     }
 
+    public static boolean getBoolean(HashMap<String, Object> properties, String name) {
+        if (properties.containsKey(name)) {
+            if (!(properties.get(name) instanceof Boolean)) {
+                throw new RuntimeException("PropertyUtil.getBoolean(): " +
+                        "The property '" + name + "' is not a boolean.");
+            }
+            return (boolean)properties.get(name);
+        } else {
+            throw new RuntimeException("PropertyUtil.getBoolean(): The property list does not contain " +
+                    "a property by the name '" + name + "'.");
+        }
+    }
+
+    public static boolean getBoolean(HashMap<String, Object> properties, String name, boolean defaultValue) {
+        if (properties.containsKey(name)) {
+            if (!(properties.get(name) instanceof Boolean)) {
+                throw new RuntimeException("PropertyUtil.getBoolean(): " +
+                        "The property '" + name + "' is not a boolean.");
+            }
+            return (boolean)properties.get(name);
+        } else {
+            return defaultValue;
+        }
+    }
+
     public static double getDouble(HashMap<String, Object> properties, String name) {
         if (properties.containsKey(name)) {
             if (!(properties.get(name) instanceof Double)) {